@@ -0,0 +1,54 @@
+package fr.drangies.cordova.serial;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.cordova.PluginResult;
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Cost of the base64 encoding of binary data sent to javascript
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class Base64Benchmark {
+	@Param({"64", "4096", "65536"})
+	int size;
+
+	byte[] data;
+	Serial serial;
+
+	@Setup
+	public void setup() {
+		data = new byte[size];
+		new Random(42).nextBytes(data);
+		serial = new Serial();
+	}
+
+	@Benchmark
+	public JSONObject addPropertyBytes() {
+		JSONObject obj = new JSONObject();
+		serial.addPropertyBytes(obj, "data", data);
+		return obj;
+	}
+
+	@Benchmark
+	public PluginResult binaryPluginResult() {
+		return new PluginResult(PluginResult.Status.OK, data);
+	}
+}
@@ -0,0 +1,37 @@
+package fr.drangies.cordova.serial;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.cordova.CallbackContext;
+import org.apache.cordova.PluginResult;
+
+/**
+ * {@link CallbackContext} counting the results instead of sending them to a WebView
+ */
+class BenchCallbackContext extends CallbackContext {
+	final AtomicLong results = new AtomicLong();
+	final AtomicLong errors = new AtomicLong();
+
+	BenchCallbackContext() {
+		super("bench", null);
+	}
+
+	@Override
+	public void sendPluginResult(PluginResult pluginResult) {
+		if (pluginResult.getStatus() == PluginResult.Status.OK.ordinal()) {
+			results.incrementAndGet();
+		}
+		else {
+			errors.incrementAndGet();
+		}
+	}
+
+	/**
+	 * Wait until the given number of results have been received
+	 */
+	void await(long count) {
+		while (results.get() + errors.get() < count) {
+			Thread.yield();
+		}
+	}
+}
@@ -0,0 +1,45 @@
+package fr.drangies.cordova.serial;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.apache.cordova.CordovaInterface;
+import org.apache.cordova.CordovaPlugin;
+
+import android.app.Activity;
+import android.content.Intent;
+
+/**
+ * Minimal cordova host for driving the plugin outside of a WebView
+ */
+class FakeCordova implements CordovaInterface {
+	private final ExecutorService threadPool = Executors.newCachedThreadPool();
+	private final Activity activity = new Activity();
+
+	@Override
+	public void startActivityForResult(CordovaPlugin command, Intent intent, int requestCode) {
+	}
+
+	@Override
+	public void setActivityResultCallback(CordovaPlugin plugin) {
+	}
+
+	@Override
+	public Activity getActivity() {
+		return activity;
+	}
+
+	@Override
+	public Object onMessage(String id, Object data) {
+		return null;
+	}
+
+	@Override
+	public ExecutorService getThreadPool() {
+		return threadPool;
+	}
+
+	void shutdown() {
+		threadPool.shutdownNow();
+	}
+}
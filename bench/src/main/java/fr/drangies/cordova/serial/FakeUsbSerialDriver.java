@@ -0,0 +1,38 @@
+package fr.drangies.cordova.serial;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import com.hoho.android.usbserial.driver.UsbSerialDriver;
+import com.hoho.android.usbserial.driver.UsbSerialPort;
+
+import android.hardware.usb.UsbDevice;
+
+/**
+ * {@link UsbSerialDriver} of an in memory device with {@link FakeUsbSerialPort} ports
+ */
+class FakeUsbSerialDriver implements UsbSerialDriver {
+	private final UsbDevice device;
+	private final List<UsbSerialPort> ports = new ArrayList<UsbSerialPort>();
+
+	FakeUsbSerialDriver(int deviceId, int portCount) {
+		this.device = new UsbDevice(deviceId, 0x0403, 0x6001);
+		for (int i = 0; i < portCount; i++) {
+			ports.add(new FakeUsbSerialPort(this, i));
+		}
+	}
+
+	FakeUsbSerialPort getPort(int index) {
+		return (FakeUsbSerialPort) ports.get(index);
+	}
+
+	@Override
+	public UsbDevice getDevice() {
+		return device;
+	}
+
+	@Override
+	public List<UsbSerialPort> getPorts() {
+		return ports;
+	}
+}
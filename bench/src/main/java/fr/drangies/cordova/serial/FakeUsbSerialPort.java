@@ -0,0 +1,175 @@
+package fr.drangies.cordova.serial;
+
+import java.io.IOException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import com.hoho.android.usbserial.driver.UsbSerialDriver;
+import com.hoho.android.usbserial.driver.UsbSerialPort;
+
+import android.hardware.usb.UsbDeviceConnection;
+
+/**
+ * In memory {@link UsbSerialPort} for the benchmarks.
+ * Writes take as long as the configured bandwidth and latency would make them take on a real link,
+ * reads return the chunks injected with {@link #inject(byte[])}.
+ */
+class FakeUsbSerialPort implements UsbSerialPort {
+	private final UsbSerialDriver driver;
+	private final int portNumber;
+	// simulated link, 0 for an infinitely fast one
+	private volatile long bytesPerSecond;
+	private volatile long latencyNanos;
+	// incoming chunks, and what is left of the chunk being read
+	private final LinkedBlockingQueue<byte[]> incoming = new LinkedBlockingQueue<byte[]>();
+	private byte[] partial;
+	private int partialOffset;
+	// written bytes
+	final AtomicLong bytesWritten = new AtomicLong();
+	private volatile boolean open;
+
+	FakeUsbSerialPort(UsbSerialDriver driver, int portNumber) {
+		this.driver = driver;
+		this.portNumber = portNumber;
+	}
+
+	/**
+	 * Configure the simulated link
+	 * @param bytesPerSecond the link bandwidth, 0 for no limit
+	 * @param latencyMicros the time taken by every transfer, on top of the bandwidth
+	 */
+	void setLink(long bytesPerSecond, long latencyMicros) {
+		this.bytesPerSecond = bytesPerSecond;
+		this.latencyNanos = latencyMicros * 1000;
+	}
+
+	/**
+	 * Make data available for reading, as if the device had sent it
+	 */
+	void inject(byte[] data) {
+		incoming.add(data);
+	}
+
+	private void simulateTransfer(int length) {
+		long nanos = latencyNanos;
+		if (bytesPerSecond > 0) {
+			nanos += length * 1000000000L / bytesPerSecond;
+		}
+		long deadline = System.nanoTime() + nanos;
+		while (System.nanoTime() < deadline) {
+			LockSupport.parkNanos(Math.min(50000, deadline - System.nanoTime()));
+		}
+	}
+
+	@Override
+	public UsbSerialDriver getDriver() {
+		return driver;
+	}
+
+	@Override
+	public int getPortNumber() {
+		return portNumber;
+	}
+
+	@Override
+	public String getSerial() {
+		return "FAKE" + portNumber;
+	}
+
+	@Override
+	public void open(UsbDeviceConnection connection) throws IOException {
+		open = true;
+	}
+
+	@Override
+	public void close() throws IOException {
+		open = false;
+	}
+
+	@Override
+	public int read(byte[] dest, int timeoutMillis) throws IOException {
+		if (!open) {
+			throw new IOException("Port closed.");
+		}
+		if (partial == null) {
+			try {
+				partial = incoming.poll(timeoutMillis, TimeUnit.MILLISECONDS);
+			}
+			catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return 0;
+			}
+			partialOffset = 0;
+			if (partial == null) {
+				return 0;
+			}
+			simulateTransfer(partial.length);
+		}
+		int length = Math.min(dest.length, partial.length - partialOffset);
+		System.arraycopy(partial, partialOffset, dest, 0, length);
+		partialOffset += length;
+		if (partialOffset == partial.length) {
+			partial = null;
+		}
+		return length;
+	}
+
+	@Override
+	public int write(byte[] src, int timeoutMillis) throws IOException {
+		if (!open) {
+			throw new IOException("Port closed.");
+		}
+		simulateTransfer(src.length);
+		bytesWritten.addAndGet(src.length);
+		return src.length;
+	}
+
+	@Override
+	public void setParameters(int baudRate, int dataBits, int stopBits, int parity) throws IOException {
+	}
+
+	@Override
+	public boolean getCD() throws IOException {
+		return true;
+	}
+
+	@Override
+	public boolean getCTS() throws IOException {
+		return true;
+	}
+
+	@Override
+	public boolean getDSR() throws IOException {
+		return true;
+	}
+
+	@Override
+	public boolean getDTR() throws IOException {
+		return false;
+	}
+
+	@Override
+	public void setDTR(boolean value) throws IOException {
+	}
+
+	@Override
+	public boolean getRI() throws IOException {
+		return false;
+	}
+
+	@Override
+	public boolean getRTS() throws IOException {
+		return false;
+	}
+
+	@Override
+	public void setRTS(boolean value) throws IOException {
+	}
+
+	@Override
+	public boolean purgeHwBuffers(boolean flushReadBuffers, boolean flushWriteBuffers) throws IOException {
+		return true;
+	}
+}
@@ -0,0 +1,48 @@
+package fr.drangies.cordova.serial;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Cost of decoding the hex strings of writeSerialHex
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HexBenchmark {
+	@Param({"256", "262144"})
+	int size;
+
+	String hex;
+
+	@Setup
+	public void setup() {
+		byte[] data = new byte[size];
+		new Random(42).nextBytes(data);
+		StringBuilder builder = new StringBuilder(size * 2);
+		for (byte b : data) {
+			builder.append(String.format("%02x", b & 0xff));
+		}
+		hex = builder.toString();
+	}
+
+	@Benchmark
+	public byte[] hexStringToByteArray() {
+		return Serial.hexStringToByteArray(hex);
+	}
+}
@@ -0,0 +1,90 @@
+package fr.drangies.cordova.serial;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import android.hardware.usb.UsbManager;
+
+/**
+ * Time taken by the chunks read from the port to reach the read callback,
+ * through the I/O manager, the read dispatcher and the plugin result encoding
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ReadPathBenchmark {
+	private static final int CHUNKS = 64;
+
+	@Param({"16", "512"})
+	int chunkSize;
+
+	@Param({"false", "true"})
+	boolean batching;
+
+	@Param({"0", "125"})
+	long latencyMicros;
+
+	FakeCordova cordova;
+	Serial serial;
+	FakeUsbSerialPort port;
+	BenchCallbackContext readCallback;
+	byte[] chunk;
+	long expected;
+
+	@Setup
+	public void setup() throws Exception {
+		cordova = new FakeCordova();
+		serial = new Serial();
+		serial.cordova = cordova;
+		FakeUsbSerialDriver driver = new FakeUsbSerialDriver(1, 1);
+		port = driver.getPort(0);
+		port.setLink(0, latencyMicros);
+		JSONObject opts = new JSONObject();
+		if (batching) {
+			// exactly one batch per invocation
+			opts.put("readBatchSize", CHUNKS * chunkSize);
+		}
+		serial.openSession(new DeviceRegistry(new UsbManager()), driver, 0, opts);
+		readCallback = new BenchCallbackContext();
+		serial.execute("registerReadCallback", new JSONArray().put(new JSONObject()), readCallback);
+		expected = 1;
+		readCallback.await(expected);
+		chunk = new byte[chunkSize];
+		new Random(42).nextBytes(chunk);
+	}
+
+	@TearDown
+	public void tearDown() {
+		serial.onDestroy();
+		cordova.shutdown();
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(CHUNKS)
+	public void readChunks() {
+		for (int i = 0; i < CHUNKS; i++) {
+			port.inject(chunk);
+		}
+		expected += batching ? 1 : CHUNKS;
+		readCallback.await(expected);
+	}
+}
@@ -0,0 +1,113 @@
+package fr.drangies.cordova.serial;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import android.hardware.usb.UsbManager;
+import android.util.Base64;
+
+/**
+ * Time taken by the writes, from the execute call to the success callback,
+ * through the write queue and a simulated link
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class WritePathBenchmark {
+	private static final int BURST = 32;
+
+	@Param({"16", "1024"})
+	int size;
+
+	// 0 for an infinitely fast link, 92160 bytes per second is 921600 bauds
+	@Param({"0", "92160"})
+	long bytesPerSecond;
+
+	@Param({"0", "125"})
+	long latencyMicros;
+
+	FakeCordova cordova;
+	Serial serial;
+	BenchCallbackContext callback;
+	JSONArray stringArgs;
+	JSONArray hexArgs;
+	JSONArray binaryArgs;
+	long expected;
+
+	@Setup
+	public void setup() throws Exception {
+		cordova = new FakeCordova();
+		serial = new Serial();
+		serial.cordova = cordova;
+		FakeUsbSerialDriver driver = new FakeUsbSerialDriver(1, 1);
+		driver.getPort(0).setLink(bytesPerSecond, latencyMicros);
+		serial.openSession(new DeviceRegistry(new UsbManager()), driver, 0, new JSONObject());
+		callback = new BenchCallbackContext();
+
+		byte[] data = new byte[size];
+		new Random(42).nextBytes(data);
+		StringBuilder text = new StringBuilder(size);
+		StringBuilder hex = new StringBuilder(size * 2);
+		for (byte b : data) {
+			text.append((char) ('a' + (b & 0xf)));
+			hex.append(String.format("%02x", b & 0xff));
+		}
+		stringArgs = new JSONArray().put(new JSONObject().put("data", text.toString()));
+		hexArgs = new JSONArray().put(new JSONObject().put("data", hex.toString()));
+		binaryArgs = new JSONArray().put(new JSONObject()).put(Base64.encodeToString(data, Base64.NO_WRAP));
+	}
+
+	@TearDown
+	public void tearDown() {
+		serial.onDestroy();
+		cordova.shutdown();
+	}
+
+	private void write(String action, JSONArray args, int count) throws Exception {
+		for (int i = 0; i < count; i++) {
+			serial.execute(action, args, callback);
+		}
+		expected += count;
+		callback.await(expected);
+	}
+
+	@Benchmark
+	public void writeSerial() throws Exception {
+		write("writeSerial", stringArgs, 1);
+	}
+
+	@Benchmark
+	public void writeSerialHex() throws Exception {
+		write("writeSerialHex", hexArgs, 1);
+	}
+
+	@Benchmark
+	public void writeSerialBinary() throws Exception {
+		write("writeSerialBinary", binaryArgs, 1);
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(BURST)
+	public void writeSerialBurst() throws Exception {
+		write("writeSerial", stringArgs, BURST);
+	}
+}
@@ -0,0 +1,7 @@
+package android.app;
+
+/**
+ * Stand-in for the android activity
+ */
+public class Activity extends android.content.Context {
+}
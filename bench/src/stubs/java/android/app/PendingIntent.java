@@ -0,0 +1,10 @@
+package android.app;
+
+/**
+ * Stand-in for the android pending intent
+ */
+public class PendingIntent {
+	public static PendingIntent getBroadcast(android.content.Context context, int requestCode, android.content.Intent intent, int flags) {
+		return new PendingIntent();
+	}
+}
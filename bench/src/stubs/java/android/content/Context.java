@@ -0,0 +1,15 @@
+package android.content;
+
+/**
+ * Stand-in for the android context
+ */
+public class Context {
+	public static final String USB_SERVICE = "usb";
+
+	public Object getSystemService(String name) { return null; }
+	public Context getApplicationContext() { return this; }
+	public java.io.File getFilesDir() { return new java.io.File(System.getProperty("java.io.tmpdir")); }
+	public java.io.File getCacheDir() { return new java.io.File(System.getProperty("java.io.tmpdir")); }
+	public Intent registerReceiver(BroadcastReceiver receiver, IntentFilter filter) { return null; }
+	public void unregisterReceiver(BroadcastReceiver receiver) {}
+}
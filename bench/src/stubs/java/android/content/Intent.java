@@ -0,0 +1,13 @@
+package android.content;
+
+/**
+ * Stand-in for the android intent
+ */
+public class Intent {
+	private final String action;
+
+	public Intent(String action) { this.action = action; }
+	public String getAction() { return action; }
+	public boolean getBooleanExtra(String name, boolean defaultValue) { return defaultValue; }
+	public <T> T getParcelableExtra(String name) { return null; }
+}
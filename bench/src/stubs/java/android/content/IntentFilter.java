@@ -0,0 +1,10 @@
+package android.content;
+
+/**
+ * Stand-in for the android intent filter
+ */
+public class IntentFilter {
+	public IntentFilter() {}
+	public IntentFilter(String action) {}
+	public void addAction(String action) {}
+}
@@ -0,0 +1,24 @@
+package android.hardware.usb;
+
+/**
+ * Stand-in for the android USB device
+ */
+public class UsbDevice {
+	private final int deviceId;
+	private final int vendorId;
+	private final int productId;
+
+	public UsbDevice(int deviceId, int vendorId, int productId) {
+		this.deviceId = deviceId;
+		this.vendorId = vendorId;
+		this.productId = productId;
+	}
+
+	public int getDeviceId() { return deviceId; }
+	public String getDeviceName() { return "/dev/bus/usb/001/" + deviceId; }
+	public int getVendorId() { return vendorId; }
+	public int getProductId() { return productId; }
+	public String getSerialNumber() { return null; }
+	public String getManufacturerName() { return null; }
+	public String getProductName() { return null; }
+}
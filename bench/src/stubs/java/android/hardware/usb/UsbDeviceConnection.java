@@ -0,0 +1,10 @@
+package android.hardware.usb;
+
+/**
+ * Stand-in for the android USB connection
+ */
+public class UsbDeviceConnection {
+	public void close() {}
+	public String getSerial() { return null; }
+	public int controlTransfer(int requestType, int request, int value, int index, byte[] buffer, int length, int timeout) { return length; }
+}
@@ -0,0 +1,18 @@
+package android.hardware.usb;
+
+import java.util.HashMap;
+
+/**
+ * Stand-in for the android USB manager, every device can be opened
+ */
+public class UsbManager {
+	public static final String EXTRA_PERMISSION_GRANTED = "permission";
+	public static final String EXTRA_DEVICE = "device";
+	public static final String ACTION_USB_DEVICE_ATTACHED = "android.hardware.usb.action.USB_DEVICE_ATTACHED";
+	public static final String ACTION_USB_DEVICE_DETACHED = "android.hardware.usb.action.USB_DEVICE_DETACHED";
+
+	public UsbDeviceConnection openDevice(UsbDevice device) { return new UsbDeviceConnection(); }
+	public void requestPermission(UsbDevice device, android.app.PendingIntent pi) {}
+	public boolean hasPermission(UsbDevice device) { return true; }
+	public HashMap<String, UsbDevice> getDeviceList() { return new HashMap<String, UsbDevice>(); }
+}
@@ -0,0 +1,7 @@
+package android.net;
+
+/**
+ * Stand-in for the android uri
+ */
+public class Uri {
+}
@@ -0,0 +1,10 @@
+package android.os;
+
+/**
+ * Stand-in for the android clock
+ */
+public final class SystemClock {
+	public static long elapsedRealtimeNanos() { return System.nanoTime(); }
+	public static long elapsedRealtime() { return System.nanoTime() / 1000000; }
+	public static long uptimeMillis() { return System.nanoTime() / 1000000; }
+}
@@ -0,0 +1,25 @@
+package android.util;
+
+/**
+ * Stand-in for the android base64 codec, backed by the JDK one
+ */
+public class Base64 {
+	public static final int DEFAULT = 0;
+	public static final int NO_WRAP = 2;
+
+	public static String encodeToString(byte[] input, int flags) {
+		return encodeToString(input, 0, input.length, flags);
+	}
+
+	public static String encodeToString(byte[] input, int offset, int len, int flags) {
+		java.nio.ByteBuffer buffer = java.nio.ByteBuffer.wrap(input, offset, len);
+		java.nio.ByteBuffer encoded = (flags & NO_WRAP) != 0
+				? java.util.Base64.getEncoder().encode(buffer)
+				: java.util.Base64.getMimeEncoder().encode(buffer);
+		return new String(encoded.array(), 0, encoded.limit(), java.nio.charset.StandardCharsets.US_ASCII);
+	}
+
+	public static byte[] decode(String str, int flags) {
+		return java.util.Base64.getMimeDecoder().decode(str);
+	}
+}
@@ -0,0 +1,33 @@
+package android.util;
+
+/**
+ * Stand-in for the android pair, used by the usb-serial prober tables
+ */
+public class Pair<F, S> {
+	public final F first;
+	public final S second;
+
+	public Pair(F first, S second) {
+		this.first = first;
+		this.second = second;
+	}
+
+	public static <A, B> Pair<A, B> create(A a, B b) {
+		return new Pair<A, B>(a, b);
+	}
+
+	@Override
+	public boolean equals(Object o) {
+		if (!(o instanceof Pair)) {
+			return false;
+		}
+		Pair<?, ?> p = (Pair<?, ?>) o;
+		return (first == null ? p.first == null : first.equals(p.first))
+				&& (second == null ? p.second == null : second.equals(p.second));
+	}
+
+	@Override
+	public int hashCode() {
+		return (first == null ? 0 : first.hashCode()) ^ (second == null ? 0 : second.hashCode());
+	}
+}
@@ -0,0 +1,152 @@
+package fr.drangies.cordova.serial;
+
+/**
+ * Fixed capacity circular byte buffer, allocated once and reused
+ * Not thread safe, callers have to synchronize the accesses
+ * @author Xavier Seignard <xavier.seignard@gmail.com>
+ */
+class ByteRingBuffer {
+	// backing storage
+	private final byte[] buffer;
+	// index of the first readable byte
+	private int head;
+	// number of readable bytes
+	private int size;
+
+	/**
+	 * Create a new ring buffer
+	 * @param capacity the maximum number of bytes the buffer can hold
+	 */
+	ByteRingBuffer(int capacity) {
+		this.buffer = new byte[Math.max(1, capacity)];
+	}
+
+	/**
+	 * @return the number of readable bytes
+	 */
+	int size() {
+		return size;
+	}
+
+	/**
+	 * @return the maximum number of bytes the buffer can hold
+	 */
+	int capacity() {
+		return buffer.length;
+	}
+
+	/**
+	 * @return the number of bytes that can still be written
+	 */
+	int remaining() {
+		return buffer.length - size;
+	}
+
+	/**
+	 * @return true if there is nothing to read
+	 */
+	boolean isEmpty() {
+		return size == 0;
+	}
+
+	/**
+	 * Forget all the buffered bytes
+	 */
+	void clear() {
+		head = 0;
+		size = 0;
+	}
+
+	/**
+	 * Append bytes at the end of the buffer
+	 * @param src the source array
+	 * @param off offset in the source array
+	 * @param len number of bytes to append
+	 * @return the number of bytes actually appended, less than len if the buffer is full
+	 */
+	int put(byte[] src, int off, int len) {
+		int count = Math.min(len, remaining());
+		int tail = (head + size) % buffer.length;
+		int first = Math.min(count, buffer.length - tail);
+		System.arraycopy(src, off, buffer, tail, first);
+		System.arraycopy(src, off + first, buffer, 0, count - first);
+		size += count;
+		return count;
+	}
+
+	/**
+	 * Take bytes from the beginning of the buffer
+	 * @param dst the destination array
+	 * @param off offset in the destination array
+	 * @param len maximum number of bytes to take
+	 * @return the number of bytes actually taken
+	 */
+	int get(byte[] dst, int off, int len) {
+		int count = peek(dst, off, len);
+		skip(count);
+		return count;
+	}
+
+	/**
+	 * Copy bytes from the beginning of the buffer without consuming them
+	 * @param dst the destination array
+	 * @param off offset in the destination array
+	 * @param len maximum number of bytes to copy
+	 * @return the number of bytes actually copied
+	 */
+	int peek(byte[] dst, int off, int len) {
+		int count = Math.min(len, size);
+		int first = Math.min(count, buffer.length - head);
+		System.arraycopy(buffer, head, dst, off, first);
+		System.arraycopy(buffer, 0, dst, off + first, count - first);
+		return count;
+	}
+
+	/**
+	 * Read a single byte without consuming it
+	 * @param index position relative to the first readable byte
+	 * @return the unsigned byte value
+	 */
+	int peek(int index) {
+		return buffer[(head + index) % buffer.length] & 0xff;
+	}
+
+	/**
+	 * Discard bytes from the beginning of the buffer
+	 * @param len number of bytes to discard
+	 * @return the number of bytes actually discarded
+	 */
+	int skip(int len) {
+		int count = Math.min(len, size);
+		head = (head + count) % buffer.length;
+		size -= count;
+		if (size == 0) {
+			head = 0;
+		}
+		return count;
+	}
+
+	/**
+	 * Find the first occurrence of a byte
+	 * @param value the unsigned byte value to look for
+	 * @return the position relative to the first readable byte, -1 if not found
+	 */
+	int indexOf(int value) {
+		for (int i = 0; i < size; i++) {
+			if (peek(i) == value) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Take everything that is buffered
+	 * @return a new array containing all the readable bytes
+	 */
+	byte[] drain() {
+		byte[] data = new byte[size];
+		get(data, 0, size);
+		return data;
+	}
+}
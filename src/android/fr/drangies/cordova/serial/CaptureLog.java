@@ -0,0 +1,296 @@
+package fr.drangies.cordova.serial;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.Locale;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import android.util.Log;
+
+/**
+ * Capture of the traffic of a serial port into rotating memory-mapped log files.
+ * A file starts with a magic number and the wall clock time the capture started, then holds
+ * records made of the payload length (4 bytes), the direction (1 byte), the nanoseconds since
+ * the capture started (8 bytes) and the payload, all big endian. A zero length ends the file.
+ * @author Xavier Seignard <xavier.seignard@gmail.com>
+ */
+class CaptureLog {
+	// logging tag
+	private static final String TAG = CaptureLog.class.getSimpleName();
+	// record directions
+	static final int IN = 0;
+	static final int OUT = 1;
+	// default values
+	static final int DEFAULT_FILE_SIZE = 16 * 1024 * 1024;
+	static final int DEFAULT_MAX_FILES = 4;
+	private static final int MIN_FILE_SIZE = 64 * 1024;
+	// file layout
+	private static final long MAGIC = 0x4344565345523031L; // "CDVSER01"
+	private static final int FILE_HEADER_SIZE = 16;
+	private static final int RECORD_HEADER_SIZE = 13;
+
+	/**
+	 * Receive the records of a replayed log
+	 */
+	interface Listener {
+		void onRecord(int direction, long nanos, byte[] data);
+	}
+
+	// capture params
+	private final File dir;
+	private final String prefix;
+	private final int fileSize;
+	private final int maxFiles;
+	// when the capture started
+	private final long startMillis = System.currentTimeMillis();
+	private final long startNanos = System.nanoTime();
+	// the files of this capture, the oldest first
+	private final ArrayDeque<File> files = new ArrayDeque<File>();
+	private int sequence;
+	// the file being written, null once stopped
+	private RandomAccessFile file;
+	private MappedByteBuffer map;
+	// what has been captured
+	private long records;
+	private long bytes;
+
+	/**
+	 * Create a capture, call {@link #start()} to open its first file
+	 * @param dir the directory of the log files
+	 * @param prefix the name of the log files, followed by the capture start time and a sequence number
+	 * @param opts a {@link JSONObject} that may contain fileSize and maxFiles
+	 * @throws JSONException if an option has the wrong type
+	 */
+	CaptureLog(File dir, String prefix, JSONObject opts) throws JSONException {
+		this.dir = dir;
+		this.prefix = prefix;
+		this.fileSize = Math.max(MIN_FILE_SIZE, opts.has("fileSize") ? opts.getInt("fileSize") : DEFAULT_FILE_SIZE);
+		this.maxFiles = Math.max(1, opts.has("maxFiles") ? opts.getInt("maxFiles") : DEFAULT_MAX_FILES);
+	}
+
+	/**
+	 * Open the first file
+	 * @throws IOException if the file cannot be created
+	 */
+	synchronized void start() throws IOException {
+		if (!dir.isDirectory() && !dir.mkdirs()) {
+			throw new IOException("Cannot create " + dir);
+		}
+		rotate();
+	}
+
+	/**
+	 * @return the file being written, null once stopped
+	 */
+	synchronized File getCurrentFile() {
+		return file != null ? files.peekLast() : null;
+	}
+
+	/**
+	 * Append a record, split over two files if the current one is full.
+	 * A failure stops the capture, the traffic itself is not affected.
+	 * @param direction {@link #IN} or {@link #OUT}
+	 * @param data the buffer holding the payload
+	 * @param off offset of the payload in the buffer
+	 * @param len length of the payload
+	 */
+	synchronized void append(int direction, byte[] data, int off, int len) {
+		long nanos = System.nanoTime() - startNanos;
+		try {
+			while (map != null && len > 0) {
+				// keep room for the end marker
+				if (map.remaining() < RECORD_HEADER_SIZE + 1 + 4) {
+					rotate();
+					continue;
+				}
+				int count = Math.min(len, map.remaining() - RECORD_HEADER_SIZE - 4);
+				map.putInt(count);
+				map.put((byte) direction);
+				map.putLong(nanos);
+				map.put(data, off, count);
+				off += count;
+				len -= count;
+				bytes += count;
+				records++;
+			}
+		}
+		catch (IOException e) {
+			Log.d(TAG, "Capture stopped: " + e.getMessage());
+			close();
+		}
+	}
+
+	/**
+	 * Close the current file and start a new one, the oldest file is deleted beyond maxFiles
+	 * @throws IOException if the new file cannot be created
+	 */
+	synchronized void rotate() throws IOException {
+		close();
+		File next = new File(dir, String.format(Locale.US, "%s-%d-%04d.log", prefix, startMillis, sequence++));
+		file = new RandomAccessFile(next, "rw");
+		map = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, fileSize);
+		map.putLong(MAGIC);
+		map.putLong(startMillis);
+		files.add(next);
+		while (files.size() > maxFiles) {
+			File oldest = files.poll();
+			if (!oldest.delete()) {
+				Log.d(TAG, "Cannot delete " + oldest);
+			}
+		}
+	}
+
+	/**
+	 * Close the current file, truncated to what was written
+	 */
+	synchronized void close() {
+		if (file == null) {
+			return;
+		}
+		try {
+			int end = map.position();
+			if (map.remaining() >= 4) {
+				map.putInt(0);
+			}
+			map.force();
+			map = null;
+			file.getChannel().truncate(end);
+			file.close();
+		}
+		catch (IOException e) {
+			Log.d(TAG, e.getMessage());
+		}
+		file = null;
+		map = null;
+	}
+
+	/**
+	 * Describe the capture
+	 * @return a {@link JSONObject} with the files, the number of records and bytes, and whether it is still running
+	 * @throws JSONException never, org.json declares it
+	 */
+	synchronized JSONObject toJSON() throws JSONException {
+		JSONObject obj = new JSONObject();
+		JSONArray list = new JSONArray();
+		for (File f : files) {
+			list.put(f.getAbsolutePath());
+		}
+		obj.put("files", list);
+		obj.put("records", records);
+		obj.put("bytes", bytes);
+		obj.put("running", file != null);
+		return obj;
+	}
+
+	/**
+	 * Replay of log files, paced like the original traffic
+	 */
+	static class Replay implements Runnable {
+		private final File[] files;
+		private final double speed;
+		private final Listener listener;
+		private volatile boolean cancelled;
+		private IOException error;
+		// what has been replayed
+		private long records;
+		private long bytes;
+
+		/**
+		 * Create a replay
+		 * @param files the log files, in capture order
+		 * @param speed 1 for the original pace, 2 for twice as fast, 0 for no pause at all
+		 * @param listener receive the records
+		 */
+		Replay(File[] files, double speed, Listener listener) {
+			this.files = files;
+			this.speed = speed;
+			this.listener = listener;
+		}
+
+		void cancel() {
+			cancelled = true;
+		}
+
+		@Override
+		public void run() {
+			long first = -1;
+			long origin = System.nanoTime();
+			try {
+				for (File f : files) {
+					RandomAccessFile in = new RandomAccessFile(f, "r");
+					try {
+						ByteBuffer buffer = in.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, in.length());
+						if (buffer.remaining() < FILE_HEADER_SIZE || buffer.getLong() != MAGIC) {
+							throw new IOException("Not a capture log: " + f);
+						}
+						buffer.getLong();
+						while (!cancelled && buffer.remaining() >= RECORD_HEADER_SIZE) {
+							int len = buffer.getInt();
+							if (len <= 0 || buffer.remaining() < len + RECORD_HEADER_SIZE - 4) {
+								break;
+							}
+							int direction = buffer.get();
+							long nanos = buffer.getLong();
+							byte[] data = new byte[len];
+							buffer.get(data);
+							if (first < 0) {
+								first = nanos;
+							}
+							if (speed > 0) {
+								// sleep in short steps to notice a cancellation
+								long due = origin + (long) ((nanos - first) / speed);
+								long wait;
+								while (!cancelled && (wait = due - System.nanoTime()) > 0) {
+									Thread.sleep(Math.min(100, wait / 1000000), (int) (wait % 1000000));
+								}
+							}
+							if (cancelled) {
+								break;
+							}
+							listener.onRecord(direction, nanos, data);
+							records++;
+							bytes += len;
+						}
+					}
+					finally {
+						in.close();
+					}
+				}
+			}
+			catch (IOException e) {
+				error = e;
+			}
+			catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+
+		/**
+		 * @return the failure that ended the replay, null if none
+		 */
+		IOException getError() {
+			return error;
+		}
+
+		/**
+		 * Describe what has been replayed
+		 * @return a {@link JSONObject} with the number of records and bytes, and whether it was cancelled
+		 * @throws JSONException never, org.json declares it
+		 */
+		JSONObject toJSON() throws JSONException {
+			JSONObject obj = new JSONObject();
+			obj.put("records", records);
+			obj.put("bytes", bytes);
+			obj.put("cancelled", cancelled);
+			return obj;
+		}
+	}
+}
@@ -0,0 +1,238 @@
+package fr.drangies.cordova.serial;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.cordova.CallbackContext;
+import org.apache.cordova.PluginResult;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Logical channels multiplexed over one port.
+ * Every frame carries a 3 byte header, the channel id then the length of the payload on 2 bytes,
+ * big endian. Each channel has its own read callback, and its own write queue with a priority:
+ * the writes of a channel are split into frames of at most channelMaxPayload bytes, queued at
+ * the priority of the channel, so that the frames of a more urgent channel go out between them.
+ * The header carries no sync byte, the link has to be reliable.
+ * @author Xavier Seignard <xavier.seignard@gmail.com>
+ */
+class ChannelMux {
+	// default values
+	static final int DEFAULT_MAX_PAYLOAD = 1024;
+	static final int HEADER_SIZE = 3;
+
+	/**
+	 * A logical channel, with its read callback, write queue and counters
+	 */
+	static class Channel {
+		final int id;
+		final int priority;
+		final int queueSize;
+		// callback that will be used to send back the data of this channel to the cordova app
+		volatile CallbackContext callback;
+		// number of bytes of the channel waiting in the write queue
+		private int queuedBytes;
+		// counters
+		final AtomicLong framesIn = new AtomicLong();
+		final AtomicLong bytesIn = new AtomicLong();
+		final AtomicLong framesOut = new AtomicLong();
+		final AtomicLong bytesOut = new AtomicLong();
+		// frames received while no callback was registered
+		final AtomicLong dropped = new AtomicLong();
+
+		Channel(JSONObject spec, int defaultQueueSize) throws JSONException {
+			id = spec.getInt("id");
+			if (id < 0 || id > 0xff) {
+				throw new JSONException("A channel id is a byte: " + id);
+			}
+			priority = spec.has("priority") ? spec.getInt("priority") : SerialWriter.DEFAULT_PRIORITY;
+			if (priority < 0 || priority >= SerialWriter.PRIORITIES) {
+				throw new JSONException("A channel priority goes from 0 to " + (SerialWriter.PRIORITIES - 1));
+			}
+			queueSize = Math.max(1, spec.has("queueSize") ? spec.getInt("queueSize") : defaultQueueSize);
+		}
+
+		private synchronized boolean reserve(int length) {
+			if (queuedBytes > 0 && queuedBytes + length > queueSize) {
+				return false;
+			}
+			queuedBytes += length;
+			return true;
+		}
+
+		private synchronized void release(int length) {
+			queuedBytes -= length;
+		}
+
+		synchronized JSONObject toJSON() throws JSONException {
+			JSONObject obj = new JSONObject();
+			obj.put("priority", priority);
+			obj.put("framesIn", framesIn.get());
+			obj.put("bytesIn", bytesIn.get());
+			obj.put("framesOut", framesOut.get());
+			obj.put("bytesOut", bytesOut.get());
+			obj.put("dropped", dropped.get());
+			obj.put("queuedBytes", queuedBytes);
+			return obj;
+		}
+	}
+
+	private final Map<Integer, Channel> channels;
+	private final int maxPayload;
+	// frame being decoded, only touched by the read thread
+	private final byte[] header = new byte[HEADER_SIZE];
+	private int headerLength;
+	private byte[] payload;
+	private int payloadLength;
+	// frames for a channel that does not exist
+	final AtomicLong unknownFrames = new AtomicLong();
+
+	/**
+	 * Create the channels described by the openSerial options
+	 * @param opts a {@link JSONObject} that may contain channels, an array of objects with an id, a priority and a queueSize,
+	 *             and channelMaxPayload
+	 * @return the channels, null if none are requested
+	 * @throws JSONException if an option has the wrong type or a channel is invalid
+	 */
+	static ChannelMux create(JSONObject opts) throws JSONException {
+		if (!opts.has("channels")) {
+			return null;
+		}
+		return new ChannelMux(opts);
+	}
+
+	private ChannelMux(JSONObject opts) throws JSONException {
+		int defaultQueueSize = opts.has("writeQueueSize") ? opts.getInt("writeQueueSize") : SerialWriter.DEFAULT_QUEUE_SIZE;
+		maxPayload = Math.max(1, Math.min(0xffff, opts.has("channelMaxPayload") ? opts.getInt("channelMaxPayload") : DEFAULT_MAX_PAYLOAD));
+		Map<Integer, Channel> map = new HashMap<Integer, Channel>();
+		JSONArray list = opts.getJSONArray("channels");
+		for (int i = 0; i < list.length(); i++) {
+			Channel channel = new Channel(list.getJSONObject(i), defaultQueueSize);
+			if (map.put(channel.id, channel) != null) {
+				throw new JSONException("Duplicate channel: " + channel.id);
+			}
+		}
+		channels = Collections.unmodifiableMap(map);
+	}
+
+	/**
+	 * @return the channel with the given id, null if there is none
+	 */
+	Channel get(int id) {
+		return channels.get(id);
+	}
+
+	/**
+	 * Forget the frame being decoded, e.g. once the port is reopened
+	 */
+	void reset() {
+		headerLength = 0;
+		payload = null;
+		payloadLength = 0;
+	}
+
+	/**
+	 * Split incoming data into frames and send each one to the callback of its channel
+	 * @param data the bytes read from the serial port
+	 */
+	void decode(byte[] data) {
+		int i = 0;
+		while (i < data.length) {
+			if (headerLength < HEADER_SIZE) {
+				header[headerLength++] = data[i++];
+				if (headerLength == HEADER_SIZE) {
+					payload = new byte[((header[1] & 0xff) << 8) | (header[2] & 0xff)];
+					payloadLength = 0;
+				}
+			}
+			else {
+				int count = Math.min(payload.length - payloadLength, data.length - i);
+				System.arraycopy(data, i, payload, payloadLength, count);
+				payloadLength += count;
+				i += count;
+			}
+			if (headerLength == HEADER_SIZE && payloadLength == payload.length) {
+				dispatch(header[0] & 0xff, payload);
+				reset();
+			}
+		}
+	}
+
+	private void dispatch(int id, byte[] frame) {
+		Channel channel = channels.get(id);
+		if (channel == null) {
+			unknownFrames.incrementAndGet();
+			return;
+		}
+		channel.framesIn.incrementAndGet();
+		channel.bytesIn.addAndGet(frame.length);
+		CallbackContext callback = channel.callback;
+		if (callback == null) {
+			channel.dropped.incrementAndGet();
+			return;
+		}
+		PluginResult result = new PluginResult(PluginResult.Status.OK, frame);
+		result.setKeepCallback(true);
+		callback.sendPluginResult(result);
+	}
+
+	/**
+	 * Queue a write on a channel, split into frames
+	 * @param writer the write queue of the port
+	 * @param channel the channel to write to
+	 * @param data the payload
+	 * @param callback notified once all the frames are written, or the first one fails
+	 */
+	void write(SerialWriter writer, final Channel channel, final byte[] data, final SerialWriter.Callback callback) {
+		if (!channel.reserve(data.length)) {
+			callback.onError("Write queue full.");
+			return;
+		}
+		int frames = Math.max(1, (data.length + maxPayload - 1) / maxPayload);
+		// frames left to write, -1 once one has failed
+		final AtomicInteger left = new AtomicInteger(frames);
+		for (int offset = 0, n = 0; n < frames; n++, offset += maxPayload) {
+			final int length = Math.min(maxPayload, data.length - offset);
+			byte[] frame = new byte[HEADER_SIZE + length];
+			frame[0] = (byte) channel.id;
+			frame[1] = (byte) (length >> 8);
+			frame[2] = (byte) length;
+			System.arraycopy(data, offset, frame, HEADER_SIZE, length);
+			writer.write(frame, new SerialWriter.Callback() {
+				@Override
+				public void onWritten(int count) {
+					channel.release(length);
+					channel.framesOut.incrementAndGet();
+					channel.bytesOut.addAndGet(length);
+					if (left.decrementAndGet() == 0) {
+						callback.onWritten(data.length);
+					}
+				}
+				@Override
+				public void onError(String message) {
+					channel.release(length);
+					if (left.getAndSet(-1) > 0) {
+						callback.onError(message);
+					}
+				}
+			}, channel.priority, false);
+		}
+	}
+
+	/**
+	 * @return the counters of every channel, by id
+	 * @throws JSONException never, org.json declares it
+	 */
+	JSONObject toJSON() throws JSONException {
+		JSONObject obj = new JSONObject();
+		for (Channel channel : channels.values()) {
+			obj.put(String.valueOf(channel.id), channel.toJSON());
+		}
+		return obj;
+	}
+}
@@ -0,0 +1,333 @@
+package fr.drangies.cordova.serial;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import com.hoho.android.usbserial.driver.ProbeTable;
+import com.hoho.android.usbserial.driver.UsbSerialDriver;
+import com.hoho.android.usbserial.driver.UsbSerialProber;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.hardware.usb.UsbDevice;
+import android.hardware.usb.UsbDeviceConnection;
+import android.hardware.usb.UsbManager;
+import android.util.Log;
+
+/**
+ * Cache of the attached USB serial devices.
+ * The devices are enumerated once, then the cache follows the attach and detach broadcasts,
+ * probing only the device that changed. The probers live as long as the cache, the products
+ * added from javascript are probed before the default ones. It is also the {@link PortProvider}
+ * of the USB devices.
+ * @author Xavier Seignard <xavier.seignard@gmail.com>
+ */
+class DeviceRegistry implements PortProvider {
+	// logging tag
+	private final String TAG = DeviceRegistry.class.getSimpleName();
+
+	/**
+	 * Notified when a device comes or goes, after the cache is updated
+	 */
+	interface Listener {
+		void onAttached(UsbDevice device);
+		void onDetached(UsbDevice device);
+	}
+
+	/**
+	 * A cached device
+	 */
+	static class Entry {
+		final UsbSerialDriver driver;
+		// null until it can be read, android 10 needs the permission for that
+		String serialNumber;
+
+		Entry(UsbSerialDriver driver) {
+			this.driver = driver;
+		}
+
+		UsbDevice getDevice() {
+			return driver.getDevice();
+		}
+
+		/**
+		 * @return the key of the device in the index, vid:pid:serial
+		 */
+		String getKey() {
+			UsbDevice device = driver.getDevice();
+			return key(device.getVendorId(), device.getProductId(), serialNumber);
+		}
+	}
+
+	private final UsbManager manager;
+	// products added with the vid, pid and driver options, probed first
+	private final ProbeTable customTable = new ProbeTable();
+	private final UsbSerialProber customProber = new UsbSerialProber(customTable);
+	private final UsbSerialProber defaultProber = UsbSerialProber.getDefaultProber();
+	// the drivers of the attached devices, by device id, in enumeration order
+	private final Map<Integer, Entry> devices = new LinkedHashMap<Integer, Entry>();
+	// true when the cache has to be built again
+	private boolean stale = true;
+	// optional observer of the attach and detach broadcasts
+	private volatile Listener listener;
+
+	// keep the cache up to date while devices come and go
+	private final BroadcastReceiver usbReceiver = new BroadcastReceiver() {
+		@Override
+		public void onReceive(Context context, Intent intent) {
+			UsbDevice device = intent.getParcelableExtra(UsbManager.EXTRA_DEVICE);
+			if (device == null) {
+				return;
+			}
+			Listener observer = listener;
+			if (UsbManager.ACTION_USB_DEVICE_ATTACHED.equals(intent.getAction())) {
+				Log.d(TAG, "Device attached: " + device.getDeviceId());
+				attach(device);
+				if (observer != null) {
+					observer.onAttached(device);
+				}
+			}
+			else if (UsbManager.ACTION_USB_DEVICE_DETACHED.equals(intent.getAction())) {
+				Log.d(TAG, "Device detached: " + device.getDeviceId());
+				detach(device);
+				if (observer != null) {
+					observer.onDetached(device);
+				}
+			}
+		}
+	};
+
+	/**
+	 * Create a cache, it is built on first use
+	 * @param manager the {@link UsbManager} to enumerate the devices with
+	 */
+	DeviceRegistry(UsbManager manager) {
+		this.manager = manager;
+	}
+
+	/**
+	 * Build the key of a device in the index
+	 */
+	static String key(int vid, int pid, String serialNumber) {
+		return vid + ":" + pid + ":" + (serialNumber != null ? serialNumber : "");
+	}
+
+	UsbManager getManager() {
+		return manager;
+	}
+
+	void setListener(Listener listener) {
+		this.listener = listener;
+	}
+
+	/**
+	 * Start following the attach and detach broadcasts
+	 * @param context the context to register the receiver on
+	 */
+	void register(Context context) {
+		IntentFilter filter = new IntentFilter();
+		filter.addAction(UsbManager.ACTION_USB_DEVICE_ATTACHED);
+		filter.addAction(UsbManager.ACTION_USB_DEVICE_DETACHED);
+		context.registerReceiver(usbReceiver, filter);
+	}
+
+	/**
+	 * Stop following the attach and detach broadcasts
+	 * @param context the context the receiver was registered on
+	 */
+	void unregister(Context context) {
+		try {
+			context.unregisterReceiver(usbReceiver);
+		}
+		catch (IllegalArgumentException e) {
+			// not registered
+		}
+	}
+
+	/**
+	 * Probe a product with the given driver, before the default drivers
+	 * @param vid the vendor id
+	 * @param pid the product id
+	 * @param driverClass the driver to use
+	 */
+	synchronized void addProduct(int vid, int pid, Class<? extends UsbSerialDriver> driverClass) {
+		if (customTable.findDriver(vid, pid) != driverClass) {
+			customTable.addProduct(vid, pid, driverClass);
+			// the devices of this product may have been probed with another driver
+			stale = true;
+		}
+	}
+
+	/**
+	 * Forget the cache, the devices are enumerated again on next use
+	 */
+	synchronized void invalidate() {
+		stale = true;
+	}
+
+	/**
+	 * @return the cached devices, in enumeration order
+	 */
+	synchronized List<Entry> getDevices() {
+		refresh();
+		return new ArrayList<Entry>(devices.values());
+	}
+
+	/**
+	 * @param deviceId the android id of the device
+	 * @return the cached device, null if not attached or not supported
+	 */
+	synchronized Entry get(int deviceId) {
+		refresh();
+		return devices.get(deviceId);
+	}
+
+	/**
+	 * Find the devices matching a product and serial number
+	 * @param vid the vendor id, -1 for any
+	 * @param pid the product id, -1 for any
+	 * @param serialNumber the serial number, null for any
+	 * @return the matching devices, in enumeration order
+	 */
+	synchronized List<Entry> find(int vid, int pid, String serialNumber) {
+		refresh();
+		List<Entry> found = new ArrayList<Entry>();
+		for (Entry entry : devices.values()) {
+			UsbDevice device = entry.getDevice();
+			if ((vid < 0 || device.getVendorId() == vid)
+					&& (pid < 0 || device.getProductId() == pid)
+					&& (serialNumber == null || serialNumber.equals(readSerialNumber(entry)))) {
+				found.add(entry);
+			}
+		}
+		return found;
+	}
+
+	/**
+	 * Describe the cached devices
+	 * @return a {@link JSONArray} of objects with deviceId, vid, pid, serialNumber, key, driver, ports and hasPermission
+	 * @throws JSONException never, org.json declares it
+	 */
+	synchronized JSONArray toJSON() throws JSONException {
+		refresh();
+		JSONArray list = new JSONArray();
+		for (Entry entry : devices.values()) {
+			UsbDevice device = entry.getDevice();
+			JSONObject obj = new JSONObject();
+			obj.put("deviceId", device.getDeviceId());
+			obj.put("vid", device.getVendorId());
+			obj.put("pid", device.getProductId());
+			String serialNumber = readSerialNumber(entry);
+			if (serialNumber != null) {
+				obj.put("serialNumber", serialNumber);
+			}
+			obj.put("key", entry.getKey());
+			obj.put("driver", entry.driver.getClass().getSimpleName());
+			obj.put("ports", entry.driver.getPorts().size());
+			obj.put("hasPermission", manager.hasPermission(device));
+			list.put(obj);
+		}
+		return list;
+	}
+
+	/**
+	 * Enumerate the devices if the cache is stale
+	 */
+	private void refresh() {
+		if (!stale) {
+			return;
+		}
+		devices.clear();
+		for (UsbDevice device : manager.getDeviceList().values()) {
+			UsbSerialDriver driver = probe(device);
+			if (driver != null) {
+				devices.put(device.getDeviceId(), new Entry(driver));
+			}
+		}
+		stale = false;
+		Log.d(TAG, "Devices enumerated: " + devices.size());
+	}
+
+	private synchronized void attach(UsbDevice device) {
+		if (stale) {
+			// the next use enumerates everything anyway
+			return;
+		}
+		UsbSerialDriver driver = probe(device);
+		if (driver != null) {
+			devices.put(device.getDeviceId(), new Entry(driver));
+		}
+	}
+
+	private synchronized void detach(UsbDevice device) {
+		devices.remove(device.getDeviceId());
+	}
+
+	/**
+	 * @return the driver of the device, from the custom products first, null if not supported
+	 */
+	private UsbSerialDriver probe(UsbDevice device) {
+		UsbSerialDriver driver = customProber.probeDevice(device);
+		return driver != null ? driver : defaultProber.probeDevice(device);
+	}
+
+	/**
+	 * Read the serial number once, it needs the permission on recent android versions
+	 */
+	private String readSerialNumber(Entry entry) {
+		if (entry.serialNumber == null) {
+			entry.serialNumber = serialNumberOf(entry.getDevice());
+		}
+		return entry.serialNumber;
+	}
+
+	@Override
+	public int getDeviceId(UsbSerialDriver driver) {
+		return driver.getDevice().getDeviceId();
+	}
+
+	@Override
+	public String getSerialNumber(UsbSerialDriver driver) {
+		return serialNumberOf(driver.getDevice());
+	}
+
+	@Override
+	public boolean hasPermission(UsbSerialDriver driver) {
+		return manager.hasPermission(driver.getDevice());
+	}
+
+	@Override
+	public UsbDeviceConnection openDevice(UsbSerialDriver driver) throws IOException {
+		UsbDeviceConnection connection = manager.openDevice(driver.getDevice());
+		if (connection == null) {
+			throw new IOException("Cannot connect to the device!");
+		}
+		return connection;
+	}
+
+	/**
+	 * Read the serial number of a device
+	 * @return the serial number, null if it cannot be read yet
+	 */
+	static String serialNumberOf(UsbDevice device) {
+		try {
+			return device.getSerialNumber();
+		}
+		catch (SecurityException e) {
+			// no permission yet, try again later
+		}
+		catch (NoSuchMethodError e) {
+			// before android 5
+		}
+		return null;
+	}
+}
@@ -0,0 +1,279 @@
+package fr.drangies.cordova.serial;
+
+import java.io.IOException;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import com.hoho.android.usbserial.driver.Cp21xxSerialDriver;
+import com.hoho.android.usbserial.driver.FtdiSerialDriver;
+import com.hoho.android.usbserial.driver.UsbSerialDriver;
+import com.hoho.android.usbserial.driver.UsbSerialPort;
+
+import android.hardware.usb.UsbDeviceConnection;
+import android.util.Log;
+
+/**
+ * Flow control of a port: none, rtscts, dtrdsr or xonxoff.
+ * FTDI and CP210x chips are configured to do the flow control themselves. The other chips
+ * get it from the write pacer: the writer sends small chunks and waits before each one while
+ * the device holds CTS or DSR low, or until it sends XON after an XOFF. The usb-serial driver
+ * of some chips cannot read the control lines and always reports them low, so the pacer only
+ * honors a line once it has seen it high.
+ * @author Xavier Seignard <xavier.seignard@gmail.com>
+ */
+class FlowControl {
+	// logging tag
+	private static final String TAG = FlowControl.class.getSimpleName();
+	// modes
+	static final String NONE = "none";
+	static final String RTS_CTS = "rtscts";
+	static final String DTR_DSR = "dtrdsr";
+	static final String XON_XOFF = "xonxoff";
+	// in-band control characters
+	static final byte XON = 0x11;
+	static final byte XOFF = 0x13;
+	// default values
+	static final int DEFAULT_CHUNK_SIZE = 256;
+	static final int DEFAULT_TIMEOUT = 5000;
+	// how often a low line is read again
+	private static final long POLL_MILLIS = 1;
+	// FTDI vendor request, the handshake goes in the high byte of the index
+	private static final int FTDI_SET_FLOW_CTRL = 0x02;
+	private static final int FTDI_RTS_CTS_HS = 0x1 << 8;
+	private static final int FTDI_DTR_DSR_HS = 0x2 << 8;
+	private static final int FTDI_XON_XOFF_HS = 0x4 << 8;
+	// CP210x vendor request and the bits of its flow control structure
+	private static final int CP210X_SET_FLOW = 0x13;
+	private static final int CP210X_DTR_ACTIVE = 0x01;
+	private static final int CP210X_DTR_HANDSHAKE = 0x02;
+	private static final int CP210X_CTS_HANDSHAKE = 0x08;
+	private static final int CP210X_DSR_HANDSHAKE = 0x10;
+	private static final int CP210X_AUTO_TRANSMIT = 0x01;
+	private static final int CP210X_AUTO_RECEIVE = 0x02;
+	private static final int CP210X_RTS_ACTIVE = 0x40;
+	private static final int CP210X_RTS_FLOW = 0x80;
+	private static final int USB_TIMEOUT = 1000;
+
+	private final String mode;
+	// largest write between two checks of the pacer
+	private final int chunkSize;
+	// longest wait for the device to accept data
+	private final long timeout;
+	// true when the chip does the flow control itself
+	private volatile boolean hardware;
+	// true between an XOFF and an XON
+	private boolean stopped;
+	// true once the watched line was seen high
+	private volatile boolean lineSeen;
+	// incremented to release the writer waiting for the device
+	private int generation;
+
+	/**
+	 * Read the flow control options
+	 * @param opts a {@link JSONObject} that may contain flowControl, flowChunkSize and flowTimeout
+	 * @throws JSONException if an option has the wrong type or flowControl is unknown
+	 */
+	FlowControl(JSONObject opts) throws JSONException {
+		mode = opts.has("flowControl") ? opts.getString("flowControl") : NONE;
+		if (!NONE.equals(mode) && !RTS_CTS.equals(mode) && !DTR_DSR.equals(mode) && !XON_XOFF.equals(mode)) {
+			throw new JSONException("Unknown flowControl: " + mode);
+		}
+		chunkSize = Math.max(1, opts.has("flowChunkSize") ? opts.getInt("flowChunkSize") : DEFAULT_CHUNK_SIZE);
+		timeout = Math.max(1, opts.has("flowTimeout") ? opts.getLong("flowTimeout") : DEFAULT_TIMEOUT);
+	}
+
+	String getMode() {
+		return mode;
+	}
+
+	boolean isHardware() {
+		return hardware;
+	}
+
+	/**
+	 * @return true if the writes have to go through {@link #await(UsbSerialPort)}
+	 */
+	boolean isPaced() {
+		return !NONE.equals(mode) && !hardware;
+	}
+
+	int getChunkSize() {
+		return chunkSize;
+	}
+
+	/**
+	 * Set up the flow control of a freshly opened port
+	 * @param connection the connection the port was opened with
+	 * @param driver the driver of the port
+	 * @param port the port
+	 * @throws IOException if a control line cannot be set
+	 */
+	void configure(UsbDeviceConnection connection, UsbSerialDriver driver, UsbSerialPort port) throws IOException {
+		synchronized (this) {
+			stopped = false;
+			generation++;
+			notifyAll();
+		}
+		lineSeen = false;
+		hardware = false;
+		if (NONE.equals(mode)) {
+			return;
+		}
+		// tell the device it may send
+		if (RTS_CTS.equals(mode)) {
+			port.setRTS(true);
+		}
+		else if (DTR_DSR.equals(mode)) {
+			port.setDTR(true);
+		}
+		if (driver instanceof FtdiSerialDriver) {
+			int handshake = RTS_CTS.equals(mode) ? FTDI_RTS_CTS_HS : DTR_DSR.equals(mode) ? FTDI_DTR_DSR_HS : FTDI_XON_XOFF_HS;
+			int chars = XON_XOFF.equals(mode) ? (XOFF << 8) | XON : 0;
+			hardware = connection.controlTransfer(0x40, FTDI_SET_FLOW_CTRL, chars,
+					handshake | (port.getPortNumber() + 1), null, 0, USB_TIMEOUT) >= 0;
+		}
+		else if (driver instanceof Cp21xxSerialDriver) {
+			int control;
+			int replace;
+			if (RTS_CTS.equals(mode)) {
+				control = CP210X_DTR_ACTIVE | CP210X_CTS_HANDSHAKE;
+				replace = CP210X_RTS_FLOW;
+			}
+			else if (DTR_DSR.equals(mode)) {
+				control = CP210X_DTR_HANDSHAKE | CP210X_DSR_HANDSHAKE;
+				replace = CP210X_RTS_ACTIVE;
+			}
+			else {
+				control = CP210X_DTR_ACTIVE;
+				replace = CP210X_RTS_ACTIVE | CP210X_AUTO_TRANSMIT | CP210X_AUTO_RECEIVE;
+			}
+			// ulControlHandshake, ulFlowReplace, ulXonLimit and ulXoffLimit, little endian
+			byte[] flow = new byte[16];
+			putInt(flow, 0, control);
+			putInt(flow, 4, replace);
+			putInt(flow, 8, 128);
+			putInt(flow, 12, 128);
+			hardware = connection.controlTransfer(0x41, CP210X_SET_FLOW, 0,
+					port.getPortNumber(), flow, flow.length, USB_TIMEOUT) >= 0;
+		}
+		Log.d(TAG, "Flow control " + mode + (hardware ? " by the chip" : " by the write pacer"));
+	}
+
+	private static void putInt(byte[] buf, int off, int value) {
+		for (int i = 0; i < 4; i++) {
+			buf[off + i] = (byte) (value >> (8 * i));
+		}
+	}
+
+	/**
+	 * Ask the device to stop sending, or to send again, while the reads are held.
+	 * A chip doing the flow control itself stops the device once its buffer is full, the
+	 * write pacer lowers RTS or DTR, or sends XOFF, itself.
+	 * @param port the port
+	 * @param hold true to stop the device
+	 * @throws IOException if the line cannot be set or the character written
+	 */
+	void holdInput(UsbSerialPort port, boolean hold) throws IOException {
+		if (!isPaced()) {
+			return;
+		}
+		if (RTS_CTS.equals(mode)) {
+			port.setRTS(!hold);
+		}
+		else if (DTR_DSR.equals(mode)) {
+			port.setDTR(!hold);
+		}
+		else {
+			port.write(new byte[] { hold ? XOFF : XON }, USB_TIMEOUT);
+		}
+	}
+
+	/**
+	 * Remove the XON and XOFF characters from the incoming data and follow what they say, in xonxoff mode
+	 * @param buf the buffer holding the data, compacted in place
+	 * @param off offset of the data in the buffer
+	 * @param len length of the data
+	 * @return the length of the data left
+	 */
+	int filterInput(byte[] buf, int off, int len) {
+		if (!XON_XOFF.equals(mode)) {
+			return len;
+		}
+		int out = off;
+		Boolean last = null;
+		for (int i = off; i < off + len; i++) {
+			byte b = buf[i];
+			if (b == XON || b == XOFF) {
+				last = b == XOFF;
+			}
+			else {
+				buf[out++] = b;
+			}
+		}
+		if (last != null) {
+			synchronized (this) {
+				stopped = last;
+				notifyAll();
+			}
+		}
+		return out - off;
+	}
+
+	/**
+	 * Wait until the device accepts data
+	 * @param port the port to write to
+	 * @throws IOException if the device did not accept data in time, or the wait was released
+	 */
+	void await(UsbSerialPort port) throws IOException {
+		long deadline = System.currentTimeMillis() + timeout;
+		synchronized (this) {
+			int entered = generation;
+			while (!clearToSend(port)) {
+				long remaining = deadline - System.currentTimeMillis();
+				if (generation != entered) {
+					throw new IOException("Writing a closed port.");
+				}
+				if (remaining <= 0) {
+					throw new IOException("Flow control timeout.");
+				}
+				try {
+					// an XON wakes the wait right away, the lines are read again every POLL_MILLIS
+					wait(XON_XOFF.equals(mode) ? remaining : Math.min(POLL_MILLIS, remaining));
+				}
+				catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new IOException("Write interrupted.");
+				}
+			}
+		}
+	}
+
+	private boolean clearToSend(UsbSerialPort port) throws IOException {
+		if (stopped) {
+			return false;
+		}
+		boolean line;
+		if (RTS_CTS.equals(mode)) {
+			line = port.getCTS();
+		}
+		else if (DTR_DSR.equals(mode)) {
+			line = port.getDSR();
+		}
+		else {
+			return true;
+		}
+		if (line) {
+			lineSeen = true;
+		}
+		return line || !lineSeen;
+	}
+
+	/**
+	 * Release the writer waiting for the device, its write fails
+	 */
+	synchronized void release() {
+		generation++;
+		notifyAll();
+	}
+}
@@ -0,0 +1,304 @@
+package fr.drangies.cordova.serial;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Split the stream read from the serial port into frames.
+ * The decoders work over a single reusable frame buffer, a complete frame is handed to the
+ * {@link Listener} which has to copy it before the next call. Frames longer than the maximum
+ * length are dropped.
+ * @author Xavier Seignard <xavier.seignard@gmail.com>
+ */
+abstract class FrameDecoder {
+	static final int DEFAULT_MAX_LENGTH = 4096;
+
+	/**
+	 * Receive the complete frames
+	 */
+	interface Listener {
+		void onFrame(byte[] buffer, int offset, int length);
+	}
+
+	// the frame being decoded
+	protected final byte[] frame;
+	protected int length;
+	// true while dropping the rest of a frame that is too long
+	protected boolean dropping;
+
+	FrameDecoder(int maxLength) {
+		this.frame = new byte[maxLength];
+	}
+
+	/**
+	 * Create the decoder described by the openSerial options
+	 * @param opts a {@link JSONObject} that may contain framing and the related options
+	 * @return the decoder, null if no framing is requested
+	 * @throws JSONException if an option has the wrong type or the framing is unknown
+	 */
+	static FrameDecoder create(JSONObject opts) throws JSONException {
+		if (!opts.has("framing")) {
+			return null;
+		}
+		String framing = opts.getString("framing");
+		// batched frames carry their length on 2 bytes
+		int maxLength = Math.max(1, Math.min(0xffff, opts.has("frameMaxLength") ? opts.getInt("frameMaxLength") : DEFAULT_MAX_LENGTH));
+		if ("delimiter".equals(framing)) {
+			int delimiter = opts.has("frameDelimiter") ? opts.getInt("frameDelimiter") : '\n';
+			return new DelimiterDecoder(maxLength, delimiter & 0xff);
+		}
+		else if ("fixed".equals(framing)) {
+			int length = opts.getInt("frameLength");
+			if (length < 1 || length > 0xffff) {
+				throw new JSONException("frameLength must be between 1 and 65535");
+			}
+			return new FixedLengthDecoder(length);
+		}
+		else if ("length".equals(framing)) {
+			int size = opts.has("frameLengthSize") ? opts.getInt("frameLengthSize") : 1;
+			if (size != 1 && size != 2 && size != 4) {
+				throw new JSONException("frameLengthSize must be 1, 2 or 4");
+			}
+			boolean bigEndian = opts.has("frameLengthBigEndian") ? opts.getBoolean("frameLengthBigEndian") : true;
+			boolean includesHeader = opts.has("frameLengthIncludesHeader") && opts.getBoolean("frameLengthIncludesHeader");
+			return new LengthPrefixedDecoder(maxLength, size, bigEndian, includesHeader);
+		}
+		else if ("slip".equals(framing)) {
+			return new SlipDecoder(maxLength);
+		}
+		else if ("cobs".equals(framing)) {
+			return new CobsDecoder(maxLength);
+		}
+		throw new JSONException("Unknown framing: " + framing);
+	}
+
+	/**
+	 * Decode incoming data
+	 * @param data the bytes read from the serial port
+	 * @param listener receive the frames completed by these bytes
+	 */
+	void decode(byte[] data, Listener listener) {
+		for (int i = 0; i < data.length; i++) {
+			decode(data[i] & 0xff, listener);
+		}
+	}
+
+	/**
+	 * Decode one byte
+	 * @param b the unsigned byte value
+	 * @param listener receive the frame if this byte completes it
+	 */
+	protected abstract void decode(int b, Listener listener);
+
+	/**
+	 * Add a byte to the current frame, start dropping the frame if it gets too long
+	 */
+	protected void append(int b) {
+		if (dropping) {
+			return;
+		}
+		if (length == frame.length) {
+			dropping = true;
+			return;
+		}
+		frame[length++] = (byte) b;
+	}
+
+	/**
+	 * End the current frame, it is delivered unless it was too long
+	 */
+	protected void emit(Listener listener) {
+		if (!dropping) {
+			listener.onFrame(frame, 0, length);
+		}
+		reset();
+	}
+
+	/**
+	 * Forget the current frame
+	 */
+	void reset() {
+		length = 0;
+		dropping = false;
+	}
+
+	/**
+	 * Frames terminated by a delimiter byte, the delimiter is not part of the frame
+	 */
+	static class DelimiterDecoder extends FrameDecoder {
+		private final int delimiter;
+
+		DelimiterDecoder(int maxLength, int delimiter) {
+			super(maxLength);
+			this.delimiter = delimiter;
+		}
+
+		@Override
+		protected void decode(int b, Listener listener) {
+			if (b == delimiter) {
+				emit(listener);
+			}
+			else {
+				append(b);
+			}
+		}
+	}
+
+	/**
+	 * Frames of a fixed number of bytes
+	 */
+	static class FixedLengthDecoder extends FrameDecoder {
+		FixedLengthDecoder(int frameLength) {
+			super(frameLength);
+		}
+
+		@Override
+		protected void decode(int b, Listener listener) {
+			append(b);
+			if (length == frame.length) {
+				emit(listener);
+			}
+		}
+	}
+
+	/**
+	 * Frames starting with a 1, 2 or 4 bytes length header, the header is not part of the frame
+	 */
+	static class LengthPrefixedDecoder extends FrameDecoder {
+		private final int headerSize;
+		private final boolean bigEndian;
+		private final boolean includesHeader;
+		// header decoding state
+		private int headerRead;
+		private long payloadLength;
+
+		LengthPrefixedDecoder(int maxLength, int headerSize, boolean bigEndian, boolean includesHeader) {
+			super(maxLength);
+			this.headerSize = headerSize;
+			this.bigEndian = bigEndian;
+			this.includesHeader = includesHeader;
+		}
+
+		@Override
+		protected void decode(int b, Listener listener) {
+			if (headerRead < headerSize) {
+				if (bigEndian) {
+					payloadLength = (payloadLength << 8) | b;
+				}
+				else {
+					payloadLength |= ((long) b) << (8 * headerRead);
+				}
+				headerRead++;
+				if (headerRead == headerSize) {
+					if (includesHeader) {
+						payloadLength = Math.max(0, payloadLength - headerSize);
+					}
+					dropping = payloadLength > frame.length;
+					if (payloadLength == 0) {
+						emit(listener);
+					}
+				}
+				return;
+			}
+			if (dropping) {
+				// count the dropped bytes to find the start of the next frame
+				length++;
+			}
+			else {
+				append(b);
+			}
+			if (length == payloadLength) {
+				emit(listener);
+			}
+		}
+
+		@Override
+		void reset() {
+			super.reset();
+			headerRead = 0;
+			payloadLength = 0;
+		}
+	}
+
+	/**
+	 * SLIP frames (RFC 1055)
+	 */
+	static class SlipDecoder extends FrameDecoder {
+		private static final int END = 0xc0;
+		private static final int ESC = 0xdb;
+		private static final int ESC_END = 0xdc;
+		private static final int ESC_ESC = 0xdd;
+		private boolean escaped;
+
+		SlipDecoder(int maxLength) {
+			super(maxLength);
+		}
+
+		@Override
+		protected void decode(int b, Listener listener) {
+			if (b == END) {
+				// back to back END bytes are used to flush line noise, skip the empty frames
+				if (length > 0 || dropping) {
+					emit(listener);
+				}
+			}
+			else if (escaped) {
+				escaped = false;
+				append(b == ESC_END ? END : b == ESC_ESC ? ESC : b);
+			}
+			else if (b == ESC) {
+				escaped = true;
+			}
+			else {
+				append(b);
+			}
+		}
+
+		@Override
+		void reset() {
+			super.reset();
+			escaped = false;
+		}
+	}
+
+	/**
+	 * COBS frames, each encoded frame is terminated by a zero byte
+	 */
+	static class CobsDecoder extends FrameDecoder {
+		CobsDecoder(int maxLength) {
+			// room for the overhead byte of the encoding
+			super(maxLength + 1);
+		}
+
+		@Override
+		protected void decode(int b, Listener listener) {
+			if (b != 0) {
+				append(b);
+				return;
+			}
+			if (!dropping && length > 0) {
+				// decode in place, the output is always behind the input
+				int read = 0;
+				int write = 0;
+				boolean valid = true;
+				while (read < length) {
+					int code = frame[read++] & 0xff;
+					if (read + code - 1 > length) {
+						valid = false;
+						break;
+					}
+					for (int i = 1; i < code; i++) {
+						frame[write++] = frame[read++];
+					}
+					if (code < 0xff && read < length) {
+						frame[write++] = 0;
+					}
+				}
+				if (valid) {
+					listener.onFrame(frame, 0, write);
+				}
+			}
+			reset();
+		}
+	}
+}
@@ -0,0 +1,717 @@
+package fr.drangies.cordova.serial;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import com.hoho.android.usbserial.driver.UsbSerialPort;
+
+import android.util.Log;
+
+/**
+ * XMODEM and YMODEM file transfers, run natively on a port so that the block handshake
+ * does not cross the bridge.
+ * The protocols are xmodem (XMODEM-1K with CRC-16, or classic 128 byte blocks with a checksum
+ * when the receiver asks for it), ymodem (one file, with its name and size in block 0) and
+ * ymodem-g (YMODEM streaming the blocks without waiting for their acknowledgement, for error
+ * free links such as USB, an error aborts the transfer).
+ * The transfer reads and writes the port directly, it needs the port for itself.
+ * @author Xavier Seignard <xavier.seignard@gmail.com>
+ */
+class ModemTransfer {
+	// logging tag
+	private static final String TAG = ModemTransfer.class.getSimpleName();
+	// protocols
+	static final String XMODEM = "xmodem";
+	static final String YMODEM = "ymodem";
+	static final String YMODEM_G = "ymodem-g";
+	// default values
+	static final int DEFAULT_BLOCK_TIMEOUT = 10000;
+	static final int DEFAULT_START_TIMEOUT = 60000;
+	static final int DEFAULT_RETRIES = 10;
+	static final int DEFAULT_PROGRESS_INTERVAL = 250;
+	// control characters
+	private static final int SOH = 0x01;
+	private static final int STX = 0x02;
+	private static final int EOT = 0x04;
+	private static final int ACK = 0x06;
+	private static final int NAK = 0x15;
+	private static final int CAN = 0x18;
+	private static final int CRC_MODE = 'C';
+	private static final int STREAM_MODE = 'G';
+	private static final int PAD = 0x1A;
+	// how often the receiver asks the sender to start
+	private static final int START_INTERVAL = 3000;
+	// longest wait on the port, to notice a cancellation
+	private static final int READ_STEP = 200;
+	// data given by the I/O manager and not read yet, the oldest is dropped beyond that
+	private static final int RECEIVED_CAPACITY = 64 * 1024;
+
+	/**
+	 * Receive the progress of the transfer
+	 */
+	interface Listener {
+		void onProgress(JSONObject progress);
+	}
+
+	// transfer params
+	private final boolean sending;
+	private final File file;
+	private final String protocol;
+	private final String name;
+	private final int blockTimeout;
+	private final int startTimeout;
+	private final int retries;
+	private final int progressInterval;
+	private final boolean trimPadding;
+	private final Listener listener;
+	private volatile boolean cancelled;
+	// the file actually written when receiving in a directory
+	private File target;
+	// progress
+	private long bytes;
+	private long total = -1;
+	private int blocks;
+	private int errors;
+	private long startNanos;
+	private long lastProgress;
+	// the port and what was read from it but not consumed yet
+	private UsbSerialPort port;
+	private final byte[] in = new byte[4096];
+	private int inOffset;
+	private int inLength;
+	// the data given by the I/O manager of the port, unless the transfer reads the port itself
+	private final ByteRingBuffer received = new ByteRingBuffer(RECEIVED_CAPACITY);
+	private boolean fed;
+
+	/**
+	 * Create a transfer
+	 * @param sending true to send the file, false to receive it
+	 * @param file the file to send, or the file or directory to receive into
+	 * @param opts a {@link JSONObject} that may contain protocol, name, blockTimeout, startTimeout, retries,
+	 *             progressInterval and trimPadding
+	 * @param listener receive the progress of the transfer
+	 * @throws JSONException if an option has the wrong type or the protocol is unknown
+	 */
+	ModemTransfer(boolean sending, File file, JSONObject opts, Listener listener) throws JSONException {
+		this.sending = sending;
+		this.file = file;
+		this.target = file;
+		this.listener = listener;
+		protocol = opts.has("protocol") ? opts.getString("protocol") : YMODEM;
+		if (!XMODEM.equals(protocol) && !YMODEM.equals(protocol) && !YMODEM_G.equals(protocol)) {
+			throw new JSONException("Unknown protocol: " + protocol);
+		}
+		name = opts.has("name") ? opts.getString("name") : file.getName();
+		blockTimeout = Math.max(1, opts.has("blockTimeout") ? opts.getInt("blockTimeout") : DEFAULT_BLOCK_TIMEOUT);
+		startTimeout = Math.max(1, opts.has("startTimeout") ? opts.getInt("startTimeout") : DEFAULT_START_TIMEOUT);
+		retries = Math.max(0, opts.has("retries") ? opts.getInt("retries") : DEFAULT_RETRIES);
+		progressInterval = opts.has("progressInterval") ? opts.getInt("progressInterval") : DEFAULT_PROGRESS_INTERVAL;
+		// xmodem pads the last block, without a size to cut it
+		trimPadding = opts.has("trimPadding") ? opts.getBoolean("trimPadding") : true;
+	}
+
+	/**
+	 * Stop the transfer, the other side is told with a cancel sequence
+	 */
+	void cancel() {
+		cancelled = true;
+		synchronized (this) {
+			notifyAll();
+		}
+	}
+
+	/**
+	 * @return true once {@link #cancel()} was called
+	 */
+	boolean isCancelled() {
+		return cancelled;
+	}
+
+	/**
+	 * Run the transfer on the calling thread
+	 * @param port the opened port, not written by anyone else meanwhile
+	 * @param fed true if the I/O manager of the port reads it and gives the data with {@link #offer(byte[])},
+	 *            false if nobody else reads the port, the transfer then reads it itself
+	 * @return the summary of the transfer
+	 * @throws IOException if the transfer fails, is cancelled, or the file cannot be read or written
+	 */
+	JSONObject run(UsbSerialPort port, boolean fed) throws IOException {
+		this.port = port;
+		this.fed = fed;
+		startNanos = System.nanoTime();
+		try {
+			if (sending) {
+				send();
+			}
+			else {
+				receive();
+			}
+		}
+		catch (IOException e) {
+			Log.d(TAG, "Transfer failed: " + e.getMessage());
+			abort();
+			throw e;
+		}
+		try {
+			return toJSON("complete");
+		}
+		catch (JSONException e) {
+			// never, org.json declares it
+			throw new IOException(e.getMessage());
+		}
+	}
+
+	/**
+	 * Send the file
+	 */
+	private void send() throws IOException {
+		InputStream source = new BufferedInputStream(new FileInputStream(file), 64 * 1024);
+		try {
+			total = file.length();
+			int mode = waitStart();
+			boolean crc = mode != NAK;
+			boolean streaming = mode == STREAM_MODE;
+			if (!XMODEM.equals(protocol)) {
+				sendBlock(0, header(), streaming);
+				mode = waitStart();
+				streaming = mode == STREAM_MODE;
+			}
+			int seq = 1;
+			byte[] data = new byte[crc ? 1024 : 128];
+			int n;
+			while ((n = readFully(source, data)) > 0) {
+				// a short tail goes in a small block, with less padding
+				int size = n > 128 ? 1024 : 128;
+				byte[] packet = new byte[size];
+				System.arraycopy(data, 0, packet, 0, n);
+				for (int i = n; i < size; i++) {
+					packet[i] = PAD;
+				}
+				sendBlock(seq, packet, crc, streaming);
+				seq++;
+				blocks++;
+				bytes += n;
+				progress();
+			}
+			// end of file, ymodem receivers ask for it twice
+			for (int attempt = 0; ; attempt++) {
+				write(new byte[] { EOT });
+				if (waitResponse() == ACK) {
+					break;
+				}
+				if (attempt >= retries) {
+					throw new IOException("End of transfer not acknowledged.");
+				}
+			}
+			if (!XMODEM.equals(protocol)) {
+				// an empty block 0 ends the batch
+				mode = waitStart();
+				if (mode == STREAM_MODE) {
+					write(packet(0, new byte[128], true));
+					waitResponse(1000);
+				}
+				else {
+					sendBlock(0, new byte[128], false);
+				}
+			}
+		}
+		finally {
+			source.close();
+		}
+	}
+
+	/**
+	 * Block 0 of ymodem: the file name and size, padded with zeros
+	 */
+	private byte[] header() throws IOException {
+		byte[] info = (name + "\0" + total + " " + Long.toOctalString(file.lastModified() / 1000) + "\0").getBytes("UTF-8");
+		byte[] block = new byte[info.length > 128 ? 1024 : 128];
+		if (info.length > block.length) {
+			throw new IOException("File name too long.");
+		}
+		System.arraycopy(info, 0, block, 0, info.length);
+		return block;
+	}
+
+	private void sendBlock(int seq, byte[] data, boolean streaming) throws IOException {
+		sendBlock(seq, data, true, streaming);
+	}
+
+	/**
+	 * Send a block, and unless streaming wait for its acknowledgement, sending it again on errors
+	 */
+	private void sendBlock(int seq, byte[] data, boolean crc, boolean streaming) throws IOException {
+		byte[] packet = packet(seq, data, crc);
+		for (int attempt = 0; ; attempt++) {
+			write(packet);
+			if (streaming || waitResponse() == ACK) {
+				return;
+			}
+			errors++;
+			if (attempt >= retries) {
+				throw new IOException("Too many errors on block " + seq + ".");
+			}
+		}
+	}
+
+	/**
+	 * Build a block: its header, data and CRC or checksum
+	 */
+	private static byte[] packet(int seq, byte[] data, boolean crc) {
+		byte[] packet = new byte[3 + data.length + (crc ? 2 : 1)];
+		packet[0] = (byte) (data.length == 1024 ? STX : SOH);
+		packet[1] = (byte) seq;
+		packet[2] = (byte) ~seq;
+		System.arraycopy(data, 0, packet, 3, data.length);
+		if (crc) {
+			int value = crc16(data, 0, data.length);
+			packet[3 + data.length] = (byte) (value >> 8);
+			packet[4 + data.length] = (byte) value;
+		}
+		else {
+			packet[3 + data.length] = (byte) checksum(data, 0, data.length);
+		}
+		return packet;
+	}
+
+	/**
+	 * Wait for the receiver to ask for the transfer to start
+	 * @return 'C' for CRC blocks, NAK for checksum blocks or 'G' for streaming
+	 */
+	private int waitStart() throws IOException {
+		long deadline = System.currentTimeMillis() + startTimeout;
+		while (true) {
+			int c = readByte(deadline - System.currentTimeMillis());
+			if (c < 0) {
+				throw new IOException("The receiver did not start.");
+			}
+			if (c == CRC_MODE || (c == STREAM_MODE && YMODEM_G.equals(protocol)) || (c == NAK && XMODEM.equals(protocol))) {
+				return c;
+			}
+			checkRemoteCancel(c);
+		}
+	}
+
+	private int waitResponse() throws IOException {
+		return waitResponse(blockTimeout);
+	}
+
+	/**
+	 * Wait for the receiver to acknowledge a block, the other bytes are ignored
+	 * @return ACK, NAK, or -1 on timeout
+	 */
+	private int waitResponse(long timeout) throws IOException {
+		long deadline = System.currentTimeMillis() + timeout;
+		while (true) {
+			int c = readByte(deadline - System.currentTimeMillis());
+			if (c < 0 || c == ACK || c == NAK) {
+				return c;
+			}
+			checkRemoteCancel(c);
+		}
+	}
+
+	/**
+	 * Receive the file
+	 */
+	private void receive() throws IOException {
+		boolean ymodem = !XMODEM.equals(protocol);
+		boolean streaming = YMODEM_G.equals(protocol);
+		byte[] block = new byte[1024];
+		if (ymodem) {
+			int length = receiveBlock(0, block, true, streaming);
+			parseHeader(block, length);
+			if (!streaming) {
+				write(new byte[] { ACK });
+			}
+		}
+		else if (file.isDirectory()) {
+			throw new IOException("XMODEM sends no file name, give a file path.");
+		}
+		OutputStream out = new BufferedOutputStream(new FileOutputStream(target), 64 * 1024);
+		try {
+			// the last block is held until the end, to remove its padding
+			byte[] held = new byte[1024];
+			int heldLength = 0;
+			int expected = 1;
+			boolean first = true;
+			int eots = 0;
+			// consecutive bad blocks
+			int failures = 0;
+			while (true) {
+				int c = nextBlock(first, streaming);
+				if (c == EOT) {
+					if (ymodem && !streaming && eots++ == 0) {
+						// make sure it is not line noise
+						write(new byte[] { NAK });
+						continue;
+					}
+					write(new byte[] { ACK });
+					break;
+				}
+				int length = c == STX ? 1024 : 128;
+				int seq = readBlock(block, length);
+				if (seq < 0) {
+					errors++;
+					if (streaming || ++failures > retries) {
+						throw new IOException("Bad block.");
+					}
+					purge();
+					write(new byte[] { NAK });
+					continue;
+				}
+				if (seq != (expected & 0xff) && seq != ((expected - 1) & 0xff)) {
+					throw new IOException("Block out of sequence.");
+				}
+				failures = 0;
+				if (seq == (expected & 0xff)) {
+					bytes += writeClipped(out, held, heldLength);
+					System.arraycopy(block, 0, held, 0, length);
+					heldLength = length;
+					expected++;
+					blocks++;
+					progress();
+				}
+				// a duplicate is acknowledged again
+				if (!streaming) {
+					write(new byte[] { ACK });
+				}
+				first = false;
+			}
+			if (total < 0 && trimPadding) {
+				while (heldLength > 0 && held[heldLength - 1] == PAD) {
+					heldLength--;
+				}
+			}
+			bytes += writeClipped(out, held, heldLength);
+		}
+		finally {
+			out.close();
+		}
+		if (ymodem) {
+			// the batch ends with an empty block 0
+			receiveBlock(0, block, true, streaming);
+			if (block[0] == 0) {
+				write(new byte[] { ACK });
+			}
+			else {
+				Log.d(TAG, "Only one file per transfer, the next ones are not received.");
+				abort();
+			}
+		}
+	}
+
+	/**
+	 * Receive a block with the given sequence number, asking again for it on errors
+	 * @return the length of the block
+	 */
+	private int receiveBlock(int expected, byte[] block, boolean solicit, boolean streaming) throws IOException {
+		while (true) {
+			int c = nextBlock(solicit, streaming);
+			if (c == EOT) {
+				throw new IOException("Unexpected end of transfer.");
+			}
+			int length = c == STX ? 1024 : 128;
+			int seq = readBlock(block, length);
+			if (seq == expected) {
+				return length;
+			}
+			if (streaming || seq >= 0) {
+				throw new IOException("Bad block.");
+			}
+			errors++;
+			purge();
+			write(new byte[] { NAK });
+			solicit = false;
+		}
+	}
+
+	/**
+	 * Read the file name and size of ymodem block 0, and choose the file to write
+	 */
+	private void parseHeader(byte[] block, int length) throws IOException {
+		int end = 0;
+		while (end < length && block[end] != 0) end++;
+		if (end == 0) {
+			throw new IOException("No file sent.");
+		}
+		String received = new String(block, 0, end, "UTF-8");
+		int start = end + 1;
+		end = start;
+		while (end < length && block[end] >= '0' && block[end] <= '9') end++;
+		if (end > start) {
+			total = Long.parseLong(new String(block, start, end - start, "US-ASCII"));
+		}
+		if (file.isDirectory()) {
+			// never outside the given directory
+			target = new File(file, new File(received).getName());
+		}
+		Log.d(TAG, "Receiving " + received + ", size=" + total + " into " + target);
+	}
+
+	/**
+	 * Wait for the start of the next block, asking the sender for it
+	 * @param solicit true to ask the sender to start, repeatedly until it does
+	 * @param streaming true for ymodem-g
+	 * @return SOH, STX or EOT
+	 */
+	private int nextBlock(boolean solicit, boolean streaming) throws IOException {
+		int start = streaming ? STREAM_MODE : CRC_MODE;
+		long deadline = System.currentTimeMillis() + (solicit ? startTimeout : blockTimeout);
+		int timeouts = 0;
+		while (true) {
+			if (solicit) {
+				write(new byte[] { (byte) start });
+			}
+			long wait = deadline - System.currentTimeMillis();
+			int c = readByte(solicit ? Math.min(START_INTERVAL, wait) : wait);
+			if (c == SOH || c == STX || c == EOT) {
+				return c;
+			}
+			if (c >= 0) {
+				checkRemoteCancel(c);
+				continue;
+			}
+			if (System.currentTimeMillis() < deadline) {
+				continue;
+			}
+			if (solicit || streaming || ++timeouts > retries) {
+				throw new IOException("The sender stopped.");
+			}
+			// ask for the block again
+			errors++;
+			write(new byte[] { NAK });
+			deadline = System.currentTimeMillis() + blockTimeout;
+		}
+	}
+
+	/**
+	 * Read the rest of a block, after its first byte
+	 * @return the sequence number, -1 if the block is corrupted
+	 */
+	private int readBlock(byte[] block, int length) throws IOException {
+		byte[] head = new byte[2];
+		byte[] tail = new byte[2];
+		if (!readFully(head, 2) || !readFully(block, length) || !readFully(tail, 2)) {
+			return -1;
+		}
+		int seq = head[0] & 0xff;
+		if ((seq ^ (head[1] & 0xff)) != 0xff) {
+			return -1;
+		}
+		int crc = ((tail[0] & 0xff) << 8) | (tail[1] & 0xff);
+		return crc == crc16(block, 0, length) ? seq : -1;
+	}
+
+	/**
+	 * Write the received data, up to the size given by the sender
+	 */
+	private int writeClipped(OutputStream out, byte[] data, int length) throws IOException {
+		if (total >= 0) {
+			length = (int) Math.max(0, Math.min(length, total - bytes));
+		}
+		out.write(data, 0, length);
+		return length;
+	}
+
+	/**
+	 * Drop what is left of a bad block, until the line is quiet
+	 */
+	private void purge() throws IOException {
+		inOffset = inLength;
+		while (readByte(100) >= 0) {
+			inOffset = inLength;
+		}
+	}
+
+	/**
+	 * Two cancels in a row end the transfer
+	 */
+	private void checkRemoteCancel(int c) throws IOException {
+		if (c == CAN && readByte(1000) == CAN) {
+			throw new IOException("Cancelled by the remote.");
+		}
+	}
+
+	/**
+	 * Tell the other side the transfer is over
+	 */
+	private void abort() {
+		byte[] cancel = new byte[8];
+		Arrays.fill(cancel, (byte) CAN);
+		try {
+			port.write(cancel, blockTimeout);
+		}
+		catch (IOException e) {
+			// the port is gone
+		}
+	}
+
+	private void checkCancelled() throws IOException {
+		if (cancelled) {
+			throw new IOException("Transfer cancelled.");
+		}
+	}
+
+	private void write(byte[] data) throws IOException {
+		checkCancelled();
+		port.write(data, blockTimeout);
+	}
+
+	/**
+	 * Give the transfer data read by the I/O manager of the port, a bad block is retried if it overflows
+	 * @param data the bytes read from the port
+	 */
+	synchronized void offer(byte[] data) {
+		int offset = Math.max(0, data.length - received.capacity());
+		int length = data.length - offset;
+		if (received.remaining() < length) {
+			received.skip(length - received.remaining());
+		}
+		received.put(data, offset, length);
+		notifyAll();
+	}
+
+	/**
+	 * Read a byte, in short steps to notice a cancellation
+	 * @return the byte, -1 on timeout
+	 */
+	private int readByte(long timeout) throws IOException {
+		if (inOffset == inLength) {
+			long deadline = System.currentTimeMillis() + timeout;
+			do {
+				checkCancelled();
+				long wait = deadline - System.currentTimeMillis();
+				if (wait <= 0) {
+					return -1;
+				}
+				inLength = fed ? take(Math.min(wait, READ_STEP)) : Math.max(0, port.read(in, (int) Math.min(wait, READ_STEP)));
+				inOffset = 0;
+			} while (inLength == 0);
+		}
+		return in[inOffset++] & 0xff;
+	}
+
+	/**
+	 * Take what the I/O manager gave, waiting for it at most the given time.
+	 * Unlike the reads of some drivers, the wait ends on time and on cancellation.
+	 * @return the number of bytes put in the read buffer, 0 if none came
+	 */
+	private synchronized int take(long wait) throws IOException {
+		if (received.isEmpty() && !cancelled) {
+			try {
+				wait(wait);
+			}
+			catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IOException("Transfer interrupted.");
+			}
+		}
+		return received.get(in, 0, Math.min(in.length, received.size()));
+	}
+
+	/**
+	 * Read bytes from the port, within the block timeout
+	 * @return false on timeout
+	 */
+	private boolean readFully(byte[] dest, int length) throws IOException {
+		long deadline = System.currentTimeMillis() + blockTimeout;
+		int offset = 0;
+		while (offset < length) {
+			if (inOffset == inLength) {
+				int c = readByte(deadline - System.currentTimeMillis());
+				if (c < 0) {
+					return false;
+				}
+				dest[offset++] = (byte) c;
+				continue;
+			}
+			int count = Math.min(length - offset, inLength - inOffset);
+			System.arraycopy(in, inOffset, dest, offset, count);
+			inOffset += count;
+			offset += count;
+		}
+		return true;
+	}
+
+	private static int readFully(InputStream source, byte[] dest) throws IOException {
+		int offset = 0;
+		int n;
+		while (offset < dest.length && (n = source.read(dest, offset, dest.length - offset)) > 0) {
+			offset += n;
+		}
+		return offset;
+	}
+
+	/**
+	 * Send the progress, at most every progressInterval milliseconds
+	 */
+	private void progress() {
+		long now = System.currentTimeMillis();
+		if (listener == null || now - lastProgress < progressInterval) {
+			return;
+		}
+		lastProgress = now;
+		try {
+			listener.onProgress(toJSON("progress"));
+		}
+		catch (JSONException e) {
+			// never, org.json declares it
+		}
+	}
+
+	/**
+	 * Describe the transfer
+	 * @param event progress or complete
+	 * @return a {@link JSONObject} with the event, protocol, file, bytes, total if known, blocks, errors, elapsedMs and bytesPerSecond
+	 * @throws JSONException never, org.json declares it
+	 */
+	JSONObject toJSON(String event) throws JSONException {
+		long elapsed = (System.nanoTime() - startNanos) / 1000000;
+		JSONObject obj = new JSONObject();
+		obj.put("event", event);
+		obj.put("protocol", protocol);
+		obj.put("file", target.getAbsolutePath());
+		obj.put("bytes", bytes);
+		if (total >= 0) {
+			obj.put("total", total);
+		}
+		obj.put("blocks", blocks);
+		obj.put("errors", errors);
+		obj.put("elapsedMs", elapsed);
+		obj.put("bytesPerSecond", elapsed > 0 ? bytes * 1000 / elapsed : 0);
+		return obj;
+	}
+
+	/**
+	 * CRC-16/XMODEM, polynomial 0x1021 and initial value 0
+	 */
+	static int crc16(byte[] data, int off, int len) {
+		int crc = 0;
+		for (int i = off; i < off + len; i++) {
+			crc ^= (data[i] & 0xff) << 8;
+			for (int bit = 0; bit < 8; bit++) {
+				crc = (crc & 0x8000) != 0 ? (crc << 1) ^ 0x1021 : crc << 1;
+			}
+		}
+		return crc & 0xffff;
+	}
+
+	private static int checksum(byte[] data, int off, int len) {
+		int sum = 0;
+		for (int i = off; i < off + len; i++) {
+			sum += data[i] & 0xff;
+		}
+		return sum & 0xff;
+	}
+}
@@ -0,0 +1,373 @@
+package fr.drangies.cordova.serial;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.locks.LockSupport;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import android.util.Log;
+
+/**
+ * Writes repeated at a fixed rate by the plugin, to poll a device without going through the bridge.
+ * Every schedule has a preloaded payload and a period, its writes are due on a fixed grid of
+ * deadlines so that the rate does not drift. A thread of high priority, shared by the schedules
+ * of the port, waits for the next deadline and queues the write ahead of the usual ones. A write
+ * may expect a response, matched like the ones of a transaction. A tick whose previous write or
+ * response is still outstanding, or which the thread woke up too late for, is missed: it is
+ * skipped and reported, the next one stays on the grid.
+ * @author Xavier Seignard <xavier.seignard@gmail.com>
+ */
+class PeriodicWriter {
+	// logging tag
+	private static final String TAG = PeriodicWriter.class.getSimpleName();
+	// the writes go ahead of the other ones by default
+	static final int DEFAULT_PRIORITY = SerialWriter.PRIORITIES - 1;
+
+	/**
+	 * Receive the responses and the events of a schedule
+	 */
+	interface Listener {
+		void onResponse(byte[] response);
+		void onEvent(JSONObject event);
+	}
+
+	/**
+	 * A payload written every period
+	 */
+	private static class Schedule {
+		final int id;
+		final byte[] data;
+		final long periodNanos;
+		// number of writes, 0 for no limit
+		final int count;
+		final int priority;
+		// matching of the expected response, null if none
+		final JSONObject expect;
+		final Listener listener;
+		// next deadline, in System.nanoTime
+		long deadline;
+		int sent;
+		long missed;
+		// true while a write or its response is outstanding
+		volatile boolean busy;
+		boolean cancelled;
+		// true once the done event is sent, the schedule sends nothing after it
+		boolean finished;
+
+		Schedule(int id, byte[] data, JSONObject opts, Listener listener) throws JSONException {
+			this.id = id;
+			this.data = data;
+			this.listener = listener;
+			periodNanos = (long) (opts.getDouble("periodMs") * 1000000);
+			if (periodNanos <= 0) {
+				throw new JSONException("periodMs must be positive");
+			}
+			count = Math.max(0, opts.has("count") ? opts.getInt("count") : 0);
+			priority = opts.has("priority") ? opts.getInt("priority") : DEFAULT_PRIORITY;
+			if (priority < 0 || priority >= SerialWriter.PRIORITIES) {
+				throw new JSONException("A priority goes from 0 to " + (SerialWriter.PRIORITIES - 1));
+			}
+			expect = opts.has("expect") ? opts.getJSONObject("expect") : null;
+			if (expect != null && !expect.has("timeoutMs")) {
+				// the response is due before the next write
+				expect.put("timeoutMs", Math.max(1, periodNanos / 1000000));
+			}
+			// checked once, before the first write
+			if (expect != null) {
+				new TransactionManager.Transaction(expect, null);
+			}
+			long delay = (long) ((opts.has("delayMs") ? opts.getDouble("delayMs") : 0) * 1000000);
+			deadline = System.nanoTime() + Math.max(0, delay);
+		}
+	}
+
+	private final SerialSession session;
+	// the running schedules, by id
+	private final Map<Integer, Schedule> schedules = new HashMap<Integer, Schedule>();
+	// the schedules, the next due first
+	private final PriorityQueue<Schedule> queue = new PriorityQueue<Schedule>(4, new Comparator<Schedule>() {
+		@Override
+		public int compare(Schedule a, Schedule b) {
+			return a.deadline < b.deadline ? -1 : a.deadline > b.deadline ? 1 : 0;
+		}
+	});
+	// the timer thread, null while there is no schedule
+	private Thread thread;
+	private int nextId = 1;
+
+	/**
+	 * Create the periodic writes of a port
+	 * @param session the session of the port
+	 */
+	PeriodicWriter(SerialSession session) {
+		this.session = session;
+	}
+
+	/**
+	 * Start writing a payload periodically
+	 * @param data the payload
+	 * @param opts a {@link JSONObject} containing periodMs, and that may contain count, delayMs, priority and expect,
+	 *             the transaction options matching the response
+	 * @param listener receive the scheduled event, then the responses and the other events
+	 * @return the id of the schedule
+	 * @throws JSONException if an option is missing or has the wrong type
+	 */
+	synchronized int add(byte[] data, JSONObject opts, Listener listener) throws JSONException {
+		Schedule schedule = new Schedule(nextId++, data, opts, listener);
+		// sent before the schedule is queued, so before any other event
+		JSONObject event = new JSONObject();
+		event.put("event", "scheduled");
+		event.put("id", schedule.id);
+		listener.onEvent(event);
+		schedules.put(schedule.id, schedule);
+		queue.add(schedule);
+		if (thread == null) {
+			thread = new Thread(new Runnable() {
+				public void run() {
+					loop();
+				}
+			}, "serial-periodic");
+			thread.setDaemon(true);
+			thread.start();
+		}
+		else {
+			LockSupport.unpark(thread);
+		}
+		return schedule.id;
+	}
+
+	/**
+	 * Stop a schedule, it sends its done event and nothing after it
+	 * @param id the id of the schedule
+	 * @return false if there is no such schedule
+	 */
+	boolean cancel(int id) {
+		Schedule found;
+		synchronized (this) {
+			found = schedules.remove(id);
+			if (found == null) {
+				return false;
+			}
+			// not queued while its tick runs
+			queue.remove(found);
+			found.cancelled = true;
+			if (thread != null) {
+				LockSupport.unpark(thread);
+			}
+		}
+		done(found);
+		return true;
+	}
+
+	/**
+	 * Stop all the schedules, when the port is closed for good
+	 */
+	void cancelAll() {
+		List<Schedule> cancelled;
+		synchronized (this) {
+			cancelled = new ArrayList<Schedule>(schedules.values());
+			schedules.clear();
+			queue.clear();
+			for (Schedule schedule : cancelled) {
+				schedule.cancelled = true;
+			}
+			if (thread != null) {
+				LockSupport.unpark(thread);
+				thread = null;
+			}
+		}
+		for (Schedule schedule : cancelled) {
+			done(schedule);
+		}
+	}
+
+	private void loop() {
+		android.os.Process.setThreadPriority(android.os.Process.THREAD_PRIORITY_URGENT_DISPLAY);
+		while (true) {
+			Schedule next;
+			long wait;
+			synchronized (this) {
+				if (thread != Thread.currentThread()) {
+					return;
+				}
+				next = queue.peek();
+				if (next == null) {
+					// started again by the next schedule
+					thread = null;
+					return;
+				}
+				wait = next.deadline - System.nanoTime();
+				if (wait <= 0) {
+					queue.poll();
+				}
+			}
+			if (wait > 0) {
+				// a new or cancelled schedule wakes the thread up
+				LockSupport.parkNanos(this, wait);
+				continue;
+			}
+			boolean over = tick(next);
+			synchronized (this) {
+				if (next.cancelled) {
+					continue;
+				}
+				if (over) {
+					// done once the last write, or its response, is over
+					schedules.remove(next.id);
+				}
+				else {
+					queue.add(next);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Write a schedule whose deadline has come, and move its deadline to the next one on the grid
+	 * @return true once the schedule has made all its writes
+	 */
+	private boolean tick(final Schedule schedule) {
+		long late = System.nanoTime() - schedule.deadline;
+		SerialStats stats = session.getStats();
+		stats.periodicLateness.record(late / 1000);
+		// the deadlines the thread woke up too late for are skipped
+		long skipped = late / schedule.periodNanos;
+		schedule.deadline += (skipped + 1) * schedule.periodNanos;
+		if (skipped > 0) {
+			missed(schedule, skipped, "late", late);
+		}
+		if (!session.isOpen()) {
+			// paused or reconnecting, the writes start again with the port
+			return false;
+		}
+		if (schedule.busy) {
+			missed(schedule, 1, "busy", late);
+			return false;
+		}
+		schedule.busy = true;
+		final int seq = ++schedule.sent;
+		final boolean last = schedule.count > 0 && seq >= schedule.count;
+		stats.periodicWrites.incrementAndGet();
+		if (schedule.expect != null) {
+			try {
+				session.transact(schedule.data, new TransactionManager.Transaction(schedule.expect, new TransactionManager.Callback() {
+					@Override
+					public void onResponse(byte[] response) {
+						schedule.busy = false;
+						synchronized (schedule) {
+							if (!schedule.finished) {
+								schedule.listener.onResponse(response);
+							}
+						}
+						if (last) {
+							done(schedule);
+						}
+					}
+					@Override
+					public void onError(String message) {
+						schedule.busy = false;
+						error(schedule, seq, message);
+						if (last) {
+							done(schedule);
+						}
+					}
+				}), schedule.priority);
+			}
+			catch (JSONException e) {
+				// checked when the schedule was added
+				schedule.busy = false;
+				error(schedule, seq, e.getMessage());
+				if (last) {
+					done(schedule);
+				}
+			}
+		}
+		else {
+			session.write(schedule.data, new SerialWriter.Callback() {
+				@Override
+				public void onWritten(int count) {
+					schedule.busy = false;
+					if (last) {
+						done(schedule);
+					}
+				}
+				@Override
+				public void onError(String message) {
+					schedule.busy = false;
+					error(schedule, seq, message);
+					if (last) {
+						done(schedule);
+					}
+				}
+			}, schedule.priority);
+		}
+		return last;
+	}
+
+	private void missed(Schedule schedule, long count, String reason, long lateNanos) {
+		schedule.missed += count;
+		session.getStats().periodicMissed.addAndGet(count);
+		JSONObject event = new JSONObject();
+		try {
+			event.put("event", "missed");
+			event.put("id", schedule.id);
+			event.put("missed", count);
+			event.put("reason", reason);
+			event.put("lateUs", lateNanos / 1000);
+		}
+		catch (JSONException e) {
+			// never happens, org.json declares it
+		}
+		emit(schedule, event, false);
+	}
+
+	private void error(Schedule schedule, int seq, String message) {
+		Log.d(TAG, "Periodic write " + schedule.id + " failed: " + message);
+		JSONObject event = new JSONObject();
+		try {
+			event.put("event", "error");
+			event.put("id", schedule.id);
+			event.put("seq", seq);
+			event.put("message", message);
+		}
+		catch (JSONException e) {
+			// never happens, org.json declares it
+		}
+		emit(schedule, event, false);
+	}
+
+	private void done(Schedule schedule) {
+		JSONObject event = new JSONObject();
+		try {
+			event.put("event", "done");
+			event.put("id", schedule.id);
+			event.put("sent", schedule.sent);
+			event.put("missed", schedule.missed);
+			event.put("cancelled", schedule.cancelled);
+		}
+		catch (JSONException e) {
+			// never happens, org.json declares it
+		}
+		emit(schedule, event, true);
+	}
+
+	/**
+	 * Send an event of a schedule, unless it is finished
+	 * @param finish true for the done event
+	 */
+	private void emit(Schedule schedule, JSONObject event, boolean finish) {
+		synchronized (schedule) {
+			if (schedule.finished) {
+				return;
+			}
+			schedule.finished = finish;
+			schedule.listener.onEvent(event);
+		}
+	}
+}
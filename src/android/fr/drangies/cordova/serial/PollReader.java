@@ -0,0 +1,172 @@
+package fr.drangies.cordova.serial;
+
+import java.io.IOException;
+
+import com.hoho.android.usbserial.driver.UsbSerialPort;
+
+/**
+ * Serve the readSerial calls of a port.
+ * In poll mode the reader is the only one reading the port, otherwise the I/O manager
+ * feeds it with the data no read callback is registered for. Either way the data is
+ * kept in a pooled buffer, a read takes what it needs and leaves the rest for the next one.
+ * @author Xavier Seignard <xavier.seignard@gmail.com>
+ */
+class PollReader {
+	// read params
+	static final int DEFAULT_MAX_BYTES = 4096;
+	static final int DEFAULT_TIMEOUT = 200;
+	static final int DEFAULT_MIN_BYTES = 1;
+	// the result of all the empty reads
+	static final byte[] EMPTY = new byte[0];
+	// capacity of the pending buffer, the oldest bytes are dropped beyond that
+	private static final int CAPACITY = 64 * 1024;
+
+	// data read but not yet returned
+	private final ByteRingBuffer pending = new ByteRingBuffer(CAPACITY);
+	// pooled buffer the port is read into
+	private final byte[] chunk = new byte[DEFAULT_MAX_BYTES];
+	// the port to read from in poll mode, null otherwise
+	private UsbSerialPort port;
+	// only one read at a time
+	private final Object readLock = new Object();
+	// read counters of the port
+	private final SerialStats stats;
+	// optional capture of the data read in poll mode
+	private volatile CaptureLog capture;
+	// flow control of the port, it gets the XON and XOFF characters
+	private volatile FlowControl flow;
+
+	/**
+	 * Create a reader
+	 * @param stats the counters to update when reading the port
+	 */
+	PollReader(SerialStats stats) {
+		this.stats = stats;
+	}
+
+	/**
+	 * Start reading the port directly, for the poll mode
+	 * @param port the opened port
+	 */
+	synchronized void start(UsbSerialPort port) {
+		this.port = port;
+	}
+
+	/**
+	 * Stop reading the port, wake up the pending reads
+	 */
+	synchronized void stop() {
+		port = null;
+		notifyAll();
+	}
+
+	/**
+	 * Capture the data read in poll mode, or stop capturing it
+	 * @param capture the capture log, null to stop
+	 */
+	void setCapture(CaptureLog capture) {
+		this.capture = capture;
+	}
+
+	/**
+	 * Give the XON and XOFF characters to a flow control, or stop giving them
+	 * @param flow the flow control of the port, null for none
+	 */
+	void setFlowControl(FlowControl flow) {
+		this.flow = flow;
+	}
+
+	/**
+	 * Forget the pending data
+	 */
+	synchronized void clear() {
+		pending.clear();
+	}
+
+	/**
+	 * Add data read by someone else, the oldest data is dropped if the buffer is full
+	 * @param data the bytes read from the port
+	 */
+	synchronized void offer(byte[] data) {
+		int offset = Math.max(0, data.length - pending.capacity());
+		int length = data.length - offset;
+		if (pending.remaining() < length) {
+			pending.skip(length - pending.remaining());
+		}
+		pending.put(data, offset, length);
+		notifyAll();
+	}
+
+	/**
+	 * Read data, waiting until enough is available or the timeout expires
+	 * @param maxBytes maximum number of bytes to return
+	 * @param timeout maximum time to wait, in milliseconds
+	 * @param minBytes number of bytes to wait for
+	 * @return the data read, less than minBytes if the timeout expired, {@link #EMPTY} if none
+	 * @throws IOException if reading the port fails
+	 */
+	byte[] read(int maxBytes, int timeout, int minBytes) throws IOException {
+		minBytes = Math.min(Math.max(1, minBytes), maxBytes);
+		synchronized (readLock) {
+			long deadline = System.currentTimeMillis() + timeout;
+			boolean first = true;
+			while (true) {
+				UsbSerialPort source;
+				long remaining = deadline - System.currentTimeMillis();
+				synchronized (this) {
+					if (pending.size() >= minBytes) {
+						break;
+					}
+					source = port;
+					if (source == null) {
+						if (remaining <= 0) {
+							break;
+						}
+						try {
+							wait(remaining);
+						}
+						catch (InterruptedException e) {
+							Thread.currentThread().interrupt();
+							break;
+						}
+						continue;
+					}
+				}
+				// in poll mode, read at least once, a zero timeout would block forever
+				if (remaining <= 0 && !first) {
+					break;
+				}
+				first = false;
+				int len = source.read(chunk, (int) Math.max(1, remaining));
+				if (len > 0) {
+					stats.onRead(len);
+					FlowControl control = flow;
+					if (control != null) {
+						len = control.filterInput(chunk, 0, len);
+					}
+				}
+				if (len > 0) {
+					CaptureLog log = capture;
+					if (log != null) {
+						log.append(CaptureLog.IN, chunk, 0, len);
+					}
+					synchronized (this) {
+						if (pending.remaining() < len) {
+							pending.skip(len - pending.remaining());
+						}
+						pending.put(chunk, 0, len);
+					}
+				}
+			}
+			synchronized (this) {
+				int len = Math.min(maxBytes, pending.size());
+				if (len == 0) {
+					return EMPTY;
+				}
+				byte[] data = new byte[len];
+				pending.get(data, 0, len);
+				return data;
+			}
+		}
+	}
+}
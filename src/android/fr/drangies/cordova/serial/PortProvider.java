@@ -0,0 +1,41 @@
+package fr.drangies.cordova.serial;
+
+import java.io.IOException;
+
+import com.hoho.android.usbserial.driver.UsbSerialDriver;
+
+import android.hardware.usb.UsbDeviceConnection;
+
+/**
+ * Source of the devices a port is opened on: the attached USB devices, see {@link DeviceRegistry},
+ * or the virtual devices, see {@link VirtualDevices}.
+ * The provider identifies the device of a driver, tells if the app may use it and opens it.
+ * @author Xavier Seignard <xavier.seignard@gmail.com>
+ */
+interface PortProvider {
+	/**
+	 * @param driver a driver of this provider
+	 * @return the id of its device, used in the port handles
+	 */
+	int getDeviceId(UsbSerialDriver driver);
+
+	/**
+	 * @param driver a driver of this provider
+	 * @return the serial number of its device, null if it cannot be read yet
+	 */
+	String getSerialNumber(UsbSerialDriver driver);
+
+	/**
+	 * @param driver a driver of this provider
+	 * @return true if the app may open its device
+	 */
+	boolean hasPermission(UsbSerialDriver driver);
+
+	/**
+	 * Open the device of a driver, before opening one of its ports
+	 * @param driver a driver of this provider
+	 * @return the connection to open the ports with, null for a device that needs none
+	 * @throws IOException if the device cannot be opened
+	 */
+	UsbDeviceConnection openDevice(UsbSerialDriver driver) throws IOException;
+}
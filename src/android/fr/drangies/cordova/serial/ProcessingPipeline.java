@@ -0,0 +1,395 @@
+package fr.drangies.cordova.serial;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Native processing of the decoded frames of a port, so that only what javascript needs
+ * crosses the bridge. Every frame is a sample going through the stages in order: filter,
+ * dedup and decimate drop samples, a window aggregates them into a summary.
+ * The pipeline runs on the read thread of the port and is not thread-safe.
+ * @author Xavier Seignard <xavier.seignard@gmail.com>
+ */
+class ProcessingPipeline {
+
+	/**
+	 * Receive the summaries of the window stage
+	 */
+	interface Listener {
+		void onSummary(JSONObject summary);
+	}
+
+	/**
+	 * A numeric field of a sample, binary at a byte offset or the n-th value of an ASCII line
+	 */
+	static class Field {
+		final String name;
+		final String type;
+		final int offset;
+		final boolean littleEndian;
+		final int index;
+		final int separator;
+
+		/**
+		 * @param spec a {@link JSONObject} with type (u8, i8, u16, i16, u32, i32, f32, f64 or ascii),
+		 *             offset and littleEndian for binary types, index and separator for ascii, and an optional name
+		 */
+		Field(JSONObject spec) throws JSONException {
+			type = spec.has("type") ? spec.getString("type") : "u8";
+			offset = spec.has("offset") ? spec.getInt("offset") : 0;
+			littleEndian = spec.has("littleEndian") && spec.getBoolean("littleEndian");
+			index = spec.has("index") ? spec.getInt("index") : 0;
+			String separators = spec.has("separator") ? spec.getString("separator") : ",";
+			if (separators.length() != 1) {
+				throw new JSONException("A field separator is one character");
+			}
+			separator = separators.charAt(0);
+			name = spec.has("name") ? spec.getString("name") : "ascii".equals(type) ? "field" + index : "field" + offset;
+			if (size() == 0 && !"ascii".equals(type)) {
+				throw new JSONException("Unknown field type: " + type);
+			}
+			if (offset < 0) {
+				throw new JSONException("A field offset cannot be negative: " + offset);
+			}
+		}
+
+		private int size() {
+			if ("u8".equals(type) || "i8".equals(type)) return 1;
+			if ("u16".equals(type) || "i16".equals(type)) return 2;
+			if ("u32".equals(type) || "i32".equals(type) || "f32".equals(type)) return 4;
+			if ("f64".equals(type)) return 8;
+			return 0;
+		}
+
+		/**
+		 * @return the value of the field in the sample, NaN if the sample is too short or not a number
+		 */
+		double read(byte[] buf, int off, int len) {
+			if ("ascii".equals(type)) {
+				return readAscii(buf, off, len);
+			}
+			int size = size();
+			if (offset + size > len) {
+				return Double.NaN;
+			}
+			long raw = 0;
+			for (int i = 0; i < size; i++) {
+				int b = buf[off + offset + (littleEndian ? size - 1 - i : i)] & 0xff;
+				raw = (raw << 8) | b;
+			}
+			if ("u8".equals(type) || "u16".equals(type) || "u32".equals(type)) return raw;
+			if ("i8".equals(type)) return (byte) raw;
+			if ("i16".equals(type)) return (short) raw;
+			if ("i32".equals(type)) return (int) raw;
+			if ("f32".equals(type)) return Float.intBitsToFloat((int) raw);
+			return Double.longBitsToDouble(raw);
+		}
+
+		private double readAscii(byte[] buf, int off, int len) {
+			int start = off;
+			int end = off + len;
+			for (int n = 0; n < index; n++) {
+				while (start < end && buf[start] != separator) start++;
+				if (start == end) {
+					return Double.NaN;
+				}
+				start++;
+			}
+			int stop = start;
+			while (stop < end && buf[stop] != separator) stop++;
+			try {
+				return Double.parseDouble(new String(buf, start, stop - start, "US-ASCII").trim());
+			}
+			catch (Exception e) {
+				return Double.NaN;
+			}
+		}
+	}
+
+	/**
+	 * A step of the pipeline
+	 */
+	private abstract static class Stage {
+		/**
+		 * @return true if the sample goes on to the next stage
+		 */
+		abstract boolean accept(byte[] buf, int off, int len);
+	}
+
+	/**
+	 * Keep the samples whose field satisfies a comparison
+	 */
+	private static class Filter extends Stage {
+		private final Field field;
+		private final String op;
+		private final double value;
+
+		Filter(JSONObject spec) throws JSONException {
+			field = new Field(spec.getJSONObject("field"));
+			op = spec.getString("op");
+			value = spec.getDouble("value");
+			if (!Arrays.asList("<", "<=", ">", ">=", "==", "!=").contains(op)) {
+				throw new JSONException("Unknown filter op: " + op);
+			}
+		}
+
+		@Override
+		boolean accept(byte[] buf, int off, int len) {
+			double v = field.read(buf, off, len);
+			if (Double.isNaN(v)) return false;
+			if ("<".equals(op)) return v < value;
+			if ("<=".equals(op)) return v <= value;
+			if (">".equals(op)) return v > value;
+			if (">=".equals(op)) return v >= value;
+			if ("==".equals(op)) return v == value;
+			return v != value;
+		}
+	}
+
+	/**
+	 * Drop the samples equal to the previous one, or whose field did not change
+	 */
+	private static class Dedup extends Stage {
+		private final Field field;
+		private byte[] previous = new byte[0];
+		private int previousLength = -1;
+		private double previousValue = Double.NaN;
+
+		Dedup(JSONObject spec) throws JSONException {
+			field = spec.has("field") ? new Field(spec.getJSONObject("field")) : null;
+		}
+
+		@Override
+		boolean accept(byte[] buf, int off, int len) {
+			if (field != null) {
+				double v = field.read(buf, off, len);
+				boolean changed = Double.compare(v, previousValue) != 0;
+				previousValue = v;
+				return changed;
+			}
+			boolean same = len == previousLength;
+			for (int i = 0; same && i < len; i++) {
+				same = previous[i] == buf[off + i];
+			}
+			if (!same) {
+				if (previous.length < len) {
+					previous = new byte[len];
+				}
+				System.arraycopy(buf, off, previous, 0, len);
+				previousLength = len;
+			}
+			return !same;
+		}
+	}
+
+	/**
+	 * Keep one sample out of factor
+	 */
+	private static class Decimate extends Stage {
+		private final int factor;
+		private int count;
+
+		Decimate(JSONObject spec) throws JSONException {
+			factor = Math.max(1, spec.getInt("factor"));
+		}
+
+		@Override
+		boolean accept(byte[] buf, int off, int len) {
+			boolean keep = count == 0;
+			count = (count + 1) % factor;
+			return keep;
+		}
+	}
+
+	/**
+	 * Aggregate the min, max and mean of fields over a number of samples or a time window
+	 */
+	private static class Window {
+		private final int count;
+		private final long millis;
+		private final Field[] fields;
+		// current window
+		private int samples;
+		private long start;
+		private final double[] min;
+		private final double[] max;
+		private final double[] sum;
+		private final int[] valid;
+
+		Window(JSONObject spec) throws JSONException {
+			count = spec.has("count") ? spec.getInt("count") : 0;
+			millis = spec.has("ms") ? spec.getLong("ms") : 0;
+			if (count <= 0 && millis <= 0) {
+				throw new JSONException("A window needs a count or ms");
+			}
+			JSONArray list = spec.getJSONArray("fields");
+			fields = new Field[list.length()];
+			for (int i = 0; i < fields.length; i++) {
+				fields[i] = new Field(list.getJSONObject(i));
+			}
+			min = new double[fields.length];
+			max = new double[fields.length];
+			sum = new double[fields.length];
+			valid = new int[fields.length];
+			reset(0);
+		}
+
+		private void reset(long now) {
+			samples = 0;
+			start = now;
+			Arrays.fill(min, Double.POSITIVE_INFINITY);
+			Arrays.fill(max, Double.NEGATIVE_INFINITY);
+			Arrays.fill(sum, 0);
+			Arrays.fill(valid, 0);
+		}
+
+		/**
+		 * Add a sample
+		 * @return the summary of the window if this sample closes it, null otherwise
+		 */
+		JSONObject add(byte[] buf, int off, int len) throws JSONException {
+			long now = System.currentTimeMillis();
+			JSONObject summary = null;
+			if (millis > 0 && samples > 0 && now - start >= millis) {
+				// a time window closes on the first sample past its end
+				summary = summarize(now);
+			}
+			if (samples == 0) {
+				start = now;
+			}
+			samples++;
+			for (int i = 0; i < fields.length; i++) {
+				double v = fields[i].read(buf, off, len);
+				// like a missing value, an infinity cannot go in a summary
+				if (!Double.isNaN(v) && !Double.isInfinite(v)) {
+					min[i] = Math.min(min[i], v);
+					max[i] = Math.max(max[i], v);
+					sum[i] += v;
+					valid[i]++;
+				}
+			}
+			if (count > 0 && samples >= count) {
+				summary = summarize(now);
+			}
+			return summary;
+		}
+
+		/**
+		 * Close the window, the next one starts even if the summary cannot be built
+		 * @throws JSONException if a mean goes beyond the range of a double
+		 */
+		private JSONObject summarize(long now) throws JSONException {
+			try {
+				JSONObject summary = new JSONObject();
+				summary.put("count", samples);
+				summary.put("start", start);
+				summary.put("end", now);
+				JSONObject values = new JSONObject();
+				for (int i = 0; i < fields.length; i++) {
+					JSONObject value = new JSONObject();
+					if (valid[i] > 0) {
+						value.put("min", min[i]);
+						value.put("max", max[i]);
+						value.put("mean", sum[i] / valid[i]);
+					}
+					values.put(fields[i].name, value);
+				}
+				summary.put("fields", values);
+				return summary;
+			}
+			finally {
+				reset(now);
+			}
+		}
+	}
+
+	private final List<Stage> stages = new ArrayList<Stage>();
+	// optional last stage
+	private final Window window;
+	private final Listener listener;
+	// counters
+	private long samplesIn;
+	private long samplesOut;
+	private long summaries;
+
+	/**
+	 * Build a pipeline
+	 * @param spec a {@link JSONArray} of stages, objects with a type (filter, dedup, decimate or window) and their params
+	 * @param listener receive the summaries of the window stage
+	 * @throws JSONException if the spec is invalid
+	 */
+	ProcessingPipeline(JSONArray spec, Listener listener) throws JSONException {
+		this.listener = listener;
+		Window last = null;
+		for (int i = 0; i < spec.length(); i++) {
+			JSONObject stage = spec.getJSONObject(i);
+			String type = stage.getString("type");
+			if (last != null) {
+				throw new JSONException("The window must be the last stage");
+			}
+			if ("filter".equals(type)) {
+				stages.add(new Filter(stage));
+			}
+			else if ("dedup".equals(type)) {
+				stages.add(new Dedup(stage));
+			}
+			else if ("decimate".equals(type)) {
+				stages.add(new Decimate(stage));
+			}
+			else if ("window".equals(type)) {
+				last = new Window(stage);
+			}
+			else {
+				throw new JSONException("Unknown stage: " + type);
+			}
+		}
+		this.window = last;
+	}
+
+	/**
+	 * Run a sample through the stages
+	 * @param buf the buffer holding the sample
+	 * @param off offset of the sample in the buffer
+	 * @param len length of the sample
+	 * @param out receive the sample if it goes through and there is no window
+	 */
+	void process(byte[] buf, int off, int len, FrameDecoder.Listener out) {
+		samplesIn++;
+		for (Stage stage : stages) {
+			if (!stage.accept(buf, off, len)) {
+				return;
+			}
+		}
+		samplesOut++;
+		if (window == null) {
+			out.onFrame(buf, off, len);
+			return;
+		}
+		try {
+			JSONObject summary = window.add(buf, off, len);
+			if (summary != null) {
+				summaries++;
+				listener.onSummary(summary);
+			}
+		}
+		catch (JSONException e) {
+			// a mean beyond the range of a double, the summary is lost but the next window has started
+		}
+	}
+
+	/**
+	 * @return the counters of the pipeline, eventually consistent as they are updated by the read thread
+	 */
+	JSONObject toJSON() throws JSONException {
+		JSONObject obj = new JSONObject();
+		obj.put("samplesIn", samplesIn);
+		obj.put("samplesOut", samplesOut);
+		obj.put("summaries", summaries);
+		return obj;
+	}
+}
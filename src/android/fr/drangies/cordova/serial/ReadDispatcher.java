@@ -0,0 +1,262 @@
+package fr.drangies.cordova.serial;
+
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Coalesce the chunks read from the serial port so that they cross the cordova bridge
+ * in batches instead of one {@link org.apache.cordova.PluginResult} per USB packet.
+ * A batch is flushed when it reaches a size threshold, when a time window expires or
+ * when a frame delimiter is received.
+ * With timestamps, every chunk or frame is sent as a record: the time it was read, on 8 bytes, and
+ * its length, on 2 bytes, both big endian, then the data. A batch then holds whole records.
+ * @author Xavier Seignard <xavier.seignard@gmail.com>
+ */
+class ReadDispatcher {
+	// default values, no batching at all
+	static final int DEFAULT_BATCH_SIZE = 0;
+	static final int DEFAULT_BATCH_WINDOW = 0;
+	static final int NO_DELIMITER = -1;
+	// header of a timestamped record, the time then the length
+	static final int RECORD_HEADER = 10;
+	private static final int MAX_RECORD = 0xffff;
+	// capacity of the reusable buffer when no batch size is given
+	private static final int DEFAULT_CAPACITY = 16 * 1024;
+
+	/**
+	 * Receive the coalesced batches
+	 */
+	interface Listener {
+		/**
+		 * @param data the batch
+		 * @param captured when its oldest data was read, in {@link android.os.SystemClock#elapsedRealtimeNanos()}
+		 */
+		void onFlush(byte[] data, long captured);
+	}
+
+	private final ScheduledExecutorService scheduler;
+	private final Listener listener;
+	// batching params
+	private int batchSize = DEFAULT_BATCH_SIZE;
+	private int batchWindow = DEFAULT_BATCH_WINDOW;
+	private int delimiter = NO_DELIMITER;
+	private boolean timestamps;
+	// pending bytes, when the oldest of them was read, and the timer that will flush them
+	private ByteRingBuffer buffer;
+	private long batchCaptured;
+	private ScheduledFuture<?> pendingFlush;
+	// length header of a batched frame, or header of a record
+	private final byte[] frameHeader = new byte[2];
+	private final byte[] recordHeader = new byte[RECORD_HEADER];
+
+	private final Runnable flushTask = new Runnable() {
+		public void run() {
+			flush();
+		}
+	};
+
+	/**
+	 * Create a dispatcher
+	 * @param scheduler the executor used to flush the batches when the time window expires
+	 * @param listener the listener that will receive the batches
+	 */
+	ReadDispatcher(ScheduledExecutorService scheduler, Listener listener) {
+		this.scheduler = scheduler;
+		this.listener = listener;
+	}
+
+	/**
+	 * Configure the batching from the openSerial options
+	 * @param opts a {@link JSONObject} that may contain readBatchSize, readBatchWindow, readDelimiter and timestamps
+	 * @throws JSONException if an option has the wrong type
+	 */
+	synchronized void configure(JSONObject opts) throws JSONException {
+		flush();
+		batchSize = opts.has("readBatchSize") ? opts.getInt("readBatchSize") : DEFAULT_BATCH_SIZE;
+		batchWindow = opts.has("readBatchWindow") ? opts.getInt("readBatchWindow") : DEFAULT_BATCH_WINDOW;
+		delimiter = opts.has("readDelimiter") ? opts.getInt("readDelimiter") & 0xff : NO_DELIMITER;
+		timestamps = opts.has("timestamps") && opts.getBoolean("timestamps");
+		int capacity = batchSize > 0 ? batchSize : DEFAULT_CAPACITY;
+		if (buffer == null || buffer.capacity() != capacity) {
+			buffer = new ByteRingBuffer(capacity);
+		}
+	}
+
+	/**
+	 * @return true if incoming data is batched, false if every chunk is sent as is
+	 */
+	synchronized boolean isBatching() {
+		return batchSize > 0 || batchWindow > 0 || delimiter != NO_DELIMITER;
+	}
+
+	/**
+	 * @return true if the data is sent as timestamped records
+	 */
+	synchronized boolean isTimestamped() {
+		return timestamps;
+	}
+
+	/**
+	 * Add incoming data to the current batch, flushing it when needed
+	 * @param data the bytes read from the serial port
+	 * @param captured when they were read, in {@link android.os.SystemClock#elapsedRealtimeNanos()}
+	 */
+	synchronized void push(byte[] data, long captured) {
+		if (timestamps) {
+			// a chunk larger than a record is split, its parts keep its time
+			for (int off = 0; off < data.length; off += MAX_RECORD) {
+				int len = Math.min(MAX_RECORD, data.length - off);
+				pushRecord(data, off, len, captured);
+				if (lastDelimiter(data, off, len) >= 0) {
+					flush();
+				}
+			}
+			return;
+		}
+		if (!isBatching()) {
+			listener.onFlush(data, captured);
+			return;
+		}
+		// everything up to the last delimiter is a complete frame and goes out right away
+		int boundary = lastDelimiter(data, 0, data.length);
+		if (boundary >= 0) {
+			append(data, 0, boundary + 1, captured);
+			flush();
+		}
+		append(data, boundary + 1, data.length - boundary - 1, captured);
+		scheduleFlush();
+	}
+
+	/**
+	 * Add a complete frame to the current batch.
+	 * Without batching every frame is sent on its own, otherwise a batch holds whole frames,
+	 * each one preceded by its length on 2 bytes, big endian.
+	 * @param frame the buffer holding the frame, it is copied
+	 * @param off offset of the frame in the buffer
+	 * @param len length of the frame, at most 65535 bytes
+	 * @param captured when the end of the frame was read, in {@link android.os.SystemClock#elapsedRealtimeNanos()}
+	 */
+	synchronized void pushFrame(byte[] frame, int off, int len, long captured) {
+		if (timestamps) {
+			pushRecord(frame, off, len, captured);
+			return;
+		}
+		if (!isBatching()) {
+			byte[] data = new byte[len];
+			System.arraycopy(frame, off, data, 0, len);
+			listener.onFlush(data, captured);
+			return;
+		}
+		if (buffer.remaining() < len + 2) {
+			flush();
+		}
+		if (buffer.remaining() < len + 2) {
+			// too large for the batch buffer, send it alone
+			byte[] data = new byte[len + 2];
+			data[0] = (byte) (len >> 8);
+			data[1] = (byte) len;
+			System.arraycopy(frame, off, data, 2, len);
+			listener.onFlush(data, captured);
+			return;
+		}
+		frameHeader[0] = (byte) (len >> 8);
+		frameHeader[1] = (byte) len;
+		put(frameHeader, 0, 2, captured);
+		buffer.put(frame, off, len);
+		if (batchSize > 0 && buffer.size() >= batchSize) {
+			flush();
+		}
+		scheduleFlush();
+	}
+
+	/**
+	 * Add a timestamped record to the current batch, or send it alone without batching
+	 */
+	private void pushRecord(byte[] data, int off, int len, long captured) {
+		for (int i = 0; i < 8; i++) {
+			recordHeader[i] = (byte) (captured >> (56 - 8 * i));
+		}
+		recordHeader[8] = (byte) (len >> 8);
+		recordHeader[9] = (byte) len;
+		if (isBatching() && buffer.remaining() < len + RECORD_HEADER) {
+			flush();
+		}
+		if (!isBatching() || buffer.remaining() < len + RECORD_HEADER) {
+			byte[] record = new byte[len + RECORD_HEADER];
+			System.arraycopy(recordHeader, 0, record, 0, RECORD_HEADER);
+			System.arraycopy(data, off, record, RECORD_HEADER, len);
+			listener.onFlush(record, captured);
+			return;
+		}
+		put(recordHeader, 0, RECORD_HEADER, captured);
+		buffer.put(data, off, len);
+		if (batchSize > 0 && buffer.size() >= batchSize) {
+			flush();
+		}
+		scheduleFlush();
+	}
+
+	/**
+	 * Put data in the buffer, remembering when the oldest pending data was read
+	 * @return the number of bytes put
+	 */
+	private int put(byte[] data, int off, int len, long captured) {
+		if (buffer.isEmpty()) {
+			batchCaptured = captured;
+		}
+		return buffer.put(data, off, len);
+	}
+
+	/**
+	 * Arm the time window timer if there is pending data
+	 */
+	private void scheduleFlush() {
+		if (!buffer.isEmpty() && pendingFlush == null && batchWindow > 0) {
+			pendingFlush = scheduler.schedule(flushTask, batchWindow, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	/**
+	 * Append to the current batch, flushing each time the size threshold is reached
+	 */
+	private void append(byte[] data, int off, int len, long captured) {
+		int end = off + len;
+		while (off < end) {
+			off += put(data, off, end - off, captured);
+			if (buffer.remaining() == 0 || (batchSize > 0 && buffer.size() >= batchSize)) {
+				flush();
+			}
+		}
+	}
+
+	/**
+	 * @return the index of the last delimiter in the given part of the data, -1 if none
+	 */
+	private int lastDelimiter(byte[] data, int off, int len) {
+		if (delimiter != NO_DELIMITER) {
+			for (int i = off + len - 1; i >= off; i--) {
+				if ((data[i] & 0xff) == delimiter) {
+					return i;
+				}
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Send the current batch, if any
+	 */
+	synchronized void flush() {
+		if (pendingFlush != null) {
+			pendingFlush.cancel(false);
+			pendingFlush = null;
+		}
+		if (buffer != null && !buffer.isEmpty()) {
+			listener.onFlush(buffer.drain(), batchCaptured);
+		}
+	}
+}
@@ -0,0 +1,421 @@
+package fr.drangies.cordova.serial;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayDeque;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import android.util.Log;
+
+/**
+ * Bounded buffer between the read dispatcher and the cordova bridge, for when javascript cannot keep up.
+ * Results sent through the bridge are queued there without limit until the WebView takes them, so
+ * at most receiveWindow bytes are sent without being acknowledged by the read callback, the rest
+ * waits here. Once receiveBufferSize bytes wait, the overflow policy applies: drop the oldest
+ * batches, drop the newest ones, stop reading the port until javascript catches up, or spill the
+ * batches to a file. A batch is kept or dropped whole, so that frames and records stay whole.
+ * @author Xavier Seignard <xavier.seignard@gmail.com>
+ */
+class ReceiveBuffer {
+	// logging tag
+	private static final String TAG = ReceiveBuffer.class.getSimpleName();
+	// overflow policies
+	static final String DROP_OLDEST = "dropOldest";
+	static final String DROP_NEWEST = "dropNewest";
+	static final String PAUSE = "pause";
+	static final String SPILL = "spill";
+	// default values
+	static final int DEFAULT_WINDOW = 64 * 1024;
+	static final long DEFAULT_SPILL_SIZE = 64L * 1024 * 1024;
+	// header of a spilled batch, its time then its length
+	private static final int SPILL_HEADER = 12;
+
+	/**
+	 * Notified of the overflows and of the pauses of the reads, under the lock of the buffer
+	 */
+	interface Listener {
+		/**
+		 * @param hold true to stop reading the port, false to read it again
+		 */
+		void onHold(boolean hold);
+
+		/**
+		 * @param state overflow when the buffer starts overflowing or the reads are held, overflowEnd once it is empty again
+		 * @param details a {@link JSONObject} describing the overflow
+		 */
+		void onOverflow(String state, JSONObject details);
+	}
+
+	/**
+	 * A batch waiting for the bridge
+	 */
+	private static class Entry {
+		final byte[] data;
+		final long captured;
+
+		Entry(byte[] data, long captured) {
+			this.data = data;
+			this.captured = captured;
+		}
+	}
+
+	private final int capacity;
+	private final int window;
+	private final String policy;
+	private final File spillFile;
+	private final long spillSize;
+	private final ReadDispatcher.Listener output;
+	private final Listener listener;
+	// batches waiting in memory, the oldest first, and their size
+	private final ArrayDeque<Entry> entries = new ArrayDeque<Entry>();
+	private int buffered;
+	// bytes sent through the bridge and not acknowledged yet
+	private long inFlight;
+	// spilled batches, read back from readPos
+	private RandomAccessFile spill;
+	private long readPos;
+	private long writePos;
+	// true while sending, the acknowledgements it triggers do not send again
+	private boolean draining;
+	private boolean held;
+	// current overflow, its start and what it cost
+	private boolean overflowing;
+	private long overflowStart;
+	private long overflowDropped;
+	private long overflowSpilled;
+	// totals since the port was opened
+	final AtomicLong droppedBytes = new AtomicLong();
+	final AtomicLong spilledBytes = new AtomicLong();
+	final AtomicLong overflows = new AtomicLong();
+	final AtomicLong holds = new AtomicLong();
+
+	/**
+	 * Create the receive buffer of a port, if the openSerial options ask for one
+	 * @param opts a {@link JSONObject} that may contain receiveBufferSize, receiveWindow, overflowPolicy,
+	 *             spillPath and spillMaxSize
+	 * @param output receive the batches sent to javascript
+	 * @param listener notified of the overflows and of the pauses of the reads
+	 * @return the buffer, null without receiveBufferSize
+	 * @throws JSONException if an option has the wrong type, or overflowPolicy is unknown
+	 */
+	static ReceiveBuffer create(JSONObject opts, ReadDispatcher.Listener output, Listener listener) throws JSONException {
+		int capacity = opts.has("receiveBufferSize") ? opts.getInt("receiveBufferSize") : 0;
+		if (capacity <= 0) {
+			return null;
+		}
+		return new ReceiveBuffer(capacity, opts, output, listener);
+	}
+
+	private ReceiveBuffer(int capacity, JSONObject opts, ReadDispatcher.Listener output, Listener listener) throws JSONException {
+		this.capacity = capacity;
+		this.output = output;
+		this.listener = listener;
+		window = Math.max(1, opts.has("receiveWindow") ? opts.getInt("receiveWindow") : DEFAULT_WINDOW);
+		policy = opts.has("overflowPolicy") ? opts.getString("overflowPolicy") : DROP_OLDEST;
+		if (!DROP_OLDEST.equals(policy) && !DROP_NEWEST.equals(policy) && !PAUSE.equals(policy) && !SPILL.equals(policy)) {
+			throw new JSONException("Unknown overflowPolicy: " + policy);
+		}
+		if (SPILL.equals(policy)) {
+			// set by the plugin when not given
+			spillFile = new File(opts.getString("spillPath"));
+			spillSize = opts.has("spillMaxSize") ? opts.getLong("spillMaxSize") : DEFAULT_SPILL_SIZE;
+		}
+		else {
+			spillFile = null;
+			spillSize = 0;
+		}
+	}
+
+	/**
+	 * Send a batch to javascript, or keep it until the read callback has acknowledged enough data
+	 * @param data the batch
+	 * @param captured when its oldest data was read, in {@link android.os.SystemClock#elapsedRealtimeNanos()}
+	 */
+	synchronized void offer(byte[] data, long captured) {
+		if (entries.isEmpty() && writePos == 0 && fits(data.length)) {
+			send(data, captured);
+			return;
+		}
+		if (writePos > 0 || buffered + data.length > capacity) {
+			overflow(data, captured);
+		}
+		else {
+			entries.add(new Entry(data, captured));
+			buffered += data.length;
+		}
+		if (PAUSE.equals(policy) && !held && buffered > capacity * 3L / 4) {
+			// the reads in progress still come in, the pause starts a quarter before the end
+			hold(true);
+		}
+		drain();
+	}
+
+	/**
+	 * Make room for a batch that does not fit, as the overflow policy says
+	 */
+	private void overflow(byte[] data, long captured) {
+		startOverflow();
+		if (SPILL.equals(policy)) {
+			if (spill(data, captured)) {
+				return;
+			}
+		}
+		else if (DROP_OLDEST.equals(policy)) {
+			while (buffered + data.length > capacity && !entries.isEmpty()) {
+				int length = entries.poll().data.length;
+				buffered -= length;
+				drop(length);
+			}
+			if (buffered + data.length <= capacity) {
+				entries.add(new Entry(data, captured));
+				buffered += data.length;
+				return;
+			}
+		}
+		else if (PAUSE.equals(policy)) {
+			hold(true);
+		}
+		// dropNewest, a paused port still overflowing, a batch larger than the buffer or a full spill file
+		drop(data.length);
+	}
+
+	private void drop(long length) {
+		droppedBytes.addAndGet(length);
+		overflowDropped += length;
+	}
+
+	/**
+	 * Append a batch to the spill file, created on the first overflow
+	 * @return false if the file is full or cannot be written
+	 */
+	private boolean spill(byte[] data, long captured) {
+		if (writePos + SPILL_HEADER + data.length > spillSize) {
+			return false;
+		}
+		try {
+			if (spill == null) {
+				spill = new RandomAccessFile(spillFile, "rw");
+				spill.setLength(0);
+			}
+			spill.seek(writePos);
+			spill.writeLong(captured);
+			spill.writeInt(data.length);
+			spill.write(data);
+			writePos += SPILL_HEADER + data.length;
+			spilledBytes.addAndGet(data.length);
+			overflowSpilled += data.length;
+			return true;
+		}
+		catch (IOException e) {
+			Log.d(TAG, "Cannot spill to " + spillFile + ": " + e.getMessage());
+			return false;
+		}
+	}
+
+	/**
+	 * Read back the oldest spilled batch, if the window has room for it
+	 * @return the batch, null if it has to wait or if the file cannot be read, it is then discarded
+	 */
+	private Entry unspill() {
+		try {
+			spill.seek(readPos);
+			long captured = spill.readLong();
+			int length = spill.readInt();
+			if (!fits(length)) {
+				return null;
+			}
+			byte[] data = new byte[length];
+			spill.readFully(data);
+			readPos += SPILL_HEADER + data.length;
+			if (readPos == writePos) {
+				// empty, written again from the start
+				readPos = 0;
+				writePos = 0;
+				spill.setLength(0);
+			}
+			return new Entry(data, captured);
+		}
+		catch (IOException e) {
+			Log.d(TAG, "Cannot read back " + spillFile + ": " + e.getMessage());
+			// the headers are counted with the data left
+			drop(writePos - readPos);
+			readPos = 0;
+			writePos = 0;
+			return null;
+		}
+	}
+
+	/**
+	 * The read callback is done with some data, send the batches it now has room for
+	 * @param bytes the number of bytes acknowledged
+	 */
+	synchronized void acknowledge(long bytes) {
+		inFlight = Math.max(0, inFlight - bytes);
+		if (!draining) {
+			drain();
+		}
+	}
+
+	/**
+	 * Forget the data sent so far, when a new read callback is registered: the previous one will not acknowledge it
+	 */
+	synchronized void resetInFlight() {
+		inFlight = 0;
+		drain();
+	}
+
+	/**
+	 * Send the waiting batches while the window allows it, the memory ones then the spilled ones
+	 */
+	private void drain() {
+		draining = true;
+		try {
+			while (true) {
+				Entry next = entries.peek();
+				if (next != null) {
+					if (!fits(next.data.length)) {
+						break;
+					}
+					entries.poll();
+					buffered -= next.data.length;
+				}
+				else if (writePos > 0) {
+					next = unspill();
+					if (next == null) {
+						// the batch waits for the window, unless the file was discarded
+						if (writePos > 0) {
+							break;
+						}
+						continue;
+					}
+				}
+				else {
+					break;
+				}
+				send(next.data, next.captured);
+			}
+		}
+		finally {
+			draining = false;
+		}
+		if (held && buffered <= capacity / 4) {
+			hold(false);
+		}
+		if (overflowing && entries.isEmpty() && writePos == 0 && !held) {
+			endOverflow();
+		}
+	}
+
+	/**
+	 * @return true if a batch can be sent without waiting for acknowledgements
+	 */
+	private boolean fits(int length) {
+		return inFlight == 0 || inFlight + length <= window;
+	}
+
+	private void send(byte[] data, long captured) {
+		inFlight += data.length;
+		output.onFlush(data, captured);
+	}
+
+	private void hold(boolean hold) {
+		held = hold;
+		if (hold) {
+			holds.incrementAndGet();
+			// javascript is told that the device is held back
+			startOverflow();
+		}
+		listener.onHold(hold);
+	}
+
+	private void startOverflow() {
+		if (overflowing) {
+			return;
+		}
+		overflowing = true;
+		overflowStart = System.currentTimeMillis();
+		overflowDropped = 0;
+		overflowSpilled = 0;
+		overflows.incrementAndGet();
+		Log.d(TAG, "Overflowing, policy=" + policy);
+		JSONObject details = new JSONObject();
+		try {
+			details.put("policy", policy);
+			details.put("buffered", buffered);
+			details.put("inFlight", inFlight);
+		}
+		catch (JSONException e) {
+			// never happens, org.json declares it
+		}
+		listener.onOverflow("overflow", details);
+	}
+
+	private void endOverflow() {
+		overflowing = false;
+		JSONObject details = new JSONObject();
+		try {
+			details.put("policy", policy);
+			details.put("droppedBytes", overflowDropped);
+			details.put("spilledBytes", overflowSpilled);
+			details.put("durationMs", System.currentTimeMillis() - overflowStart);
+		}
+		catch (JSONException e) {
+			// never happens, org.json declares it
+		}
+		listener.onOverflow("overflowEnd", details);
+	}
+
+	/**
+	 * @return true while the reads are stopped by the pause policy
+	 */
+	synchronized boolean isHeld() {
+		return held;
+	}
+
+	/**
+	 * Drop everything and delete the spill file, when the port is closed for good
+	 */
+	synchronized void close() {
+		entries.clear();
+		buffered = 0;
+		readPos = 0;
+		writePos = 0;
+		if (spill != null) {
+			try {
+				spill.close();
+			}
+			catch (IOException e) {
+				// nothing left to read from it
+				Log.d(TAG, e.getMessage());
+			}
+			spill = null;
+			if (!spillFile.delete()) {
+				Log.d(TAG, "Cannot delete " + spillFile);
+			}
+		}
+	}
+
+	/**
+	 * Describe the buffer for the statistics
+	 * @throws JSONException never, org.json declares it
+	 */
+	synchronized JSONObject toJSON() throws JSONException {
+		JSONObject obj = new JSONObject();
+		obj.put("size", capacity);
+		obj.put("window", window);
+		obj.put("policy", policy);
+		obj.put("buffered", buffered);
+		obj.put("inFlight", inFlight);
+		obj.put("spilled", writePos - readPos);
+		obj.put("held", held);
+		obj.put("droppedBytes", droppedBytes.get());
+		obj.put("spilledBytes", spilledBytes.get());
+		obj.put("overflows", overflows.get());
+		obj.put("holds", holds.get());
+		return obj;
+	}
+}
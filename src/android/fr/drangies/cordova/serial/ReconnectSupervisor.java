@@ -0,0 +1,98 @@
+package fr.drangies.cordova.serial;
+
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Reconnection policy of a port whose device was unplugged or stopped answering.
+ * The attempts are spaced with a bounded exponential backoff, starting at reconnectDelay and
+ * doubling up to reconnectMaxDelay. The attachment of a matching device triggers an attempt
+ * right away, the supervisor only tells when to try.
+ * @author Xavier Seignard <xavier.seignard@gmail.com>
+ */
+class ReconnectSupervisor {
+	// default values
+	static final int DEFAULT_DELAY = 250;
+	static final int DEFAULT_MAX_DELAY = 10000;
+	// largest doubling of the delay, to stay away from overflows
+	private static final int MAX_SHIFT = 20;
+
+	// backoff params
+	private final long delay;
+	private final long maxDelay;
+	// 0 to try forever
+	private final int maxAttempts;
+	// attempts since the connection was lost
+	private int attempts;
+	// the next attempt, null if none is scheduled
+	private ScheduledFuture<?> timer;
+
+	/**
+	 * Create the supervisor asked for by the openSerial options
+	 * @param opts a {@link JSONObject} that may contain autoReconnect, reconnectDelay, reconnectMaxDelay and reconnectMaxAttempts
+	 * @return the supervisor, null if autoReconnect is not enabled
+	 * @throws JSONException if an option has the wrong type
+	 */
+	static ReconnectSupervisor create(JSONObject opts) throws JSONException {
+		if (!opts.has("autoReconnect") || !opts.getBoolean("autoReconnect")) {
+			return null;
+		}
+		return new ReconnectSupervisor(opts);
+	}
+
+	private ReconnectSupervisor(JSONObject opts) throws JSONException {
+		delay = Math.max(1, opts.has("reconnectDelay") ? opts.getLong("reconnectDelay") : DEFAULT_DELAY);
+		maxDelay = Math.max(delay, opts.has("reconnectMaxDelay") ? opts.getLong("reconnectMaxDelay") : DEFAULT_MAX_DELAY);
+		maxAttempts = Math.max(0, opts.has("reconnectMaxAttempts") ? opts.getInt("reconnectMaxAttempts") : 0);
+	}
+
+	/**
+	 * Count an attempt and tell how long to wait before making it
+	 * @return the delay in milliseconds, -1 once the attempts are exhausted
+	 */
+	synchronized long nextDelay() {
+		if (maxAttempts > 0 && attempts >= maxAttempts) {
+			return -1;
+		}
+		long next = Math.min(maxDelay, delay << Math.min(attempts, MAX_SHIFT));
+		attempts++;
+		return next;
+	}
+
+	synchronized int getAttempts() {
+		return attempts;
+	}
+
+	/**
+	 * Schedule the next attempt, replacing the one already scheduled
+	 * @param scheduler the executor the attempt is scheduled on
+	 * @param attempt the attempt
+	 * @param millis the delay before the attempt
+	 */
+	synchronized void schedule(ScheduledExecutorService scheduler, Runnable attempt, long millis) {
+		cancel();
+		timer = scheduler.schedule(attempt, millis, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Cancel the scheduled attempt, if any
+	 */
+	synchronized void cancel() {
+		if (timer != null) {
+			timer.cancel(false);
+			timer = null;
+		}
+	}
+
+	/**
+	 * Start over, once reconnected or closed
+	 */
+	synchronized void reset() {
+		cancel();
+		attempts = 0;
+	}
+}
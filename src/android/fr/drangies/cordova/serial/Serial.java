@@ -1,10 +1,17 @@
 package fr.drangies.cordova.serial;
 
+import java.io.File;
 import java.io.IOException;
-import java.nio.ByteBuffer;
+import java.net.URI;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
-import java.util.concurrent.ExecutorService;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 import org.apache.cordova.CallbackContext;
 import org.apache.cordova.CordovaPlugin;
@@ -17,20 +24,17 @@ import com.hoho.android.usbserial.driver.CdcAcmSerialDriver;
 import com.hoho.android.usbserial.driver.Ch34xSerialDriver;
 import com.hoho.android.usbserial.driver.Cp21xxSerialDriver;
 import com.hoho.android.usbserial.driver.FtdiSerialDriver;
-import com.hoho.android.usbserial.driver.ProbeTable;
 import com.hoho.android.usbserial.driver.ProlificSerialDriver;
 import com.hoho.android.usbserial.driver.UsbSerialDriver;
 import com.hoho.android.usbserial.driver.UsbSerialPort;
-import com.hoho.android.usbserial.driver.UsbSerialProber;
-import com.hoho.android.usbserial.util.SerialInputOutputManager;
 
 import android.app.PendingIntent;
 import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
 import android.hardware.usb.UsbDevice;
-import android.hardware.usb.UsbDeviceConnection;
 import android.hardware.usb.UsbManager;
+import android.os.SystemClock;
 import android.util.Base64;
 import android.util.Log;
 
@@ -48,45 +52,96 @@ public class Serial extends CordovaPlugin {
 	private static final String ACTION_READ = "readSerial";
 	private static final String ACTION_WRITE = "writeSerial";
 	private static final String ACTION_WRITE_HEX = "writeSerialHex";
+	private static final String ACTION_WRITE_BINARY = "writeSerialBinary";
 	private static final String ACTION_CLOSE = "closeSerial";
 	private static final String ACTION_READ_CALLBACK = "registerReadCallback";
+	private static final String ACTION_STATE_CALLBACK = "registerStateCallback";
+	private static final String ACTION_GET_STATS = "getStats";
+	private static final String ACTION_RESET_STATS = "resetStats";
+	private static final String ACTION_LIST_DEVICES = "listDevices";
+	private static final String ACTION_START_CAPTURE = "startCapture";
+	private static final String ACTION_STOP_CAPTURE = "stopCapture";
+	private static final String ACTION_ROTATE_CAPTURE = "rotateCapture";
+	private static final String ACTION_REPLAY_CAPTURE = "replayCapture";
+	private static final String ACTION_STOP_REPLAY = "stopReplay";
+	private static final String ACTION_TRANSACT = "transact";
+	private static final String ACTION_SEND_FILE = "sendFile";
+	private static final String ACTION_RECEIVE_FILE = "receiveFile";
+	private static final String ACTION_CANCEL_TRANSFER = "cancelTransfer";
+	private static final String ACTION_GET_CONTROL_LINES = "getControlLines";
+	private static final String ACTION_SET_CONTROL_LINES = "setControlLines";
+	private static final String ACTION_CHANNEL_CALLBACK = "registerChannelCallback";
+	private static final String ACTION_WRITE_CHANNEL = "writeChannel";
+	private static final String ACTION_SCHEDULE_WRITE = "schedulePeriodicWrite";
+	private static final String ACTION_CANCEL_WRITE = "cancelPeriodicWrite";
+	private static final String ACTION_ACKNOWLEDGE_READ = "acknowledgeRead";
 
-	// UsbManager instance to deal with permission and opening
-	private UsbManager manager;
-	// The current driver that handle the serial port
+	// time given to the queued actions when the plugin is destroyed
+	private static final long SHUTDOWN_TIMEOUT = 2000;
+
+	// UsbManager instance to deal with permission
+	private volatile UsbManager manager;
+	// cache of the attached devices, kept up to date by the USB broadcasts
+	private DeviceRegistry registry;
+	// the virtual devices created with the Loopback and Scripted drivers
+	private final VirtualDevices virtualDevices = new VirtualDevices();
+	// The drivers the permission was requested for, by device id
+	private final Map<Integer, UsbSerialDriver> drivers = new ConcurrentHashMap<Integer, UsbSerialDriver>();
+	// The driver the permission was last requested for, used when no device id is given, only used on the control lane
 	private UsbSerialDriver driver;
-	// The serial port that will be used in this plugin
-	private UsbSerialPort port;
-	// Read buffer, and read params
-	private static final int READ_WAIT_MILLIS = 200;
-	private static final int BUFSIZ = 4096;
-	private final ByteBuffer mReadBuffer = ByteBuffer.allocate(BUFSIZ);
-	// Connection info
-	private int baudRate;
-	private int dataBits;
-	private int stopBits;
-	private int parity;
-	private boolean setDTR;
-	private boolean setRTS;
-	private boolean sleepOnPause;
-	
-	// callback that will be used to send back data to the cordova app
-	private CallbackContext readCallback;
-	
-	// I/O manager to handle new incoming serial data
-	private final ExecutorService mExecutor = Executors.newSingleThreadExecutor();
-	private SerialInputOutputManager mSerialIoManager;
-	private final SerialInputOutputManager.Listener mListener =
-			new SerialInputOutputManager.Listener() {
-				@Override
-				public void onRunError(Exception e) {
-					Log.d(TAG, "Runner stopped.");
-				}
-				@Override
-				public void onNewData(final byte[] data) {
-					Serial.this.updateReceivedData(data);
-				}
-			};
+	// The opened serial ports, by handle
+	private final Map<String, SerialSession> sessions = new ConcurrentHashMap<String, SerialSession>();
+	// The handle of the last opened port, used when no handle is given
+	private volatile String defaultHandle;
+	// the file transfers queued or running, by handle, so that a cancellation reaches them before they start
+	private final Map<String, List<ModemTransfer>> transfers = new HashMap<String, List<ModemTransfer>>();
+
+	// callback that will be used to send back data to the cordova app,
+	// for the ports that do not have their own read callback
+	private volatile CallbackContext readCallback;
+	// the port given a pipeline and its own read callback by a registration without handle, null if none
+	private volatile SerialSession pipelineSession;
+	// data sent to that callback, in order, until javascript acknowledges it
+	private final ArrayDeque<Unacknowledged> unacknowledged = new ArrayDeque<Unacknowledged>();
+
+	/**
+	 * Bytes of a port sent to the shared read callback
+	 */
+	private static class Unacknowledged {
+		// null for data of no opened port, like a replay
+		final SerialSession session;
+		long bytes;
+
+		Unacknowledged(SerialSession session, long bytes) {
+			this.session = session;
+			this.bytes = bytes;
+		}
+	}
+
+	// the actions that do not target an opened port: permission, enumeration and opening
+	private final SerialLane mControl = new SerialLane("control");
+	// the ordered actions of each port, by handle
+	private final Map<String, SerialLane> lanes = new ConcurrentHashMap<String, SerialLane>();
+	// start the reconnection of a port whose I/O manager failed, send the control line changes
+	private final SerialSession.ConnectionListener mConnectionListener = new SerialSession.ConnectionListener() {
+		@Override
+		public void onConnectionLost(SerialSession session, String reason) {
+			onPortLost(session, reason);
+		}
+		@Override
+		public void onControlLinesChanged(SerialSession session, JSONObject lines) {
+			sendState(session, "controlLines", lines);
+		}
+		@Override
+		public void onReceiveOverflow(SerialSession session, String state, JSONObject details) {
+			sendState(session, state, details);
+		}
+	};
+
+	// scheduler shared by the read dispatchers of all the sessions
+	private final ScheduledExecutorService mScheduler = Executors.newSingleThreadScheduledExecutor();
+	// the capture log being replayed, null if none
+	private volatile CaptureLog.Replay mReplay;
 
 	/**
 	 * Overridden execute method
@@ -100,6 +155,11 @@ public class Serial extends CordovaPlugin {
 	public boolean execute(String action, JSONArray args, final CallbackContext callbackContext) throws JSONException {
 		Log.d(TAG, "Action: " + action);
 		JSONObject arg_object = args.optJSONObject(0);
+		if (arg_object == null) {
+			arg_object = new JSONObject();
+		}
+		// the port targeted by the action, the default one if not given
+		String handle = arg_object.isNull("handle") ? null : arg_object.getString("handle");
 		// request permission
 		if (ACTION_REQUEST_PERMISSION.equals(action)) {
 			JSONObject opts = arg_object.has("opts")? arg_object.getJSONObject("opts") : new JSONObject();
@@ -115,87 +175,352 @@ public class Serial extends CordovaPlugin {
 		// write to the serial port
 		else if (ACTION_WRITE.equals(action)) {
 			String data = arg_object.getString("data");
-			writeSerial(data, callbackContext);
+			writeSerial(handle, data, callbackContext);
 			return true;
 		}
 		// write hex to the serial port
 		else if (ACTION_WRITE_HEX.equals(action)) {
 			String data = arg_object.getString("data");
-			writeSerialHex(data, callbackContext);
+			writeSerialHex(handle, data, callbackContext);
+			return true;
+		}
+		// write binary data to the serial port
+		else if (ACTION_WRITE_BINARY.equals(action)) {
+			writeSerialBinary(handle, args, callbackContext);
 			return true;
 		}
 		// read on the serial port
 		else if (ACTION_READ.equals(action)) {
-			readSerial(callbackContext);
+			JSONObject opts = arg_object.has("opts")? arg_object.getJSONObject("opts") : new JSONObject();
+			readSerial(handle, opts, callbackContext);
 			return true;
 		}
 		// close the serial port
 		else if (ACTION_CLOSE.equals(action)) {
-			closeSerial(callbackContext);
+			closeSerial(handle, callbackContext);
 			return true;
 		}
 		// Register read callback
 		else if (ACTION_READ_CALLBACK.equals(action)) {
-			registerReadCallback(callbackContext);
+			JSONObject opts = arg_object.has("opts")? arg_object.getJSONObject("opts") : new JSONObject();
+			registerReadCallback(handle, opts, callbackContext);
+			return true;
+		}
+		// Register the read callback of a logical channel
+		else if (ACTION_CHANNEL_CALLBACK.equals(action)) {
+			JSONObject opts = arg_object.has("opts")? arg_object.getJSONObject("opts") : new JSONObject();
+			registerChannelCallback(handle, opts.getInt("channel"), callbackContext);
+			return true;
+		}
+		// write on a logical channel
+		else if (ACTION_WRITE_CHANNEL.equals(action)) {
+			JSONObject opts = arg_object.has("opts")? arg_object.getJSONObject("opts") : new JSONObject();
+			// a string, or binary data sent as a base64 string
+			byte[] data = args.length() > 1 ? Base64.decode(args.getString(1), Base64.DEFAULT) : arg_object.getString("data").getBytes();
+			writeChannel(handle, opts.getInt("channel"), data, callbackContext);
+			return true;
+		}
+		// Register connection state callback
+		else if (ACTION_STATE_CALLBACK.equals(action)) {
+			registerStateCallback(handle, callbackContext);
+			return true;
+		}
+		// get the port counters
+		else if (ACTION_GET_STATS.equals(action)) {
+			JSONObject opts = arg_object.has("opts")? arg_object.getJSONObject("opts") : new JSONObject();
+			getStats(handle, opts, callbackContext);
+			return true;
+		}
+		// read the control lines
+		else if (ACTION_GET_CONTROL_LINES.equals(action)) {
+			getControlLines(handle, callbackContext);
+			return true;
+		}
+		// set the DTR and RTS outputs
+		else if (ACTION_SET_CONTROL_LINES.equals(action)) {
+			JSONObject opts = arg_object.has("opts")? arg_object.getJSONObject("opts") : new JSONObject();
+			setControlLines(handle, opts, callbackContext);
+			return true;
+		}
+		// reset the port counters
+		else if (ACTION_RESET_STATS.equals(action)) {
+			resetStats(handle, callbackContext);
+			return true;
+		}
+		// list the attached devices
+		else if (ACTION_LIST_DEVICES.equals(action)) {
+			JSONObject opts = arg_object.has("opts")? arg_object.getJSONObject("opts") : new JSONObject();
+			listDevices(opts, callbackContext);
+			return true;
+		}
+		// write a command and wait for its response
+		else if (ACTION_TRANSACT.equals(action)) {
+			JSONObject opts = arg_object.has("opts")? arg_object.getJSONObject("opts") : new JSONObject();
+			// a string command, or binary data sent as a base64 string
+			byte[] command = args.length() > 1 ? Base64.decode(args.getString(1), Base64.DEFAULT) : arg_object.getString("data").getBytes();
+			transact(handle, command, opts, callbackContext);
+			return true;
+		}
+		// write a payload at a fixed rate
+		else if (ACTION_SCHEDULE_WRITE.equals(action)) {
+			JSONObject opts = arg_object.getJSONObject("opts");
+			// a string payload, or binary data sent as a base64 string
+			byte[] data = args.length() > 1 ? Base64.decode(args.getString(1), Base64.DEFAULT) : arg_object.getString("data").getBytes();
+			schedulePeriodicWrite(handle, data, opts, callbackContext);
+			return true;
+		}
+		else if (ACTION_CANCEL_WRITE.equals(action)) {
+			JSONObject opts = arg_object.getJSONObject("opts");
+			cancelPeriodicWrite(handle, opts.getInt("id"), callbackContext);
+			return true;
+		}
+		// the read callback is done with some data, right away and without result, javascript sends it often
+		else if (ACTION_ACKNOWLEDGE_READ.equals(action)) {
+			JSONObject opts = arg_object.getJSONObject("opts");
+			acknowledgeRead(handle, opts.getLong("bytes"));
+			return true;
+		}
+		// transfer a file with XMODEM or YMODEM
+		else if (ACTION_SEND_FILE.equals(action) || ACTION_RECEIVE_FILE.equals(action)) {
+			JSONObject opts = arg_object.has("opts")? arg_object.getJSONObject("opts") : new JSONObject();
+			transferFile(handle, ACTION_SEND_FILE.equals(action), opts, callbackContext);
+			return true;
+		}
+		else if (ACTION_CANCEL_TRANSFER.equals(action)) {
+			// right away, the transfer holds the lane of the port
+			if (cancelTransfers(handle != null ? handle : defaultHandle)) {
+				callbackContext.success();
+			}
+			else {
+				callbackContext.error("No transfer on the port.");
+			}
+			return true;
+		}
+		// capture the traffic of a port
+		else if (ACTION_START_CAPTURE.equals(action)) {
+			JSONObject opts = arg_object.has("opts")? arg_object.getJSONObject("opts") : new JSONObject();
+			startCapture(handle, opts, callbackContext);
+			return true;
+		}
+		else if (ACTION_STOP_CAPTURE.equals(action)) {
+			stopCapture(handle, callbackContext);
+			return true;
+		}
+		else if (ACTION_ROTATE_CAPTURE.equals(action)) {
+			rotateCapture(handle, callbackContext);
+			return true;
+		}
+		// replay a capture
+		else if (ACTION_REPLAY_CAPTURE.equals(action)) {
+			JSONObject opts = arg_object.has("opts")? arg_object.getJSONObject("opts") : new JSONObject();
+			replayCapture(handle, opts, callbackContext);
+			return true;
+		}
+		else if (ACTION_STOP_REPLAY.equals(action)) {
+			CaptureLog.Replay replay = mReplay;
+			if (replay != null) {
+				replay.cancel();
+			}
+			callbackContext.success();
 			return true;
 		}
 		// the action doesn't exist
 		return false;
 	}
 
+	/**
+	 * Find the session targeted by an action
+	 * @param handle the handle given by javascript, null for the default session
+	 * @return the session, null if there is no such opened port
+	 */
+	private SerialSession getSession(String handle) {
+		String key = handle != null ? handle : defaultHandle;
+		return key != null ? sessions.get(key) : null;
+	}
+
+	/**
+	 * Get the lane of a port, created on first use
+	 * @param handle the handle of the port
+	 * @return the {@link SerialLane} running the actions of the port
+	 */
+	private SerialLane getLane(String handle) {
+		synchronized (lanes) {
+			SerialLane lane = lanes.get(handle);
+			if (lane == null) {
+				lane = new SerialLane(handle);
+				lanes.put(handle, lane);
+			}
+			return lane;
+		}
+	}
+
+	/**
+	 * Run an action on a lane, it fails if the plugin is destroyed
+	 * @param lane the lane to run the action on
+	 * @param callbackContext the cordova {@link CallbackContext} of the action
+	 * @param action the action
+	 */
+	private void post(SerialLane lane, CallbackContext callbackContext, Runnable action) {
+		if (!lane.execute(action)) {
+			callbackContext.error("The plugin is destroyed.");
+		}
+	}
+
+	/**
+	 * Run an action after the previous actions on the same port, on the control lane if there is no opened port
+	 * @param handle the handle given by javascript, null for the default port
+	 * @param callbackContext the cordova {@link CallbackContext} of the action
+	 * @param action the action
+	 */
+	private void runOnPort(String handle, CallbackContext callbackContext, Runnable action) {
+		String key = handle != null ? handle : defaultHandle;
+		post(key != null ? getLane(key) : mControl, callbackContext, action);
+	}
+
+	/**
+	 * Find the session targeted by an action that uses the port, reopening the port if it
+	 * was closed by a pause in lazy mode
+	 * @param handle the handle given by javascript, null for the default session
+	 * @return the session, null if there is no such opened port
+	 */
+	private SerialSession getOpenSession(String handle) {
+		SerialSession session = getSession(handle);
+		if (session != null) {
+			try {
+				session.resumeIfNeeded();
+			}
+			catch (IOException e) {
+				// the session stays closed, the action reports it
+				Log.d(TAG, e.getMessage());
+			}
+		}
+		return session;
+	}
+
+	/**
+	 * Get the device cache, created and registered for the USB broadcasts on first use
+	 * @return the {@link DeviceRegistry}
+	 */
+	private synchronized DeviceRegistry getRegistry() {
+		if (registry == null) {
+			// get UsbManager from Android
+			manager = (UsbManager) cordova.getActivity().getSystemService(Context.USB_SERVICE);
+			registry = new DeviceRegistry(manager);
+			registry.setListener(new DeviceRegistry.Listener() {
+				@Override
+				public void onAttached(UsbDevice device) {
+					onDeviceAttached(device);
+				}
+				@Override
+				public void onDetached(UsbDevice device) {
+					for (SerialSession session : sessions.values()) {
+						if (session.getProvider() == registry && session.getDeviceId() == device.getDeviceId()) {
+							onPortLost(session, "Device detached.");
+						}
+					}
+				}
+			});
+			registry.register(cordova.getActivity());
+		}
+		return registry;
+	}
+
+	/**
+	 * @param driver a driver the permission was requested for
+	 * @return the {@link PortProvider} of its device, virtual or USB
+	 */
+	private PortProvider getProvider(UsbSerialDriver driver) {
+		return driver instanceof VirtualSerialDriver ? virtualDevices : getRegistry();
+	}
+
 	/**
 	 * Request permission the the user for the app to use the USB/serial port
+	 * The devices come from the cache, the permission dialog is skipped if it is already granted.
+	 * The Loopback and Scripted drivers create a virtual device instead, which needs no permission.
 	 * @param callbackContext the cordova {@link CallbackContext}
 	 */
 	private void requestPermission(final JSONObject opts, final CallbackContext callbackContext) {
-		cordova.getThreadPool().execute(new Runnable() {
+		post(mControl, callbackContext, new Runnable() {
 			public void run() {
-				// get UsbManager from Android
-				manager = (UsbManager) cordova.getActivity().getSystemService(Context.USB_SERVICE);
-				UsbSerialProber prober;
+				if (VirtualDevices.isVirtual(opts.optString("driver"))) {
+					try {
+						driver = virtualDevices.create(opts);
+					}
+					catch (JSONException e) {
+						// deal with error
+						Log.d(TAG, e.getMessage());
+						callbackContext.error(e.getMessage());
+						return;
+					}
+					drivers.put(virtualDevices.getDeviceId(driver), driver);
+					Log.d(TAG, "Virtual device created: " + virtualDevices.getDeviceId(driver));
+					callbackContext.success("Permission to connect to the device was accepted!");
+					return;
+				}
+				DeviceRegistry registry = getRegistry();
+				int vid = -1;
+				int pid = -1;
 
 				if (opts.has("vid") && opts.has("pid")) {
-					ProbeTable customTable = new ProbeTable();
 					Object o_vid = opts.opt("vid"); //can be an integer Number or a hex String
 					Object o_pid = opts.opt("pid"); //can be an integer Number or a hex String
-					int vid = o_vid instanceof Number ? ((Number) o_vid).intValue() : Integer.parseInt((String) o_vid,16);
-					int pid = o_pid instanceof Number ? ((Number) o_pid).intValue() : Integer.parseInt((String) o_pid,16);
+					vid = o_vid instanceof Number ? ((Number) o_vid).intValue() : Integer.parseInt((String) o_vid,16);
+					pid = o_pid instanceof Number ? ((Number) o_pid).intValue() : Integer.parseInt((String) o_pid,16);
 					String driver = opts.has("driver") ? (String) opts.opt("driver") : "CdcAcmSerialDriver";
 
 					if (driver.equals("FtdiSerialDriver")) {
-						customTable.addProduct(vid, pid, FtdiSerialDriver.class);
+						registry.addProduct(vid, pid, FtdiSerialDriver.class);
 					}
 					else if (driver.equals("CdcAcmSerialDriver")) {
-						customTable.addProduct(vid, pid, CdcAcmSerialDriver.class);
+						registry.addProduct(vid, pid, CdcAcmSerialDriver.class);
 					}
 					else if (driver.equals("Cp21xxSerialDriver")) {
-                    	customTable.addProduct(vid, pid, Cp21xxSerialDriver.class);
+						registry.addProduct(vid, pid, Cp21xxSerialDriver.class);
 					}
 					else if (driver.equals("ProlificSerialDriver")) {
-                    	customTable.addProduct(vid, pid, ProlificSerialDriver.class);
+						registry.addProduct(vid, pid, ProlificSerialDriver.class);
 					}
 					else if (driver.equals("Ch34xSerialDriver")) {
-						customTable.addProduct(vid, pid, Ch34xSerialDriver.class);
+						registry.addProduct(vid, pid, Ch34xSerialDriver.class);
+					}
+					else {
+						Log.d(TAG, "Unknown driver!");
+						callbackContext.error("Unknown driver!");
+						return;
 					}
-                    else {
-                        Log.d(TAG, "Unknown driver!");
-                        callbackContext.error("Unknown driver!");
-                    }
-
-					prober = new UsbSerialProber(customTable);
-
 				}
-				else {
-					// find all available drivers from attached devices.
-					prober = UsbSerialProber.getDefaultProber();
+				if (opts.optBoolean("refresh")) {
+					registry.invalidate();
 				}
 
-				List<UsbSerialDriver> availableDrivers = prober.findAllDrivers(manager);
-
-				if (!availableDrivers.isEmpty()) {
+				String serialNumber = opts.has("serialNumber") ? opts.optString("serialNumber") : null;
+				List<DeviceRegistry.Entry> availableDevices = registry.find(vid, pid, serialNumber);
+				DeviceRegistry.Entry found = null;
+				if (opts.has("deviceId")) {
+					// a specific device is requested
+					int deviceId = opts.optInt("deviceId");
+					for (DeviceRegistry.Entry availableDevice : availableDevices) {
+						if (availableDevice.getDevice().getDeviceId() == deviceId) {
+							found = availableDevice;
+						}
+					}
+				}
+				else if (!availableDevices.isEmpty()) {
 					// get the first one as there is a high chance that there is no more than one usb device attached to your android
-					driver = availableDrivers.get(0);
+					int index = opts.optInt("index", 0);
+					found = index < availableDevices.size() ? availableDevices.get(index) : null;
+				}
+
+				if (found != null) {
+					driver = found.driver;
 					UsbDevice device = driver.getDevice();
+					drivers.put(device.getDeviceId(), driver);
+					if (manager.hasPermission(device)) {
+						// still granted, typically when reconnecting
+						Log.d(TAG, "Permission to connect to the device was accepted!");
+						callbackContext.success("Permission to connect to the device was accepted!");
+						return;
+					}
 					// create the intent that will be used to get the permission
 					PendingIntent pendingIntent = PendingIntent.getBroadcast(cordova.getActivity(), 0, new Intent(UsbBroadcastReceiver.USB_PERMISSION), 0);
 					// and a filter on the permission we ask
@@ -216,80 +541,188 @@ public class Serial extends CordovaPlugin {
 		});
 	}
 
+	/**
+	 * List the attached USB serial devices, from the cache
+	 * @param opts a {@link JSONObject} that may contain refresh to enumerate the devices again
+	 * @param callbackContext the cordova {@link CallbackContext}
+	 */
+	private void listDevices(final JSONObject opts, final CallbackContext callbackContext) {
+		post(mControl, callbackContext, new Runnable() {
+			public void run() {
+				DeviceRegistry registry = getRegistry();
+				if (opts.optBoolean("refresh")) {
+					registry.invalidate();
+				}
+				try {
+					JSONArray list = registry.toJSON();
+					virtualDevices.describe(list);
+					callbackContext.success(list);
+				}
+				catch (JSONException e) {
+					// deal with error
+					Log.d(TAG, e.getMessage());
+					callbackContext.error(e.getMessage());
+				}
+			}
+		});
+	}
+
 	/**
 	 * Open the serial port from Cordova
 	 * @param opts a {@link JSONObject} containing the connection paramters
 	 * @param callbackContext the cordova {@link CallbackContext}
 	 */
 	private void openSerial(final JSONObject opts, final CallbackContext callbackContext) {
-		cordova.getThreadPool().execute(new Runnable() {
+		post(mControl, callbackContext, new Runnable() {
 			public void run() {
-				UsbDeviceConnection connection = manager.openDevice(driver.getDevice());
-				if (connection != null) {
-					// get first port and open it
-					port = driver.getPorts().get(0);
-					try {
-						// get connection params or the default values
-						baudRate = opts.has("baudRate") ? opts.getInt("baudRate") : 9600;
-						dataBits = opts.has("dataBits") ? opts.getInt("dataBits") : UsbSerialPort.DATABITS_8;
-						stopBits = opts.has("stopBits") ? opts.getInt("stopBits") : UsbSerialPort.STOPBITS_1;
-						parity = opts.has("parity") ? opts.getInt("parity") : UsbSerialPort.PARITY_NONE;
-						setDTR = opts.has("dtr") && opts.getBoolean("dtr");
-						setRTS = opts.has("rts") && opts.getBoolean("rts");
-						// Sleep On Pause defaults to true
-						sleepOnPause = opts.has("sleepOnPause") ? opts.getBoolean("sleepOnPause") : true;
-
-						port.open(connection);
-						port.setParameters(baudRate, dataBits, stopBits, parity);
-						if (setDTR) port.setDTR(true);
-						if (setRTS) port.setRTS(true);
-					}
-					catch (IOException  e) {
-						// deal with error
-						Log.d(TAG, e.getMessage());
-						callbackContext.error(e.getMessage());
-					}
-					catch (JSONException e) {
-						// deal with error
-						Log.d(TAG, e.getMessage());
-						callbackContext.error(e.getMessage());
+				// the device the permission was requested for, the last one by default
+				UsbSerialDriver sessionDriver = opts.has("deviceId") ? drivers.get(opts.optInt("deviceId")) : driver;
+				if (sessionDriver == null && opts.has("deviceId") && registry != null) {
+					// a listed device the app already has the permission for
+					DeviceRegistry.Entry entry = registry.get(opts.optInt("deviceId"));
+					if (entry != null && registry.hasPermission(entry.driver)) {
+						sessionDriver = entry.driver;
+						drivers.put(registry.getDeviceId(entry.driver), sessionDriver);
 					}
-
-					Log.d(TAG, "Serial port opened!");
-					callbackContext.success("Serial port opened!");
 				}
-				else {
-					Log.d(TAG, "Cannot connect to the device!");
-					callbackContext.error("Cannot connect to the device!");
+				if (sessionDriver == null) {
+					Log.d(TAG, "No device to open, request the permission first!");
+					callbackContext.error("No device to open, request the permission first!");
+					return;
 				}
-				onDeviceStateChange();
+				final int portIndex = opts.optInt("port", 0);
+				if (portIndex < 0 || portIndex >= sessionDriver.getPorts().size()) {
+					Log.d(TAG, "No such port: " + portIndex);
+					callbackContext.error("No such port: " + portIndex);
+					return;
+				}
+				// the opening itself is ordered with the other actions on the port
+				final UsbSerialDriver portDriver = sessionDriver;
+				final PortProvider provider = getProvider(portDriver);
+				String handle = SerialSession.handle(provider.getDeviceId(portDriver), portIndex);
+				post(getLane(handle), callbackContext, new Runnable() {
+					public void run() {
+						try {
+							SerialSession session = openSession(provider, portDriver, portIndex, opts);
+							Log.d(TAG, "Serial port opened: " + session.getHandle());
+							StreamServer stream = session.getStream();
+							if (stream != null) {
+								// the endpoint to get the data from, off the bridge
+								JSONObject endpoint = stream.toJSON();
+								endpoint.put("handle", session.getHandle());
+								callbackContext.success(endpoint);
+							}
+							else {
+								callbackContext.success(session.getHandle());
+							}
+						}
+						catch (IOException e) {
+							// deal with error
+							Log.d(TAG, e.getMessage());
+							callbackContext.error(e.getMessage());
+						}
+						catch (JSONException e) {
+							// deal with error
+							Log.d(TAG, e.getMessage());
+							callbackContext.error(e.getMessage());
+						}
+					}
+				});
 			}
 		});
 	}
 
+	/**
+	 * Open a port and make it the default one, on the lane of the port
+	 * @param provider the {@link PortProvider} of the device
+	 * @param sessionDriver the driver of the device
+	 * @param portIndex index of the port in the driver port list
+	 * @param opts a {@link JSONObject} containing the connection parameters
+	 * @return the session of the opened port
+	 * @throws IOException if the device cannot be opened or configured
+	 * @throws JSONException if an option has the wrong type
+	 */
+	SerialSession openSession(PortProvider provider, UsbSerialDriver sessionDriver, int portIndex, JSONObject opts) throws IOException, JSONException {
+		final String handle = SerialSession.handle(provider.getDeviceId(sessionDriver), portIndex);
+		if (ReceiveBuffer.SPILL.equals(opts.optString("overflowPolicy"))) {
+			// the spill file of the port, in the cache directory by default
+			File spill = opts.has("spillPath") ? resolvePath(opts.getString("spillPath"))
+					: new File(cordova.getActivity().getCacheDir(), "serial-" + handle.replace(':', '-') + ".spill");
+			opts.put("spillPath", spill.getPath());
+		}
+		// reopening a port starts a fresh session
+		SerialSession previous = sessions.remove(handle);
+		if (previous != null) {
+			previous.destroy();
+		}
+		SerialSession session = new SerialSession(handle, provider, sessionDriver, portIndex, mScheduler,
+				new ReadDispatcher.Listener() {
+					@Override
+					public void onFlush(byte[] data, long captured) {
+						Serial.this.updateReceivedData(handle, data, captured);
+					}
+				});
+		if (previous != null) {
+			session.setReadCallback(previous.getReadCallback());
+			session.setStateCallback(previous.getStateCallback());
+		}
+		session.setConnectionListener(mConnectionListener);
+		boolean opened = false;
+		try {
+			session.open(opts);
+			opened = true;
+		}
+		finally {
+			if (!opened) {
+				// a port that failed to open is not kept
+				session.destroy();
+			}
+		}
+		sessions.put(handle, session);
+		defaultHandle = handle;
+		return session;
+	}
+
 	/**
 	 * Write on the serial port
+	 * The write is queued on the lane of the port so that the writes keep their submission order
+	 * @param handle the handle of the port to write to, null for the default one
 	 * @param data the {@link String} representation of the data to be written on the port
 	 * @param callbackContext the cordova {@link CallbackContext}
 	 */
-	private void writeSerial(final String data, final CallbackContext callbackContext) {
-		cordova.getThreadPool().execute(new Runnable() {
+	private void writeSerial(final String handle, final String data, final CallbackContext callbackContext) {
+		Log.d(TAG, data);
+		write(handle, data.getBytes(), new SerialWriter.Callback() {
+			@Override
+			public void onWritten(int count) {
+				callbackContext.success();
+			}
+			@Override
+			public void onError(String message) {
+				// deal with error
+				Log.d(TAG, message);
+				callbackContext.error(message);
+			}
+		}, callbackContext);
+	}
+
+	/**
+	 * Queue a write on the lane of a port, after the actions called before it
+	 * @param handle the handle of the port to write to, null for the default one
+	 * @param buffer the bytes to write
+	 * @param callback notified once the bytes are written
+	 * @param callbackContext the cordova {@link CallbackContext} of the write
+	 */
+	private void write(final String handle, final byte[] buffer, final SerialWriter.Callback callback, CallbackContext callbackContext) {
+		runOnPort(handle, callbackContext, new Runnable() {
 			public void run() {
-				if (port == null) {
-					callbackContext.error("Writing a closed port.");
+				SerialSession session = getOpenSession(handle);
+				if (session == null || !(session.isOpen() || session.isReconnecting())) {
+					callback.onError("Writing a closed port.");
 				}
 				else {
-					try {
-						Log.d(TAG, data);
-						byte[] buffer = data.getBytes();
-						port.write(buffer, 1000);
-						callbackContext.success();
-					}
-					catch (IOException e) {
-						// deal with error
-						Log.d(TAG, e.getMessage());
-						callbackContext.error(e.getMessage());
-					}
+					// held while the port reconnects
+					session.write(buffer, callback);
 				}
 			}
 		});
@@ -297,171 +730,545 @@ public class Serial extends CordovaPlugin {
 
 	/**
 	 * Write hex on the serial port
+	 * The write is queued on the lane of the port so that the writes keep their submission order
+	 * @param handle the handle of the port to write to, null for the default one
 	 * @param data the {@link String} representation of the data to be written on the port as hexadecimal string
 	 *             e.g. "ff55aaeeef000233"
 	 * @param callbackContext the cordova {@link CallbackContext}
 	 */
-	private void writeSerialHex(final String data, final CallbackContext callbackContext) {
-		cordova.getThreadPool().execute(new Runnable() {
-			public void run() {
-				if (port == null) {
-					callbackContext.error("Writing a closed port.");
-				}
-				else {
-					try {
-						Log.d(TAG, data);
-						byte[] buffer = hexStringToByteArray(data);
-						int result = port.write(buffer, 1000);
-						callbackContext.success(result + " bytes written.");
-					}
-					catch (IOException e) {
-						// deal with error
-						Log.d(TAG, e.getMessage());
-						callbackContext.error(e.getMessage());
-					}
-				}
+	private void writeSerialHex(final String handle, final String data, final CallbackContext callbackContext) {
+		Log.d(TAG, data);
+		write(handle, hexStringToByteArray(data), new SerialWriter.Callback() {
+			@Override
+			public void onWritten(int count) {
+				callbackContext.success(count + " bytes written.");
 			}
-		});
+			@Override
+			public void onError(String message) {
+				// deal with error
+				Log.d(TAG, message);
+				callbackContext.error(message);
+			}
+		}, callbackContext);
 	}
 
 	/**
-	 * Convert a given string of hexadecimal numbers
-	 * into a byte[] array where every 2 hex chars get packed into
-	 * a single byte.
-	 *
-	 * E.g. "ffaa55" results in a 3 byte long byte array
-	 *
-	 * @param s
-	 * @return
+	 * Write binary data on the serial port
+	 * The buffers are gathered and written as a single write, queued on the lane of the port
+	 * so that the writes keep their submission order
+	 * @param handle the handle of the port to write to, null for the default one
+	 * @param args the action arguments, every argument after the first one is an ArrayBuffer
+	 *             that cordova sends as a base64 string
+	 * @param callbackContext the cordova {@link CallbackContext}
+	 * @throws JSONException if a buffer is missing
 	 */
-	private byte[] hexStringToByteArray(String s) {
-		int len = s.length();
-		byte[] data = new byte[len / 2];
-		for (int i = 0; i < len; i += 2) {
-			data[i / 2] = (byte) ((Character.digit(s.charAt(i), 16) << 4)
-					+ Character.digit(s.charAt(i+1), 16));
+	private void writeSerialBinary(final String handle, final JSONArray args, final CallbackContext callbackContext) throws JSONException {
+		byte[] buffer;
+		if (args.length() == 2) {
+			buffer = Base64.decode(args.getString(1), Base64.DEFAULT);
 		}
-		return data;
+		else {
+			byte[][] buffers = new byte[args.length() - 1][];
+			int length = 0;
+			for (int i = 0; i < buffers.length; i++) {
+				buffers[i] = Base64.decode(args.getString(i + 1), Base64.DEFAULT);
+				length += buffers[i].length;
+			}
+			buffer = new byte[length];
+			int offset = 0;
+			for (byte[] part : buffers) {
+				System.arraycopy(part, 0, buffer, offset, part.length);
+				offset += part.length;
+			}
+		}
+		Log.d(TAG, "Write binary data len=" + buffer.length);
+		write(handle, buffer, new SerialWriter.Callback() {
+			@Override
+			public void onWritten(int count) {
+				callbackContext.success(count + " bytes written.");
+			}
+			@Override
+			public void onError(String message) {
+				// deal with error
+				Log.d(TAG, message);
+				callbackContext.error(message);
+			}
+		}, callbackContext);
 	}
 
 	/**
-	 * Read on the serial port
-	 * @param callbackContext the {@link CallbackContext}
+	 * Write a command and wait natively for its response, several transactions can be outstanding
+	 * @param handle the handle of the port, null for the default one
+	 * @param command the bytes to write
+	 * @param opts a {@link JSONObject} telling how to recognize the response, see {@link TransactionManager.Transaction}
+	 * @param callbackContext the cordova {@link CallbackContext}, receives the response as an ArrayBuffer
+	 * @throws JSONException if an option has the wrong type
 	 */
-	private void readSerial(final CallbackContext callbackContext) {
-		cordova.getThreadPool().execute(new Runnable() {
+	private void transact(final String handle, final byte[] command, final JSONObject opts, final CallbackContext callbackContext) throws JSONException {
+		final TransactionManager.Transaction tx = new TransactionManager.Transaction(opts, new TransactionManager.Callback() {
+			@Override
+			public void onResponse(byte[] response) {
+				callbackContext.sendPluginResult(new PluginResult(PluginResult.Status.OK, response));
+			}
+			@Override
+			public void onError(String message) {
+				// deal with error
+				Log.d(TAG, message);
+				callbackContext.error(message);
+			}
+		});
+		runOnPort(handle, callbackContext, new Runnable() {
 			public void run() {
-				if (port == null) {
-					callbackContext.error("Reading a closed port.");
-				} 
-				else {
-					try {
-						int len = port.read(mReadBuffer.array(), READ_WAIT_MILLIS);
-						// Whatever happens, we send an "OK" result, up to the
-						// receiver to check that len > 0
-						PluginResult.Status status = PluginResult.Status.OK;
-						if (len > 0) {
-							Log.d(TAG, "Read data len=" + len);
-							final byte[] data = new byte[len];
-							mReadBuffer.get(data, 0, len);
-							mReadBuffer.clear();
-							callbackContext.sendPluginResult(new PluginResult(status,data));
-						}
-						else {
-							final byte[] data = new byte[0];
-							callbackContext.sendPluginResult(new PluginResult(status, data));
-						}
-					}
-					catch (IOException e) {
-						// deal with error
-						Log.d(TAG, e.getMessage());
-						callbackContext.error(e.getMessage());
-					}
+				SerialSession session = getOpenSession(handle);
+				if (session == null || !session.isOpen()) {
+					callbackContext.error("Writing a closed port.");
+					return;
 				}
+				session.transact(command, tx);
 			}
 		});
 	}
 
 	/**
-	 * Close the serial port
-	 * @param callbackContext the cordova {@link CallbackContext}
+	 * Write a payload periodically, timed natively
+	 * @param handle the handle of the port, null for the default one
+	 * @param data the payload
+	 * @param opts a {@link JSONObject} containing periodMs, see {@link PeriodicWriter#add(byte[], JSONObject, PeriodicWriter.Listener)}
+	 * @param callbackContext the cordova {@link CallbackContext}, receives the scheduled event, then the responses as
+	 *                        ArrayBuffers and the missed and error events, until the done event
 	 */
-	private void closeSerial(final CallbackContext callbackContext) {
-		cordova.getThreadPool().execute(new Runnable() {
+	private void schedulePeriodicWrite(final String handle, final byte[] data, final JSONObject opts, final CallbackContext callbackContext) {
+		final PeriodicWriter.Listener listener = new PeriodicWriter.Listener() {
+			@Override
+			public void onResponse(byte[] response) {
+				PluginResult result = new PluginResult(PluginResult.Status.OK, response);
+				result.setKeepCallback(true);
+				callbackContext.sendPluginResult(result);
+			}
+			@Override
+			public void onEvent(JSONObject event) {
+				PluginResult result = new PluginResult(PluginResult.Status.OK, event);
+				result.setKeepCallback(!"done".equals(event.optString("event")));
+				callbackContext.sendPluginResult(result);
+			}
+		};
+		runOnPort(handle, callbackContext, new Runnable() {
 			public void run() {
+				SerialSession session = getOpenSession(handle);
+				if (session == null || !session.isOpen()) {
+					callbackContext.error("Writing a closed port.");
+					return;
+				}
 				try {
-					// Make sure we don't die if we try to close an non-existing port!
-					if (port != null) {
-						port.close();
-					}
-					port = null;
-					callbackContext.success();
+					session.schedulePeriodicWrite(data, opts, listener);
 				}
-				catch (IOException e) {
+				catch (JSONException e) {
+					// deal with error
+					Log.d(TAG, e.getMessage());
+					callbackContext.error(e.getMessage());
+				}
+				catch (IOException e) {
 					// deal with error
 					Log.d(TAG, e.getMessage());
 					callbackContext.error(e.getMessage());
 				}
-				onDeviceStateChange();
 			}
 		});
 	}
 
+	/**
+	 * Stop a periodic write, its callback gets the done event
+	 * @param handle the handle of the port, null for the default one
+	 * @param id the id given by the scheduled event
+	 * @param callbackContext the cordova {@link CallbackContext}
+	 */
+	private void cancelPeriodicWrite(String handle, int id, CallbackContext callbackContext) {
+		// right away, the schedules do not go through the lane of the port
+		SerialSession session = getSession(handle);
+		if (session != null && session.cancelPeriodicWrite(id)) {
+			callbackContext.success();
+		}
+		else {
+			callbackContext.error("No such periodic write: " + id);
+		}
+	}
 
 	/**
-	 * Stop observing serial connection
+	 * Send or receive a file with XMODEM or YMODEM, the transfer holds the lane of the port until it is over
+	 * @param handle the handle of the port, null for the default one
+	 * @param sending true to send the file, false to receive it
+	 * @param opts a {@link JSONObject} containing path, and the transfer options, see {@link ModemTransfer}
+	 * @param callbackContext the cordova {@link CallbackContext}, receives the progress events then the summary
+	 * @throws JSONException if an option is missing or has the wrong type
 	 */
-	private void stopIoManager() {
-		if (mSerialIoManager != null) {
-			Log.i(TAG, "Stopping io manager.");
-			mSerialIoManager.stop();
-			mSerialIoManager = null;
+	private void transferFile(final String handle, final boolean sending, final JSONObject opts, final CallbackContext callbackContext) throws JSONException {
+		final ModemTransfer transfer = new ModemTransfer(sending, resolvePath(opts.getString("path")), opts, new ModemTransfer.Listener() {
+			@Override
+			public void onProgress(JSONObject progress) {
+				PluginResult result = new PluginResult(PluginResult.Status.OK, progress);
+				result.setKeepCallback(true);
+				callbackContext.sendPluginResult(result);
+			}
+		});
+		final String key = handle != null ? handle : defaultHandle;
+		addTransfer(key, transfer);
+		runOnPort(handle, callbackContext, new Runnable() {
+			public void run() {
+				try {
+					if (transfer.isCancelled()) {
+						// cancelled while queued, the port is not touched
+						callbackContext.error("Transfer cancelled.");
+						return;
+					}
+					SerialSession session = getOpenSession(handle);
+					if (session == null || !session.isOpen()) {
+						callbackContext.error(sending ? "Writing a closed port." : "Reading a closed port.");
+						return;
+					}
+					callbackContext.success(session.transfer(transfer));
+				}
+				catch (IOException e) {
+					// deal with error
+					Log.d(TAG, e.getMessage());
+					callbackContext.error(e.getMessage());
+				}
+				finally {
+					removeTransfer(key, transfer);
+				}
+			}
+		});
+	}
+
+	/**
+	 * Keep a transfer from the time it is queued on the lane of its port until it is over
+	 * @param key the handle of the port, null if there is no opened port
+	 * @param transfer the transfer
+	 */
+	private void addTransfer(String key, ModemTransfer transfer) {
+		if (key == null) {
+			return;
+		}
+		synchronized (transfers) {
+			List<ModemTransfer> list = transfers.get(key);
+			if (list == null) {
+				list = new ArrayList<ModemTransfer>();
+				transfers.put(key, list);
+			}
+			list.add(transfer);
 		}
 	}
 
 	/**
-	 * Observe serial connection
+	 * Forget a transfer that is over
+	 * @param key the handle of the port, null if there is no opened port
+	 * @param transfer the transfer
 	 */
-	private void startIoManager() {
-		if (driver != null) {
-			Log.i(TAG, "Starting io manager.");
-			mSerialIoManager = new SerialInputOutputManager(port, mListener);
-			mExecutor.submit(mSerialIoManager);
+	private void removeTransfer(String key, ModemTransfer transfer) {
+		if (key == null) {
+			return;
+		}
+		synchronized (transfers) {
+			List<ModemTransfer> list = transfers.get(key);
+			if (list != null && list.remove(transfer) && list.isEmpty()) {
+				transfers.remove(key);
+			}
 		}
 	}
 
 	/**
-	 * Restart the observation of the serial connection
+	 * Cancel the transfers of a port, the running one and the queued ones
+	 * @param key the handle of the port, null for all the ports
+	 * @return false if the port has no transfer
 	 */
-	private void onDeviceStateChange() {
-		stopIoManager();
-		startIoManager();
+	private boolean cancelTransfers(String key) {
+		List<ModemTransfer> cancelled = new ArrayList<ModemTransfer>();
+		synchronized (transfers) {
+			if (key == null) {
+				for (List<ModemTransfer> list : transfers.values()) {
+					cancelled.addAll(list);
+				}
+			}
+			else if (transfers.containsKey(key)) {
+				cancelled.addAll(transfers.get(key));
+			}
+		}
+		for (ModemTransfer transfer : cancelled) {
+			transfer.cancel();
+		}
+		return !cancelled.isEmpty();
+	}
+
+	/**
+	 * Resolve a path given by javascript
+	 * @param path a file:// url, an absolute path, or a path relative to the files directory of the app
+	 * @return the {@link File}
+	 */
+	private File resolvePath(String path) {
+		if (path.startsWith("file:")) {
+			return new File(URI.create(path));
+		}
+		File file = new File(path);
+		return file.isAbsolute() ? file : new File(cordova.getActivity().getFilesDir(), path);
+	}
+
+	/**
+	 * Convert a given string of hexadecimal numbers
+	 * into a byte[] array where every 2 hex chars get packed into
+	 * a single byte.
+	 *
+	 * E.g. "ffaa55" results in a 3 byte long byte array
+	 *
+	 * @param s
+	 * @return
+	 */
+	static byte[] hexStringToByteArray(String s) {
+		int len = s.length();
+		byte[] data = new byte[len / 2];
+		for (int i = 0; i < len; i += 2) {
+			data[i / 2] = (byte) ((Character.digit(s.charAt(i), 16) << 4)
+					+ Character.digit(s.charAt(i+1), 16));
+		}
+		return data;
+	}
+
+	/**
+	 * Read on the serial port
+	 * The read holds the lane of the port, the actions called after it wait for it to return
+	 * @param handle the handle of the port to read, null for the default one
+	 * @param opts a {@link JSONObject} that may contain maxBytes, timeoutMs and minBytes
+	 * @param callbackContext the {@link CallbackContext}
+	 */
+	private void readSerial(final String handle, final JSONObject opts, final CallbackContext callbackContext) {
+		runOnPort(handle, callbackContext, new Runnable() {
+			public void run() {
+				SerialSession session = getOpenSession(handle);
+				if (session == null || !session.isOpen()) {
+					callbackContext.error("Reading a closed port.");
+				}
+				else {
+					try {
+						int maxBytes = opts.has("maxBytes") ? opts.getInt("maxBytes") : PollReader.DEFAULT_MAX_BYTES;
+						if (maxBytes < 1) {
+							callbackContext.error("maxBytes must be 1 or more");
+							return;
+						}
+						int timeout = opts.has("timeoutMs") ? opts.getInt("timeoutMs") : PollReader.DEFAULT_TIMEOUT;
+						int minBytes = opts.has("minBytes") ? opts.getInt("minBytes") : PollReader.DEFAULT_MIN_BYTES;
+						byte[] data = session.read(maxBytes, timeout, minBytes);
+						// Whatever happens, we send an "OK" result, up to the
+						// receiver to check that len > 0
+						if (data.length > 0) {
+							Log.d(TAG, "Read data len=" + data.length);
+						}
+						callbackContext.sendPluginResult(new PluginResult(PluginResult.Status.OK, data));
+					}
+					catch (IOException e) {
+						// deal with error
+						Log.d(TAG, e.getMessage());
+						callbackContext.error(e.getMessage());
+					}
+					catch (JSONException e) {
+						// deal with error
+						Log.d(TAG, e.getMessage());
+						callbackContext.error(e.getMessage());
+					}
+				}
+			}
+		});
+	}
+
+	/**
+	 * Close the serial port, after the actions called before it
+	 * @param handle the handle of the port to close, null for the default one
+	 * @param callbackContext the cordova {@link CallbackContext}
+	 */
+	private void closeSerial(final String handle, final CallbackContext callbackContext) {
+		runOnPort(handle, callbackContext, new Runnable() {
+			public void run() {
+				// Make sure we don't die if we try to close an non-existing port!
+				SerialSession session = getSession(handle);
+				if (session == null) {
+					callbackContext.success();
+					return;
+				}
+				sessions.remove(session.getHandle());
+				if (session.getHandle().equals(defaultHandle)) {
+					defaultHandle = null;
+				}
+				try {
+					session.close();
+					callbackContext.success();
+				}
+				catch (IOException e) {
+					// deal with error
+					Log.d(TAG, e.getMessage());
+					callbackContext.error(e.getMessage());
+				}
+				finally {
+					session.destroy();
+				}
+			}
+		});
 	}
 
 	/**
 	 * Dispatch read data to javascript
+	 * @param handle the handle of the port the data was read from
 	 * @param data the array of bytes to dispatch
+	 * @param captured when the oldest of them was read, in {@link SystemClock#elapsedRealtimeNanos()}
 	 */
-	private void updateReceivedData(byte[] data) {
-		if( readCallback != null ) {
+	private void updateReceivedData(String handle, byte[] data, long captured) {
+		SerialSession session = handle != null ? sessions.get(handle) : null;
+		CallbackContext shared = readCallback;
+		CallbackContext callback = session != null && session.getReadCallback() != null ? session.getReadCallback() : shared;
+		if( callback != null ) {
+			long start = System.nanoTime();
 			PluginResult result = new PluginResult(PluginResult.Status.OK, data);
 			result.setKeepCallback(true);
-			readCallback.sendPluginResult(result);
+			if (callback == shared) {
+				// javascript acknowledges all the data of the shared callback, the ports without buffer take their share
+				synchronized (unacknowledged) {
+					unacknowledged.add(new Unacknowledged(session, data.length));
+				}
+			}
+			callback.sendPluginResult(result);
+			if (session != null) {
+				session.getStats().onDispatch(System.nanoTime() - start);
+				session.getStats().onDelivered(SystemClock.elapsedRealtimeNanos() - captured);
+			}
+		}
+		else if (session != null) {
+			// nobody listens, keep it for readSerial
+			session.keepUnclaimed(data);
+		}
+	}
+
+	/**
+	 * Pass the acknowledgement of a read callback to the receive buffers of the ports it received data from
+	 * @param handle the handle of the port with its own read callback, null for the shared read callback
+	 * @param bytes the number of bytes the callback is done with
+	 */
+	private void acknowledgeRead(String handle, long bytes) {
+		if (handle != null) {
+			SerialSession session = sessions.get(handle);
+			if (session != null) {
+				session.acknowledge(bytes);
+			}
+			return;
+		}
+		// the shared callback gets the data of the ports in the order it was sent
+		List<Unacknowledged> credits = new ArrayList<Unacknowledged>();
+		synchronized (unacknowledged) {
+			while (bytes > 0 && !unacknowledged.isEmpty()) {
+				Unacknowledged head = unacknowledged.peek();
+				long credit = Math.min(bytes, head.bytes);
+				head.bytes -= credit;
+				bytes -= credit;
+				credits.add(new Unacknowledged(head.session, credit));
+				if (head.bytes == 0) {
+					unacknowledged.poll();
+				}
+			}
+		}
+		// outside of the lock, a port sends its next data while acknowledged
+		for (Unacknowledged credit : credits) {
+			if (credit.session != null) {
+				credit.session.acknowledge(credit.bytes);
+			}
 		}
 	}
 
 	/**
 	 * Register callback for read data
+	 * @param handle the handle of the port to receive the data of, null for all the ports without their own callback
+	 * @param opts a {@link JSONObject} that may contain pipeline, the native processing of the frames of the port
 	 * @param callbackContext the cordova {@link CallbackContext}
 	 */
-	private void registerReadCallback(final CallbackContext callbackContext) {
+	private void registerReadCallback(final String handle, final JSONObject opts, final CallbackContext callbackContext) {
 		Log.d(TAG, "Registering callback");
-		cordova.getThreadPool().execute(new Runnable() {
+		runOnPort(handle, callbackContext, new Runnable() {
 			public void run() {
 				Log.d(TAG, "Registering Read Callback");
-				readCallback = callbackContext;
+				// the port of the callback, null for the shared one
+				String target = null;
+				if (opts.has("pipeline")) {
+					// a pipeline belongs to a port, the default one if no handle is given
+					SerialSession session = getSession(handle);
+					if (session == null) {
+						callbackContext.error("No such port: " + handle);
+						return;
+					}
+					if (!session.isFramed()) {
+						callbackContext.error("The processing pipeline needs framing.");
+						return;
+					}
+					try {
+						session.setPipeline(new ProcessingPipeline(opts.getJSONArray("pipeline"), new ProcessingPipeline.Listener() {
+							@Override
+							public void onSummary(JSONObject summary) {
+								PluginResult result = new PluginResult(PluginResult.Status.OK, summary);
+								result.setKeepCallback(true);
+								callbackContext.sendPluginResult(result);
+							}
+						}));
+					}
+					catch (JSONException e) {
+						// deal with error
+						Log.d(TAG, e.getMessage());
+						callbackContext.error(e.getMessage());
+						return;
+					}
+					session.setReadCallback(callbackContext);
+					session.resetAcknowledged();
+					getOpenSession(session.getHandle());
+					target = session.getHandle();
+					if (handle == null) {
+						pipelineSession = session;
+					}
+					else if (pipelineSession == session) {
+						pipelineSession = null;
+					}
+				}
+				else if (handle == null) {
+					readCallback = callbackContext;
+					// the pipeline registered without handle goes, its port gets the shared callback again
+					SerialSession previous = pipelineSession;
+					pipelineSession = null;
+					if (previous != null && sessions.get(previous.getHandle()) == previous) {
+						previous.setPipeline(null);
+						previous.setReadCallback(null);
+					}
+					// the previous callback will not acknowledge what it was sent
+					synchronized (unacknowledged) {
+						unacknowledged.clear();
+					}
+					for (SerialSession session : sessions.values()) {
+						if (session.getReadCallback() == null) {
+							session.resetAcknowledged();
+						}
+					}
+				}
+				else {
+					SerialSession session = sessions.get(handle);
+					if (session == null) {
+						callbackContext.error("No such port: " + handle);
+						return;
+					}
+					session.setPipeline(null);
+					session.setReadCallback(callbackContext);
+					session.resetAcknowledged();
+					getOpenSession(handle);
+					target = handle;
+					if (pipelineSession == session) {
+						pipelineSession = null;
+					}
+				}
 				JSONObject returnObj = new JSONObject();
 				addProperty(returnObj, "registerReadCallback", "true");
+				if (target != null) {
+					// the port the acknowledgements of the callback go to
+					addProperty(returnObj, "handle", target);
+				}
 				// Keep the callback
 				PluginResult pluginResult = new PluginResult(PluginResult.Status.OK, returnObj);
 				pluginResult.setKeepCallback(true);
@@ -470,61 +1277,574 @@ public class Serial extends CordovaPlugin {
 		});
 	}
 
-	/** 
+	/**
+	 * Register the read callback of a logical channel, it receives the payload of every frame of the channel
+	 * @param handle the handle of the port, null for the default one
+	 * @param id the id of the channel
+	 * @param callbackContext the cordova {@link CallbackContext}
+	 */
+	private void registerChannelCallback(final String handle, final int id, final CallbackContext callbackContext) {
+		runOnPort(handle, callbackContext, new Runnable() {
+			public void run() {
+				SerialSession session = getSession(handle);
+				if (session == null) {
+					callbackContext.error("No such port: " + handle);
+					return;
+				}
+				ChannelMux channels = session.getChannels();
+				ChannelMux.Channel channel = channels != null ? channels.get(id) : null;
+				if (channel == null) {
+					callbackContext.error("No such channel: " + id);
+					return;
+				}
+				channel.callback = callbackContext;
+				getOpenSession(session.getHandle());
+				JSONObject returnObj = new JSONObject();
+				addProperty(returnObj, "registerChannelCallback", id);
+				// Keep the callback
+				PluginResult pluginResult = new PluginResult(PluginResult.Status.OK, returnObj);
+				pluginResult.setKeepCallback(true);
+				callbackContext.sendPluginResult(pluginResult);
+			}
+		});
+	}
+
+	/**
+	 * Write on a logical channel, at the priority of the channel
+	 * @param handle the handle of the port to write to, null for the default one
+	 * @param id the id of the channel
+	 * @param data the payload
+	 * @param callbackContext the cordova {@link CallbackContext}
+	 */
+	private void writeChannel(final String handle, final int id, final byte[] data, final CallbackContext callbackContext) {
+		final SerialWriter.Callback callback = new SerialWriter.Callback() {
+			@Override
+			public void onWritten(int count) {
+				callbackContext.success(count + " bytes written.");
+			}
+			@Override
+			public void onError(String message) {
+				// deal with error
+				Log.d(TAG, message);
+				callbackContext.error(message);
+			}
+		};
+		runOnPort(handle, callbackContext, new Runnable() {
+			public void run() {
+				SerialSession session = getOpenSession(handle);
+				if (session == null || !(session.isOpen() || session.isReconnecting())) {
+					callback.onError("Writing a closed port.");
+				}
+				else {
+					session.writeChannel(id, data, callback);
+				}
+			}
+		});
+	}
+
+	/**
+	 * Register callback for the connection state changes of a port
+	 * @param handle the handle of the port, null for the default one
+	 * @param callbackContext the cordova {@link CallbackContext}
+	 */
+	private void registerStateCallback(final String handle, final CallbackContext callbackContext) {
+		runOnPort(handle, callbackContext, new Runnable() {
+			public void run() {
+				SerialSession session = getSession(handle);
+				if (session == null) {
+					callbackContext.error("No such port: " + handle);
+					return;
+				}
+				session.setStateCallback(callbackContext);
+				JSONObject returnObj = new JSONObject();
+				addProperty(returnObj, "handle", session.getHandle());
+				addProperty(returnObj, "state", session.isOpen() ? "connected" : session.isReconnecting() ? "reconnecting" : "closed");
+				PluginResult pluginResult = new PluginResult(PluginResult.Status.OK, returnObj);
+				pluginResult.setKeepCallback(true);
+				callbackContext.sendPluginResult(pluginResult);
+			}
+		});
+	}
+
+	/**
+	 * Send a connection state change of a port to its state callback
+	 * @param session the session of the port
+	 * @param state connected, disconnected, reconnecting, failed or controlLines
+	 * @param details a {@link JSONObject} with the details of the change, the handle and state are added
+	 */
+	private void sendState(SerialSession session, String state, JSONObject details) {
+		Log.d(TAG, "Port " + session.getHandle() + " " + state + " " + details);
+		CallbackContext callback = session.getStateCallback();
+		if (callback != null) {
+			addProperty(details, "handle", session.getHandle());
+			addProperty(details, "state", state);
+			PluginResult result = new PluginResult(PluginResult.Status.OK, details);
+			result.setKeepCallback(true);
+			callback.sendPluginResult(result);
+		}
+	}
+
+	/**
+	 * The connection of a port is lost: hold its writes and start reconnecting, on the lane of the port
+	 * @param session the session of the port
+	 * @param reason why the connection was lost
+	 */
+	private void onPortLost(final SerialSession session, final String reason) {
+		getLane(session.getHandle()).execute(new Runnable() {
+			public void run() {
+				// closed meanwhile, or already known
+				if (sessions.get(session.getHandle()) != session || !session.markLost()) {
+					return;
+				}
+				JSONObject details = new JSONObject();
+				addProperty(details, "reason", reason);
+				sendState(session, "disconnected", details);
+				if (session.getReconnect() != null) {
+					scheduleReconnect(session, reason);
+				}
+			}
+		});
+	}
+
+	/**
+	 * Schedule the next reconnection attempt of a port, or give up once the attempts are exhausted
+	 * @param session the session of the port
+	 * @param error why the previous attempt failed
+	 */
+	private void scheduleReconnect(final SerialSession session, String error) {
+		ReconnectSupervisor supervisor = session.getReconnect();
+		long delay = supervisor.nextDelay();
+		JSONObject details = new JSONObject();
+		addProperty(details, "attempt", supervisor.getAttempts());
+		addProperty(details, "error", error);
+		if (delay < 0) {
+			try {
+				// the held writes fail
+				session.close();
+			}
+			catch (IOException e) {
+				Log.d(TAG, e.getMessage());
+			}
+			sendState(session, "failed", details);
+			return;
+		}
+		addProperty(details, "delayMs", delay);
+		sendState(session, "reconnecting", details);
+		supervisor.schedule(mScheduler, new Runnable() {
+			public void run() {
+				getLane(session.getHandle()).execute(new Runnable() {
+					public void run() {
+						attemptReconnect(session);
+					}
+				});
+			}
+		}, delay);
+	}
+
+	/**
+	 * Try to reconnect a port, on the lane of the port
+	 * @param session the session of the port
+	 */
+	private void attemptReconnect(SerialSession session) {
+		if (sessions.get(session.getHandle()) != session || !session.isReconnecting()) {
+			return;
+		}
+		ReconnectSupervisor supervisor = session.getReconnect();
+		// an attachment may have triggered this attempt before the scheduled one
+		supervisor.cancel();
+		int attempts = supervisor.getAttempts();
+		UsbSerialDriver found = locate(session);
+		String error;
+		if (found == null) {
+			error = "Device not attached.";
+		}
+		else if (!session.getProvider().hasPermission(found)) {
+			// android forgets the permission of a detached device
+			error = "No permission for the device.";
+		}
+		else {
+			try {
+				session.reconnect(found);
+				drivers.put(session.getDeviceId(), found);
+				JSONObject details = new JSONObject();
+				addProperty(details, "attempts", attempts);
+				addProperty(details, "deviceId", session.getDeviceId());
+				sendState(session, "connected", details);
+				return;
+			}
+			catch (IOException e) {
+				error = e.getMessage();
+			}
+		}
+		scheduleReconnect(session, error);
+	}
+
+	/**
+	 * Find the device of a port again: the same device if still attached, or a device with the
+	 * same vendor id, product id and serial number, not used by another port
+	 * @param session the session of the port
+	 * @return the driver of the device, null if not attached
+	 */
+	private UsbSerialDriver locate(SerialSession session) {
+		if (session.getProvider() == virtualDevices) {
+			// a virtual device comes back when opened again
+			return session.getDriver();
+		}
+		DeviceRegistry registry = getRegistry();
+		UsbDevice previous = session.getDriver().getDevice();
+		DeviceRegistry.Entry same = registry.get(previous.getDeviceId());
+		if (same != null) {
+			return same.driver;
+		}
+		for (DeviceRegistry.Entry entry : registry.find(previous.getVendorId(), previous.getProductId(), session.getSerialNumber())) {
+			boolean used = false;
+			for (SerialSession other : sessions.values()) {
+				used |= other != session && other.getProvider() == registry && other.getDeviceId() == entry.getDevice().getDeviceId();
+			}
+			if (!used) {
+				return entry.driver;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * A device was attached: the ports waiting for it try to reconnect right away
+	 * @param device the attached device
+	 */
+	private void onDeviceAttached(UsbDevice device) {
+		for (final SerialSession session : sessions.values()) {
+			UsbDevice previous = session.getDriver().getDevice();
+			// a virtual device has none
+			if (session.isReconnecting() && previous != null && previous.getVendorId() == device.getVendorId() && previous.getProductId() == device.getProductId()) {
+				getLane(session.getHandle()).execute(new Runnable() {
+					public void run() {
+						attemptReconnect(session);
+					}
+				});
+			}
+		}
+	}
+
+	/**
+	 * Send the counters of a port, once or periodically
+	 * @param handle the handle of the port, null for the default one
+	 * @param opts a {@link JSONObject} that may contain intervalMs to push the counters periodically
+	 * @param callbackContext the cordova {@link CallbackContext}
+	 * @throws JSONException if an option has the wrong type
+	 */
+	private void getStats(final String handle, final JSONObject opts, final CallbackContext callbackContext) throws JSONException {
+		final int interval = opts.has("intervalMs") ? opts.getInt("intervalMs") : 0;
+		runOnPort(handle, callbackContext, new Runnable() {
+			public void run() {
+				final SerialSession session = getSession(handle);
+				if (session == null) {
+					callbackContext.error("No such port: " + handle);
+					return;
+				}
+				if (interval <= 0) {
+					// a one shot request also stops the periodic push
+					session.setStatsTimer(null);
+					try {
+						callbackContext.success(session.getStatsSnapshot());
+					}
+					catch (JSONException e) {
+						// deal with error
+						Log.d(TAG, e.getMessage());
+						callbackContext.error(e.getMessage());
+					}
+					return;
+				}
+				session.setStatsTimer(mScheduler.scheduleAtFixedRate(new Runnable() {
+					public void run() {
+						try {
+							PluginResult result = new PluginResult(PluginResult.Status.OK, session.getStatsSnapshot());
+							result.setKeepCallback(true);
+							callbackContext.sendPluginResult(result);
+						}
+						catch (JSONException e) {
+							Log.d(TAG, e.getMessage());
+						}
+					}
+				}, 0, interval, TimeUnit.MILLISECONDS));
+			}
+		});
+	}
+
+	/**
+	 * Reset the counters of a port
+	 * @param handle the handle of the port, null for the default one
+	 * @param callbackContext the cordova {@link CallbackContext}
+	 */
+	private void resetStats(final String handle, final CallbackContext callbackContext) {
+		runOnPort(handle, callbackContext, new Runnable() {
+			public void run() {
+				SerialSession session = getSession(handle);
+				if (session == null) {
+					callbackContext.error("No such port: " + handle);
+					return;
+				}
+				session.getStats().reset();
+				callbackContext.success();
+			}
+		});
+	}
+
+	/**
+	 * Read the control lines of a port
+	 * @param handle the handle of the port, null for the default one
+	 * @param callbackContext the cordova {@link CallbackContext}, receives the cts, dsr, cd, ri, dtr and rts states
+	 */
+	private void getControlLines(final String handle, final CallbackContext callbackContext) {
+		runOnPort(handle, callbackContext, new Runnable() {
+			public void run() {
+				SerialSession session = getSession(handle);
+				if (session == null) {
+					callbackContext.error("No such port: " + handle);
+					return;
+				}
+				try {
+					callbackContext.success(session.getControlLines());
+				}
+				catch (IOException e) {
+					// deal with error
+					Log.d(TAG, e.getMessage());
+					callbackContext.error(e.getMessage());
+				}
+				catch (JSONException e) {
+					// deal with error
+					Log.d(TAG, e.getMessage());
+					callbackContext.error(e.getMessage());
+				}
+			}
+		});
+	}
+
+	/**
+	 * Set the DTR and RTS outputs of a port
+	 * @param handle the handle of the port, null for the default one
+	 * @param opts a {@link JSONObject} that may contain dtr and rts
+	 * @param callbackContext the cordova {@link CallbackContext}
+	 * @throws JSONException if an option has the wrong type
+	 */
+	private void setControlLines(final String handle, JSONObject opts, final CallbackContext callbackContext) throws JSONException {
+		final Boolean dtr = opts.has("dtr") ? opts.getBoolean("dtr") : null;
+		final Boolean rts = opts.has("rts") ? opts.getBoolean("rts") : null;
+		runOnPort(handle, callbackContext, new Runnable() {
+			public void run() {
+				SerialSession session = getSession(handle);
+				if (session == null) {
+					callbackContext.error("No such port: " + handle);
+					return;
+				}
+				try {
+					if (dtr != null) {
+						session.setDTR(dtr);
+					}
+					if (rts != null) {
+						session.setRTS(rts);
+					}
+					callbackContext.success();
+				}
+				catch (IOException e) {
+					// deal with error
+					Log.d(TAG, e.getMessage());
+					callbackContext.error(e.getMessage());
+				}
+			}
+		});
+	}
+
+	/**
+	 * Start capturing the traffic of a port into rotating log files, replacing any previous capture
+	 * @param handle the handle of the port, null for the default one
+	 * @param opts a {@link JSONObject} that may contain dir, fileSize and maxFiles
+	 * @param callbackContext the cordova {@link CallbackContext}
+	 */
+	private void startCapture(final String handle, final JSONObject opts, final CallbackContext callbackContext) {
+		runOnPort(handle, callbackContext, new Runnable() {
+			public void run() {
+				SerialSession session = getSession(handle);
+				if (session == null) {
+					callbackContext.error("No such port: " + handle);
+					return;
+				}
+				try {
+					File dir = opts.has("dir") ? new File(opts.getString("dir")) : new File(cordova.getActivity().getFilesDir(), "serial-capture");
+					CaptureLog capture = new CaptureLog(dir, "capture-" + session.getHandle().replace(':', '-'), opts);
+					capture.start();
+					session.setCapture(capture);
+					Log.d(TAG, "Capture started: " + capture.getCurrentFile());
+					callbackContext.success(capture.toJSON());
+				}
+				catch (IOException e) {
+					// deal with error
+					Log.d(TAG, e.getMessage());
+					callbackContext.error(e.getMessage());
+				}
+				catch (JSONException e) {
+					// deal with error
+					Log.d(TAG, e.getMessage());
+					callbackContext.error(e.getMessage());
+				}
+			}
+		});
+	}
+
+	/**
+	 * Stop capturing the traffic of a port
+	 * @param handle the handle of the port, null for the default one
+	 * @param callbackContext the cordova {@link CallbackContext}, receives the files of the capture
+	 */
+	private void stopCapture(final String handle, final CallbackContext callbackContext) {
+		runOnPort(handle, callbackContext, new Runnable() {
+			public void run() {
+				SerialSession session = getSession(handle);
+				CaptureLog capture = session != null ? session.getCapture() : null;
+				if (capture == null) {
+					callbackContext.error("No capture running.");
+					return;
+				}
+				session.setCapture(null);
+				try {
+					callbackContext.success(capture.toJSON());
+				}
+				catch (JSONException e) {
+					// deal with error
+					Log.d(TAG, e.getMessage());
+					callbackContext.error(e.getMessage());
+				}
+			}
+		});
+	}
+
+	/**
+	 * Start a new log file for the capture of a port
+	 * @param handle the handle of the port, null for the default one
+	 * @param callbackContext the cordova {@link CallbackContext}, receives the files of the capture
+	 */
+	private void rotateCapture(final String handle, final CallbackContext callbackContext) {
+		runOnPort(handle, callbackContext, new Runnable() {
+			public void run() {
+				SerialSession session = getSession(handle);
+				CaptureLog capture = session != null ? session.getCapture() : null;
+				if (capture == null) {
+					callbackContext.error("No capture running.");
+					return;
+				}
+				try {
+					capture.rotate();
+					callbackContext.success(capture.toJSON());
+				}
+				catch (IOException e) {
+					// deal with error
+					Log.d(TAG, e.getMessage());
+					callbackContext.error(e.getMessage());
+				}
+				catch (JSONException e) {
+					// deal with error
+					Log.d(TAG, e.getMessage());
+					callbackContext.error(e.getMessage());
+				}
+			}
+		});
+	}
+
+	/**
+	 * Replay captured incoming data as if it was read from a port, no device is needed
+	 * @param handle the handle the data is dispatched for, null for the default one
+	 * @param opts a {@link JSONObject} containing files, the log files in capture order, and optionally speed
+	 * @param callbackContext the cordova {@link CallbackContext}, notified once the replay is over
+	 * @throws JSONException if an option is missing or has the wrong type
+	 */
+	private void replayCapture(final String handle, final JSONObject opts, final CallbackContext callbackContext) throws JSONException {
+		JSONArray list = opts.getJSONArray("files");
+		File[] files = new File[list.length()];
+		for (int i = 0; i < files.length; i++) {
+			files[i] = new File(list.getString(i));
+		}
+		double speed = opts.has("speed") ? opts.getDouble("speed") : 1;
+		final String target = handle != null ? handle : defaultHandle;
+		final CaptureLog.Replay replay = new CaptureLog.Replay(files, speed, new CaptureLog.Listener() {
+			@Override
+			public void onRecord(int direction, long nanos, byte[] data) {
+				if (direction == CaptureLog.IN) {
+					// replayed now, as if it was just read
+					updateReceivedData(target, data, SystemClock.elapsedRealtimeNanos());
+				}
+			}
+		});
+		CaptureLog.Replay previous = mReplay;
+		if (previous != null) {
+			previous.cancel();
+		}
+		mReplay = replay;
+		// a replay lasts as long as the captured traffic, it gets its own thread rather than a lane
+		Thread thread = new Thread(new Runnable() {
+			public void run() {
+				replay.run();
+				if (mReplay == replay) {
+					mReplay = null;
+				}
+				try {
+					if (replay.getError() != null) {
+						Log.d(TAG, replay.getError().getMessage());
+						callbackContext.error(replay.getError().getMessage());
+					}
+					else {
+						callbackContext.success(replay.toJSON());
+					}
+				}
+				catch (JSONException e) {
+					Log.d(TAG, e.getMessage());
+				}
+			}
+		}, "serial-replay");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
 	 * Paused activity handler
 	 * @see org.apache.cordova.CordovaPlugin#onPause(boolean)
 	 */
 	@Override
 	public void onPause(boolean multitasking) {
-		if (sleepOnPause) {
-			stopIoManager();
-			if (port != null) {
-				try {
-					port.close();
-				} catch (IOException e) {
-					// Ignore
+		for (final SerialSession session : sessions.values()) {
+			getLane(session.getHandle()).execute(new Runnable() {
+				public void run() {
+					try {
+						session.pause();
+					} catch (IOException e) {
+						// Ignore
+					}
 				}
-				port = null;
-			}
+			});
 		}
 	}
 
-	
+
 	/**
 	 * Resumed activity handler
 	 * @see org.apache.cordova.CordovaPlugin#onResume(boolean)
 	 */
 	@Override
 	public void onResume(boolean multitasking) {
-		Log.d(TAG, "Resumed, driver=" + driver);
-		if (sleepOnPause) {
-			if (driver == null) {
-				Log.d(TAG, "No serial device to resume.");
-			} 
-			else {
-				UsbDeviceConnection connection = manager.openDevice(driver.getDevice());
-				if (connection != null) {
-					// get first port and open it
-					port = driver.getPorts().get(0);
+		Log.d(TAG, "Resumed, sessions=" + sessions.keySet());
+		for (final SerialSession session : sessions.values()) {
+			getLane(session.getHandle()).execute(new Runnable() {
+				public void run() {
 					try {
-						port.open(connection);
-						port.setParameters(baudRate, dataBits, stopBits, parity);
-						if (setDTR) port.setDTR(true);
-						if (setRTS) port.setRTS(true);
+						session.resume();
+						Log.d(TAG, "Serial port resumed: " + session.getHandle() + (session.isOpen() ? "" : ", lazily"));
 					}
 					catch (IOException  e) {
 						// deal with error
 						Log.d(TAG, e.getMessage());
 					}
-					Log.d(TAG, "Serial port opened!");
+					Log.d(TAG, "Serial device: " + session.getDriver().getClass().getSimpleName());
 				}
-				else {
-					Log.d(TAG, "Cannot connect to the device!");
-				}
-				Log.d(TAG, "Serial device: " + driver.getClass().getSimpleName());
-			}
-			
-			onDeviceStateChange();
+			});
 		}
 	}
 
@@ -535,16 +1855,44 @@ public class Serial extends CordovaPlugin {
 	 */
 	@Override
 	public void onDestroy() {
-		Log.d(TAG, "Destroy, port=" + port);
-		if(port != null) {
-			try {
-				port.close();
+		Log.d(TAG, "Destroy, sessions=" + sessions.keySet());
+		// a file transfer would hold its lane for long
+		cancelTransfers(null);
+		// every port is closed after the actions already queued on its lane
+		for (final SerialSession session : sessions.values()) {
+			getLane(session.getHandle()).execute(new Runnable() {
+				public void run() {
+					session.destroy();
+				}
+			});
+		}
+		mControl.shutdown();
+		synchronized (lanes) {
+			for (SerialLane lane : lanes.values()) {
+				lane.shutdown();
 			}
-			catch (IOException e) {
-				Log.d(TAG, e.getMessage());
+		}
+		long deadline = System.currentTimeMillis() + SHUTDOWN_TIMEOUT;
+		mControl.awaitTermination(deadline - System.currentTimeMillis());
+		synchronized (lanes) {
+			for (Map.Entry<String, SerialLane> entry : lanes.entrySet()) {
+				SerialSession session = sessions.get(entry.getKey());
+				if (!entry.getValue().awaitTermination(deadline - System.currentTimeMillis()) && session != null) {
+					// the lane was stuck and its queued actions dropped, close the port from here
+					session.destroy();
+				}
 			}
+			lanes.clear();
+		}
+		sessions.clear();
+		mScheduler.shutdown();
+		CaptureLog.Replay replay = mReplay;
+		if (replay != null) {
+			replay.cancel();
+		}
+		if (registry != null) {
+			registry.unregister(cordova.getActivity());
 		}
-		onDeviceStateChange();
 	}
 
 	/**
@@ -566,8 +1914,8 @@ public class Serial extends CordovaPlugin {
 	 * @param key property key
 	 * @param bytes the array of byte to add as value to the {@link JSONObject}
 	 */
-	private void addPropertyBytes(JSONObject obj, String key, byte[] bytes) {
+	void addPropertyBytes(JSONObject obj, String key, byte[] bytes) {
 		String string = Base64.encodeToString(bytes, Base64.NO_WRAP);
 		this.addProperty(obj, key, string);
 	}
-}
\ No newline at end of file
+}
@@ -0,0 +1,87 @@
+package fr.drangies.cordova.serial;
+
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import android.util.Log;
+
+/**
+ * Ordered lane of plugin actions, run one at a time on a thread of its own.
+ * Every port gets a lane, so that the actions on a port run in the order javascript called
+ * them without locking, while the actions that do not target an opened port (permission,
+ * enumeration, opening) go through a separate control lane. The thread of an idle lane is
+ * released, and started again by the next action.
+ * @author Xavier Seignard <xavier.seignard@gmail.com>
+ */
+class SerialLane {
+	// logging tag
+	private static final String TAG = SerialLane.class.getSimpleName();
+	// how long the thread of an idle lane is kept
+	private static final long KEEP_ALIVE_SECONDS = 30;
+
+	private final String name;
+	private final ThreadPoolExecutor mExecutor;
+
+	/**
+	 * Create a lane
+	 * @param name the name of the lane, used for its thread
+	 */
+	SerialLane(final String name) {
+		this.name = name;
+		this.mExecutor = new ThreadPoolExecutor(1, 1, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+				new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+					@Override
+					public Thread newThread(Runnable r) {
+						Thread thread = new Thread(r, "serial-" + name);
+						thread.setDaemon(true);
+						return thread;
+					}
+				});
+		this.mExecutor.allowCoreThreadTimeOut(true);
+	}
+
+	/**
+	 * Queue an action, it runs after all the actions queued before it
+	 * @param action the action
+	 * @return false if the lane is shut down and the action will not run
+	 */
+	boolean execute(Runnable action) {
+		try {
+			mExecutor.execute(action);
+			return true;
+		}
+		catch (RejectedExecutionException e) {
+			Log.d(TAG, "Lane shut down: " + name);
+			return false;
+		}
+	}
+
+	/**
+	 * Let the queued actions run and stop accepting new ones
+	 */
+	void shutdown() {
+		mExecutor.shutdown();
+	}
+
+	/**
+	 * Wait for a shut down lane to finish its actions, the actions still running after the timeout are interrupted
+	 * @param timeout the maximum time to wait, in milliseconds
+	 * @return true if the lane finished in time
+	 */
+	boolean awaitTermination(long timeout) {
+		try {
+			if (mExecutor.awaitTermination(Math.max(0, timeout), TimeUnit.MILLISECONDS)) {
+				return true;
+			}
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		Log.d(TAG, "Lane still busy, interrupting: " + name);
+		mExecutor.shutdownNow();
+		return false;
+	}
+}
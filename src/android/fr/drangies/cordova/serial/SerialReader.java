@@ -0,0 +1,210 @@
+package fr.drangies.cordova.serial;
+
+import java.io.IOException;
+import java.lang.reflect.Method;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import com.hoho.android.usbserial.driver.UsbSerialPort;
+import com.hoho.android.usbserial.util.SerialInputOutputManager;
+
+import android.util.Log;
+
+/**
+ * Read loop of a serial port, replacing {@link SerialInputOutputManager} whose buffer size,
+ * read timeout and thread priority cannot be changed.
+ * In adaptive mode the read buffer grows when reads keep filling it and shrinks when they
+ * keep using a small part of it.
+ * @author Xavier Seignard <xavier.seignard@gmail.com>
+ */
+class SerialReader implements Runnable {
+	// logging tag
+	private final String TAG = SerialReader.class.getSimpleName();
+	// default values, the ones of SerialInputOutputManager
+	static final int DEFAULT_BUFFER_SIZE = 4096;
+	static final int DEFAULT_TIMEOUT = 200;
+	// adaptive mode bounds and thresholds
+	static final int MIN_BUFFER_SIZE = 64;
+	static final int DEFAULT_MAX_BUFFER_SIZE = 64 * 1024;
+	private static final int ADAPT_READS = 16;
+
+	/**
+	 * Read params of a port, set from the openSerial options
+	 */
+	static class Config {
+		int bufferSize = DEFAULT_BUFFER_SIZE;
+		int timeout = DEFAULT_TIMEOUT;
+		int writeBufferSize = 0;
+		// android thread priority, null to keep the default one
+		Integer threadPriority;
+		boolean adaptive;
+		int maxBufferSize = DEFAULT_MAX_BUFFER_SIZE;
+
+		/**
+		 * Read the config from the openSerial options
+		 * @param opts a {@link JSONObject} that may contain readBufferSize, readTimeout, writeBufferSize,
+		 *             ioThreadPriority, readBufferAdaptive and readBufferMaxSize
+		 * @throws JSONException if an option has the wrong type
+		 */
+		Config(JSONObject opts) throws JSONException {
+			if (opts.has("readBufferSize")) bufferSize = Math.max(MIN_BUFFER_SIZE, opts.getInt("readBufferSize"));
+			if (opts.has("readTimeout")) timeout = Math.max(1, opts.getInt("readTimeout"));
+			if (opts.has("writeBufferSize")) writeBufferSize = opts.getInt("writeBufferSize");
+			if (opts.has("ioThreadPriority")) threadPriority = opts.getInt("ioThreadPriority");
+			adaptive = opts.has("readBufferAdaptive") && opts.getBoolean("readBufferAdaptive");
+			if (opts.has("readBufferMaxSize")) maxBufferSize = Math.max(bufferSize, opts.getInt("readBufferMaxSize"));
+		}
+
+		/**
+		 * Apply the buffer sizes to the port, usb-serial-for-android only exposes them
+		 * on its package private base class, so they are set through reflection
+		 * @param port the opened port
+		 */
+		void apply(UsbSerialPort port) {
+			setBufferSize(port, "setReadBufferSize", adaptive ? maxBufferSize : bufferSize);
+			if (writeBufferSize > 0) {
+				setBufferSize(port, "setWriteBufferSize", writeBufferSize);
+			}
+		}
+
+		private static void setBufferSize(UsbSerialPort port, String setter, int size) {
+			try {
+				Method method = port.getClass().getMethod(setter, int.class);
+				method.setAccessible(true);
+				method.invoke(port, size);
+			}
+			catch (Exception e) {
+				// not a usb-serial-for-android port, nothing to configure
+				Log.d(SerialReader.class.getSimpleName(), "Cannot " + setter + " on " + port.getClass().getSimpleName());
+			}
+		}
+	}
+
+	private final UsbSerialPort port;
+	private final Config config;
+	private final SerialInputOutputManager.Listener listener;
+	private volatile boolean running = true;
+	// true while the port is not read, to let the device fill its buffer and stop sending
+	private volatile boolean held;
+	private byte[] buffer;
+	// adaptive mode state
+	private int reads;
+	private int fullReads;
+	private int smallReads;
+
+	/**
+	 * Create a read loop
+	 * @param port the opened port
+	 * @param config the read params
+	 * @param listener receive the data and the error that stops the loop
+	 */
+	SerialReader(UsbSerialPort port, Config config, SerialInputOutputManager.Listener listener) {
+		this.port = port;
+		this.config = config;
+		this.listener = listener;
+		this.buffer = new byte[config.bufferSize];
+	}
+
+	/**
+	 * Ask the loop to stop, it stops after the current read
+	 */
+	void stop() {
+		running = false;
+		synchronized (this) {
+			notifyAll();
+		}
+	}
+
+	/**
+	 * Stop or start reading the port, without stopping the loop
+	 * @param hold true to stop reading after the current read
+	 */
+	synchronized void setHeld(boolean hold) {
+		held = hold;
+		notifyAll();
+	}
+
+	/**
+	 * @return the current size of the read buffer
+	 */
+	int getBufferSize() {
+		return buffer.length;
+	}
+
+	@Override
+	public void run() {
+		if (config.threadPriority != null) {
+			android.os.Process.setThreadPriority(config.threadPriority);
+		}
+		Log.i(TAG, "Running ..");
+		try {
+			while (running) {
+				if (held) {
+					synchronized (this) {
+						while (held && running) {
+							wait();
+						}
+					}
+					continue;
+				}
+				int len = port.read(buffer, config.timeout);
+				if (len > 0 && running) {
+					byte[] data = new byte[len];
+					System.arraycopy(buffer, 0, data, 0, len);
+					listener.onNewData(data);
+				}
+				if (config.adaptive) {
+					adapt(len);
+				}
+			}
+		}
+		catch (IOException e) {
+			if (running) {
+				Log.w(TAG, "Run ending due to exception: " + e.getMessage());
+				listener.onRunError(e);
+			}
+		}
+		catch (RuntimeException e) {
+			Log.w(TAG, "Run ending due to exception: " + e.getMessage());
+			listener.onRunError(e);
+		}
+		catch (InterruptedException e) {
+			// stopped while held
+			Thread.currentThread().interrupt();
+		}
+		Log.i(TAG, "Stopped.");
+	}
+
+	/**
+	 * Resize the buffer according to the fill ratio of the last reads
+	 * @param len the number of bytes of the last read
+	 */
+	private void adapt(int len) {
+		if (len <= 0) {
+			return;
+		}
+		reads++;
+		if (len == buffer.length) {
+			fullReads++;
+		}
+		else if (len < buffer.length / 4) {
+			smallReads++;
+		}
+		if (reads < ADAPT_READS) {
+			return;
+		}
+		if (fullReads * 4 >= reads && buffer.length < config.maxBufferSize) {
+			// a quarter of the reads filled the buffer, data is probably waiting
+			buffer = new byte[Math.min(config.maxBufferSize, buffer.length * 2)];
+			Log.d(TAG, "Read buffer grown to " + buffer.length);
+		}
+		else if (smallReads == reads && buffer.length > config.bufferSize) {
+			buffer = new byte[Math.max(config.bufferSize, buffer.length / 2)];
+			Log.d(TAG, "Read buffer shrunk to " + buffer.length);
+		}
+		reads = 0;
+		fullReads = 0;
+		smallReads = 0;
+	}
+}
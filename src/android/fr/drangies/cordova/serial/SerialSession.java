@@ -0,0 +1,1130 @@
+package fr.drangies.cordova.serial;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.cordova.CallbackContext;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import com.hoho.android.usbserial.driver.UsbSerialDriver;
+import com.hoho.android.usbserial.driver.UsbSerialPort;
+import com.hoho.android.usbserial.util.SerialInputOutputManager;
+
+import android.hardware.usb.UsbDeviceConnection;
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * One opened port of a USB serial device, with its own connection params,
+ * I/O manager and read callback
+ * @author Xavier Seignard <xavier.seignard@gmail.com>
+ */
+class SerialSession {
+
+	/**
+	 * Notified when the connection of the port is lost, from the I/O thread,
+	 * when its control lines change, from the scheduler thread,
+	 * and when its receive buffer starts and stops overflowing
+	 */
+	interface ConnectionListener {
+		void onConnectionLost(SerialSession session, String reason);
+		void onControlLinesChanged(SerialSession session, JSONObject lines);
+		void onReceiveOverflow(SerialSession session, String state, JSONObject details);
+	}
+
+	// logging tag
+	private final String TAG = SerialSession.class.getSimpleName();
+	// what happens to the port when the app goes to the background
+	static final int PAUSE_KEEP = 0;
+	static final int PAUSE_CLOSE = 1;
+	static final int PAUSE_RETAIN = 2;
+	static final int PAUSE_LAZY = 3;
+	// default capacity of the buffer holding the data read while paused in retain mode
+	static final int DEFAULT_RETAIN_SIZE = 64 * 1024;
+	// handle identifying this session from javascript
+	private final String handle;
+	// where the device comes from, USB or virtual
+	private final PortProvider provider;
+	// The driver that handle the serial port, replaced when the device is attached again
+	private volatile UsbSerialDriver driver;
+	// serial number of the device, to find it again once attached again
+	private String serialNumber;
+	// index of the port in the driver port list
+	private final int portIndex;
+	// The serial port of this session, null when closed
+	private UsbSerialPort port;
+	// Connection info
+	private int baudRate;
+	private int dataBits;
+	private int stopBits;
+	private int parity;
+	private boolean setDTR;
+	private boolean setRTS;
+	private int pauseMode;
+	private int retainSize;
+	// true once closed by a pause, until reopened
+	private volatile boolean closedByPause;
+	// in poll mode the port is only read by readSerial, there is no I/O manager
+	private boolean pollMode;
+	// optional reconnection of the port when the connection is lost
+	private ReconnectSupervisor mReconnect;
+	// true from the loss of the connection until the port is reconnected or closed
+	private volatile boolean lost;
+	// notified when the connection is lost
+	private volatile ConnectionListener mConnectionListener;
+	// callback that will be used to send the connection state changes to the cordova app
+	private CallbackContext stateCallback;
+	// the file transfer running on the port, null if none
+	private volatile ModemTransfer mTransfer;
+	// flow control of the port, none by default
+	private volatile FlowControl mFlow;
+	// period of the control line checks, 0 for no change events
+	private int controlLineInterval;
+	// periodic check of the control lines, and their last known state
+	private ScheduledFuture<?> mLineTimer;
+	private int lastLines = -1;
+	// executor of the periodic tasks of the port
+	private final ScheduledExecutorService mScheduler;
+
+	// callback that will be used to send back the data of this port to the cordova app
+	private CallbackContext readCallback;
+
+	// I/O manager to handle new incoming serial data, on its own thread
+	private final ExecutorService mExecutor = Executors.newSingleThreadExecutor();
+	private volatile SerialReader mSerialIoManager;
+	// read buffer, read timeout and I/O thread tuning
+	private SerialReader.Config mReaderConfig;
+	// read dispatcher to coalesce incoming data before sending it to javascript
+	private final ReadDispatcher mDispatcher;
+	// receive what the dispatcher sends, unless it is retained
+	private final ReadDispatcher.Listener mOutput;
+	// optional bound on the data waiting for javascript, between the dispatcher and the bridge
+	private volatile ReceiveBuffer mReceive;
+	private final ReceiveBuffer.Listener mReceiveListener = new ReceiveBuffer.Listener() {
+		@Override
+		public void onHold(boolean hold) {
+			holdInput(hold);
+		}
+		@Override
+		public void onOverflow(String state, JSONObject details) {
+			ConnectionListener listener = mConnectionListener;
+			if (listener != null) {
+				listener.onReceiveOverflow(SerialSession.this, state, details);
+			}
+		}
+	};
+	// data read while paused in retain mode, null when not paused
+	private ByteRingBuffer mRetained;
+	private long mRetainedCaptured;
+	private final Object mRetainLock = new Object();
+	// optional decoder splitting the incoming data into frames
+	private volatile FrameDecoder mDecoder;
+	private final FrameDecoder.Listener mFrameListener = new FrameDecoder.Listener() {
+		@Override
+		public void onFrame(byte[] buffer, int offset, int length) {
+			if (!mTransactions.offerFrame(buffer, offset, length)) {
+				ProcessingPipeline pipeline = mPipeline;
+				if (pipeline != null) {
+					pipeline.process(buffer, offset, length, mSampleListener);
+				}
+				else {
+					mDispatcher.pushFrame(buffer, offset, length, mCaptured);
+				}
+			}
+		}
+	};
+	// optional logical channels, they replace the framing
+	private volatile ChannelMux mChannels;
+	// optional native processing of the frames, before the dispatcher
+	private volatile ProcessingPipeline mPipeline;
+	private final FrameDecoder.Listener mSampleListener = new FrameDecoder.Listener() {
+		@Override
+		public void onFrame(byte[] buffer, int offset, int length) {
+			mDispatcher.pushFrame(buffer, offset, length, mCaptured);
+		}
+	};
+	// when the chunk being handled was read, the time of the frames it ends
+	private volatile long mCaptured = SystemClock.elapsedRealtimeNanos();
+	// outstanding transactions, they get the responses before the dispatcher
+	private final TransactionManager mTransactions;
+	// writes repeated by the plugin at a fixed rate
+	private final PeriodicWriter mPeriodic = new PeriodicWriter(this);
+	// throughput and latency counters
+	private final SerialStats mStats = new SerialStats();
+	// periodic push of the counters to javascript
+	private ScheduledFuture<?> mStatsTimer;
+	// optional capture of the traffic
+	private volatile CaptureLog mCapture;
+	// optional local endpoint streaming the data off the bridge
+	private volatile StreamServer mStream;
+	// ordered write queue, drained by its own thread
+	private final SerialWriter mWriter = new SerialWriter(mStats);
+	// reader serving the readSerial calls
+	private final PollReader mPollReader = new PollReader(mStats);
+	private final SerialInputOutputManager.Listener mListener =
+			new SerialInputOutputManager.Listener() {
+				@Override
+				public void onRunError(Exception e) {
+					Log.d(TAG, "Runner stopped, handle=" + handle);
+					mStats.ioManagerErrors.incrementAndGet();
+					ConnectionListener listener = mConnectionListener;
+					if (listener != null) {
+						listener.onConnectionLost(SerialSession.this, e.getMessage());
+					}
+				}
+				@Override
+				public void onNewData(byte[] data) {
+					mCaptured = SystemClock.elapsedRealtimeNanos();
+					mStats.onRead(data.length);
+					// a file transfer takes the bytes as they came
+					ModemTransfer transfer = mTransfer;
+					if (transfer != null) {
+						transfer.offer(data);
+						return;
+					}
+					// in xonxoff mode, the control characters are for the write pacer only
+					FlowControl flow = mFlow;
+					if (flow != null) {
+						int length = flow.filterInput(data, 0, data.length);
+						if (length == 0) {
+							return;
+						}
+						if (length < data.length) {
+							data = Arrays.copyOf(data, length);
+						}
+					}
+					CaptureLog capture = mCapture;
+					if (capture != null) {
+						capture.append(CaptureLog.IN, data, 0, data.length);
+					}
+					ChannelMux channels = mChannels;
+					FrameDecoder decoder = mDecoder;
+					if (channels != null) {
+						channels.decode(data);
+					}
+					else if (decoder != null) {
+						decoder.decode(data, mFrameListener);
+					}
+					else if (!mTransactions.offer(data, mCaptured)) {
+						mDispatcher.push(data, mCaptured);
+					}
+				}
+			};
+
+	/**
+	 * Create a session, the port still has to be opened
+	 * @param handle the handle identifying this session
+	 * @param provider the {@link PortProvider} of the device, to open it with
+	 * @param driver the driver of the device
+	 * @param portIndex index of the port to use in the driver port list
+	 * @param scheduler executor used to flush the read batches and check the control lines
+	 * @param listener listener receiving the data read from the port
+	 */
+	SerialSession(String handle, PortProvider provider, UsbSerialDriver driver, int portIndex,
+			ScheduledExecutorService scheduler, ReadDispatcher.Listener listener) {
+		this.handle = handle;
+		this.provider = provider;
+		this.driver = driver;
+		this.portIndex = portIndex;
+		this.mOutput = listener;
+		this.mScheduler = scheduler;
+		this.mDispatcher = new ReadDispatcher(scheduler, new ReadDispatcher.Listener() {
+			@Override
+			public void onFlush(byte[] data, long captured) {
+				deliver(data, captured);
+			}
+		});
+		this.mTransactions = new TransactionManager(scheduler, new ReadDispatcher.Listener() {
+			@Override
+			public void onFlush(byte[] data, long captured) {
+				mDispatcher.push(data, captured);
+			}
+		});
+	}
+
+	/**
+	 * Build the handle of a session
+	 * @param deviceId the id of the device, given by its {@link PortProvider}
+	 * @param portIndex index of the port in the driver port list
+	 * @return the handle
+	 */
+	static String handle(int deviceId, int portIndex) {
+		return deviceId + ":" + portIndex;
+	}
+
+	String getHandle() {
+		return handle;
+	}
+
+	UsbSerialDriver getDriver() {
+		return driver;
+	}
+
+	PortProvider getProvider() {
+		return provider;
+	}
+
+	/**
+	 * @return the id of the device, which changes when it is attached again
+	 */
+	int getDeviceId() {
+		return provider.getDeviceId(driver);
+	}
+
+	UsbSerialPort getPort() {
+		return port;
+	}
+
+	boolean isOpen() {
+		return port != null;
+	}
+
+	int getPauseMode() {
+		return pauseMode;
+	}
+
+	CallbackContext getReadCallback() {
+		return readCallback;
+	}
+
+	void setReadCallback(CallbackContext readCallback) {
+		this.readCallback = readCallback;
+	}
+
+	CallbackContext getStateCallback() {
+		return stateCallback;
+	}
+
+	void setStateCallback(CallbackContext stateCallback) {
+		this.stateCallback = stateCallback;
+	}
+
+	void setConnectionListener(ConnectionListener listener) {
+		this.mConnectionListener = listener;
+	}
+
+	String getSerialNumber() {
+		return serialNumber;
+	}
+
+	ReconnectSupervisor getReconnect() {
+		return mReconnect;
+	}
+
+	/**
+	 * @return true while the connection is lost and the port reconnects, the writes are then held
+	 */
+	boolean isReconnecting() {
+		return lost && mReconnect != null;
+	}
+
+	SerialStats getStats() {
+		return mStats;
+	}
+
+	/**
+	 * Take a snapshot of the counters of this port
+	 * @return a {@link JSONObject} describing the counters
+	 * @throws JSONException never, org.json declares it
+	 */
+	JSONObject getStatsSnapshot() throws JSONException {
+		JSONObject stats = mStats.toJSON(mWriter.getQueuedBytes());
+		stats.put("handle", handle);
+		ProcessingPipeline pipeline = mPipeline;
+		if (pipeline != null) {
+			stats.put("pipeline", pipeline.toJSON());
+		}
+		StreamServer stream = mStream;
+		if (stream != null) {
+			stats.put("streamClients", stream.getClientCount());
+			stats.put("streamDropped", stream.dropped.get());
+		}
+		SerialReader reader = mSerialIoManager;
+		if (reader != null) {
+			stats.put("readBufferSize", reader.getBufferSize());
+		}
+		ReceiveBuffer receive = mReceive;
+		if (receive != null) {
+			stats.put("receiveBuffer", receive.toJSON());
+		}
+		ChannelMux channels = mChannels;
+		if (channels != null) {
+			stats.put("channels", channels.toJSON());
+			stats.put("channelUnknownFrames", channels.unknownFrames.get());
+		}
+		return stats;
+	}
+
+	/**
+	 * Replace the periodic push of the counters
+	 * @param timer the new timer, null to stop pushing
+	 */
+	synchronized void setStatsTimer(ScheduledFuture<?> timer) {
+		if (mStatsTimer != null) {
+			mStatsTimer.cancel(false);
+		}
+		mStatsTimer = timer;
+	}
+
+	/**
+	 * @return the logical channels of the port, null if it has none
+	 */
+	ChannelMux getChannels() {
+		return mChannels;
+	}
+
+	/**
+	 * Queue a write on a logical channel
+	 * @param id the id of the channel
+	 * @param data the payload
+	 * @param callback notified once the payload is written
+	 */
+	void writeChannel(int id, byte[] data, SerialWriter.Callback callback) {
+		ChannelMux channels = mChannels;
+		ChannelMux.Channel channel = channels != null ? channels.get(id) : null;
+		if (channel == null) {
+			callback.onError("No such channel: " + id);
+			return;
+		}
+		channels.write(mWriter, channel, data, callback);
+	}
+
+	/**
+	 * @return true if the incoming data is split into frames
+	 */
+	boolean isFramed() {
+		return mDecoder != null;
+	}
+
+	/**
+	 * Replace the processing of the frames
+	 * @param pipeline the new pipeline, null to send the frames as they are
+	 */
+	void setPipeline(ProcessingPipeline pipeline) {
+		mPipeline = pipeline;
+	}
+
+	StreamServer getStream() {
+		return mStream;
+	}
+
+	CaptureLog getCapture() {
+		return mCapture;
+	}
+
+	/**
+	 * Replace the capture of the traffic, the previous one is closed
+	 * @param capture the new capture, null to stop capturing
+	 */
+	synchronized void setCapture(CaptureLog capture) {
+		CaptureLog previous = mCapture;
+		mCapture = capture;
+		mWriter.setCapture(capture);
+		mPollReader.setCapture(capture);
+		if (previous != null && previous != capture) {
+			previous.close();
+		}
+	}
+
+	/**
+	 * Open the port
+	 * @param opts a {@link JSONObject} containing the connection parameters
+	 * @throws IOException if the device cannot be opened or configured
+	 * @throws JSONException if an option has the wrong type
+	 */
+	void open(JSONObject opts) throws IOException, JSONException {
+		// get connection params or the default values
+		baudRate = opts.has("baudRate") ? opts.getInt("baudRate") : 9600;
+		dataBits = opts.has("dataBits") ? opts.getInt("dataBits") : UsbSerialPort.DATABITS_8;
+		stopBits = opts.has("stopBits") ? opts.getInt("stopBits") : UsbSerialPort.STOPBITS_1;
+		parity = opts.has("parity") ? opts.getInt("parity") : UsbSerialPort.PARITY_NONE;
+		setDTR = opts.has("dtr") && opts.getBoolean("dtr");
+		setRTS = opts.has("rts") && opts.getBoolean("rts");
+		// Sleep On Pause defaults to true
+		boolean sleepOnPause = opts.has("sleepOnPause") ? opts.getBoolean("sleepOnPause") : true;
+		pauseMode = parsePauseMode(opts.has("pauseMode") ? opts.getString("pauseMode") : sleepOnPause ? "close" : "keep");
+		retainSize = opts.has("retainBufferSize") ? opts.getInt("retainBufferSize") : DEFAULT_RETAIN_SIZE;
+		// stream mode by default
+		pollMode = opts.has("readMode") && "poll".equals(opts.getString("readMode"));
+		// read batching, disabled by default
+		mDispatcher.configure(opts);
+		// no bound on the data waiting for javascript by default
+		ReceiveBuffer previous = mReceive;
+		mReceive = ReceiveBuffer.create(opts, mOutput, mReceiveListener);
+		if (previous != null) {
+			previous.close();
+		}
+		// native framing, disabled by default
+		mDecoder = FrameDecoder.create(opts);
+		// no channels by default
+		ChannelMux channels = ChannelMux.create(opts);
+		if (channels != null && mDecoder != null) {
+			throw new JSONException("Channels and framing cannot be combined");
+		}
+		mChannels = channels;
+		mWriter.configure(opts);
+		// flow control, none by default
+		mFlow = new FlowControl(opts);
+		mWriter.setFlowControl(mFlow);
+		mPollReader.setFlowControl(mFlow);
+		controlLineInterval = opts.has("controlLineInterval") ? opts.getInt("controlLineInterval") : 0;
+		// read buffer sizes and I/O thread, the usb-serial-for-android defaults otherwise
+		mReaderConfig = new SerialReader.Config(opts);
+		// no reconnection by default
+		mReconnect = ReconnectSupervisor.create(opts);
+		serialNumber = provider.getSerialNumber(driver);
+		StreamServer started = null;
+		if (opts.has("transport") && "websocket".equals(opts.getString("transport")) && mStream == null) {
+			StreamServer stream = new StreamServer(opts, new StreamServer.Listener() {
+				@Override
+				public void onMessage(byte[] data) {
+					mWriter.write(data, new SerialWriter.Callback() {
+						@Override
+						public void onWritten(int count) {
+						}
+						@Override
+						public void onError(String message) {
+							Log.d(TAG, "Stream write failed: " + message);
+						}
+					});
+				}
+			});
+			stream.start();
+			mStream = stream;
+			started = stream;
+		}
+		boolean opened = false;
+		try {
+			reopen();
+			opened = true;
+		}
+		finally {
+			if (!opened && started != null) {
+				// nobody gets the endpoint of a port that failed to open
+				started.stop();
+				mStream = null;
+			}
+		}
+	}
+
+	private static int parsePauseMode(String mode) throws JSONException {
+		if ("keep".equals(mode)) {
+			return PAUSE_KEEP;
+		}
+		else if ("close".equals(mode)) {
+			return PAUSE_CLOSE;
+		}
+		else if ("retain".equals(mode)) {
+			return PAUSE_RETAIN;
+		}
+		else if ("lazy".equals(mode)) {
+			return PAUSE_LAZY;
+		}
+		throw new JSONException("Unknown pauseMode: " + mode);
+	}
+
+	/**
+	 * The app goes to the background: close the port or start retaining its data, depending on the pause mode
+	 * @throws IOException if the port fails to close
+	 */
+	void pause() throws IOException {
+		if (pauseMode == PAUSE_RETAIN) {
+			synchronized (mRetainLock) {
+				if (mRetained == null) {
+					mRetained = new ByteRingBuffer(retainSize);
+				}
+			}
+		}
+		else if ((pauseMode == PAUSE_CLOSE || pauseMode == PAUSE_LAZY) && isOpen()) {
+			closedByPause = true;
+			close();
+		}
+	}
+
+	/**
+	 * The app is back: reopen the port or send the retained data, depending on the pause mode.
+	 * In lazy mode the port stays closed until {@link #resumeIfNeeded()}.
+	 * @throws IOException if the device cannot be opened or configured
+	 */
+	void resume() throws IOException {
+		if (pauseMode == PAUSE_RETAIN) {
+			synchronized (mRetainLock) {
+				ByteRingBuffer retained = mRetained;
+				mRetained = null;
+				if (retained != null && !retained.isEmpty()) {
+					Log.d(TAG, "Sending the data read while paused, len=" + retained.size());
+					output(retained.drain(), mRetainedCaptured);
+				}
+			}
+		}
+		else if (pauseMode == PAUSE_CLOSE) {
+			resumeIfNeeded();
+		}
+	}
+
+	/**
+	 * Reopen the port if a pause closed it, javascript calls this before touching the port
+	 * @throws IOException if the device cannot be opened or configured
+	 */
+	synchronized void resumeIfNeeded() throws IOException {
+		if (closedByPause) {
+			closedByPause = false;
+			reopen();
+		}
+	}
+
+	/**
+	 * The connection is lost, because the device was detached or stopped answering.
+	 * With reconnection, the port is closed but the writes are held until {@link #reconnect(UsbSerialDriver)}.
+	 * @return false if the loss is already known or the port is not open
+	 */
+	synchronized boolean markLost() {
+		if (lost || port == null) {
+			return false;
+		}
+		lost = true;
+		mStats.disconnects.incrementAndGet();
+		if (mReconnect != null) {
+			stopIoManager();
+			mWriter.suspend();
+			mPollReader.stop();
+			mDispatcher.flush();
+			try {
+				port.close();
+			}
+			catch (IOException e) {
+				// the device is gone
+				Log.d(TAG, e.getMessage());
+			}
+			port = null;
+		}
+		return true;
+	}
+
+	/**
+	 * Open the port again after a loss of connection, with the previously given connection parameters.
+	 * The held writes go out once the port is open.
+	 * @param driver the driver of the device, which gets a new one when attached again
+	 * @throws IOException if the device cannot be opened or configured, the port then stays closed
+	 */
+	synchronized void reconnect(UsbSerialDriver driver) throws IOException {
+		this.driver = driver;
+		// the port stays closed if it fails
+		reopen();
+		lost = false;
+		mStats.reconnects.incrementAndGet();
+		mReconnect.reset();
+	}
+
+	/**
+	 * Send a flush of the dispatcher to javascript, or keep it while paused in retain mode.
+	 * With framing, retained frames keep their length header so that the batch sent on
+	 * resume can be split back, the oldest frames are dropped when the buffer is full.
+	 * Timestamped records are kept and dropped the same way.
+	 */
+	private void deliver(byte[] data, long captured) {
+		synchronized (mRetainLock) {
+			ByteRingBuffer retained = mRetained;
+			if (retained != null) {
+				boolean timestamped = mDispatcher.isTimestamped();
+				boolean framed = mDecoder != null || timestamped;
+				// the length of a record follows its time
+				int lengthAt = timestamped ? ReadDispatcher.RECORD_HEADER - 2 : 0;
+				// without batching a frame comes alone and without its header
+				int header = framed && !timestamped && !mDispatcher.isBatching() ? 2 : 0;
+				int length = data.length + header;
+				if (framed && length > retained.capacity()) {
+					mStats.retainDropped.addAndGet(data.length);
+					return;
+				}
+				while (retained.remaining() < length && !retained.isEmpty()) {
+					int dropped = framed ? ((retained.peek(lengthAt) << 8) | retained.peek(lengthAt + 1)) + lengthAt + 2 : length - retained.remaining();
+					mStats.retainDropped.addAndGet(retained.skip(dropped));
+				}
+				if (retained.isEmpty()) {
+					mRetainedCaptured = captured;
+				}
+				if (header > 0) {
+					retained.put(new byte[] { (byte) (data.length >> 8), (byte) data.length }, 0, 2);
+				}
+				// a raw chunk larger than the buffer keeps its newest bytes
+				int offset = Math.max(0, data.length - retained.remaining());
+				mStats.retainDropped.addAndGet(offset);
+				retained.put(data, offset, data.length - offset);
+				return;
+			}
+		}
+		output(data, captured);
+	}
+
+	/**
+	 * Send data to the stream clients if any, through the bridge otherwise
+	 * @param captured when the oldest data was read, the delivery latency is measured from then
+	 */
+	private void output(byte[] data, long captured) {
+		StreamServer stream = mStream;
+		if (stream != null && stream.send(data)) {
+			mStats.onDelivered(SystemClock.elapsedRealtimeNanos() - captured);
+			return;
+		}
+		ReceiveBuffer receive = mReceive;
+		if (receive != null) {
+			receive.offer(data, captured);
+		}
+		else {
+			mOutput.onFlush(data, captured);
+		}
+	}
+
+	/**
+	 * The read callback is done with some data, the receive buffer may send more
+	 * @param bytes the number of bytes acknowledged
+	 */
+	void acknowledge(long bytes) {
+		ReceiveBuffer receive = mReceive;
+		if (receive != null) {
+			receive.acknowledge(bytes);
+		}
+	}
+
+	/**
+	 * A new read callback is registered, the data sent to the previous one will not be acknowledged
+	 */
+	void resetAcknowledged() {
+		ReceiveBuffer receive = mReceive;
+		if (receive != null) {
+			receive.resetInFlight();
+		}
+	}
+
+	/**
+	 * Stop or start reading the port for the receive buffer, and ask the device to wait with the flow control if any
+	 * @param hold true to stop reading
+	 */
+	private void holdInput(boolean hold) {
+		if (mTransfer != null) {
+			// the end of the transfer applies the state of the receive buffer
+			return;
+		}
+		setInputHeld(hold);
+	}
+
+	/**
+	 * Stop or start reading the port, and ask the device to wait with the flow control if any
+	 * @param hold true to stop reading
+	 */
+	private void setInputHeld(boolean hold) {
+		Log.d(TAG, (hold ? "Holding" : "Releasing") + " the reads, handle=" + handle);
+		SerialReader reader = mSerialIoManager;
+		if (reader != null) {
+			reader.setHeld(hold);
+		}
+		FlowControl flow = mFlow;
+		UsbSerialPort target = port;
+		if (flow != null && target != null) {
+			try {
+				flow.holdInput(target, hold);
+			}
+			catch (IOException e) {
+				// the reads stay held, the device overruns its own buffer
+				Log.d(TAG, e.getMessage());
+			}
+		}
+	}
+
+	/**
+	 * Open the port again with the previously given connection parameters
+	 * @throws IOException if the device cannot be opened or configured
+	 */
+	void reopen() throws IOException {
+		closedByPause = false;
+		UsbDeviceConnection connection = provider.openDevice(driver);
+		UsbSerialPort target = driver.getPorts().get(portIndex);
+		// a partial frame does not survive a reconnection
+		FrameDecoder decoder = mDecoder;
+		if (decoder != null) {
+			decoder.reset();
+		}
+		ChannelMux channels = mChannels;
+		if (channels != null) {
+			channels.reset();
+		}
+		try {
+			target.open(connection);
+			target.setParameters(baudRate, dataBits, stopBits, parity);
+			mReaderConfig.apply(target);
+			if (setDTR) target.setDTR(true);
+			if (setRTS) target.setRTS(true);
+			mFlow.configure(connection, driver, target);
+		}
+		catch (IOException e) {
+			release(target, connection);
+			throw e;
+		}
+		catch (RuntimeException e) {
+			release(target, connection);
+			throw e;
+		}
+		// the port is open only once configured
+		port = target;
+		mWriter.start(target);
+		if (pollMode) {
+			mPollReader.start(target);
+		}
+		onDeviceStateChange();
+		startLineTimer();
+	}
+
+	/**
+	 * Close a port that failed to open or to be configured, and the connection to its device
+	 * @param target the port
+	 * @param connection the connection to the device, null for a device that needs none
+	 */
+	private void release(UsbSerialPort target, UsbDeviceConnection connection) {
+		try {
+			target.close();
+		}
+		catch (IOException e) {
+			// not opened
+			Log.d(TAG, e.getMessage());
+		}
+		if (connection != null) {
+			connection.close();
+		}
+	}
+
+	/**
+	 * Check the control lines every controlLineInterval, if set
+	 */
+	private synchronized void startLineTimer() {
+		stopLineTimer();
+		if (controlLineInterval <= 0) {
+			return;
+		}
+		lastLines = -1;
+		mLineTimer = mScheduler.scheduleAtFixedRate(new Runnable() {
+			public void run() {
+				checkControlLines();
+			}
+		}, 0, controlLineInterval, TimeUnit.MILLISECONDS);
+	}
+
+	private synchronized void stopLineTimer() {
+		if (mLineTimer != null) {
+			mLineTimer.cancel(false);
+			mLineTimer = null;
+		}
+	}
+
+	/**
+	 * Read the input control lines, and tell the listener if they changed since the last check
+	 */
+	private void checkControlLines() {
+		UsbSerialPort target = port;
+		if (target == null) {
+			return;
+		}
+		JSONObject lines;
+		int previous;
+		int current;
+		try {
+			lines = getControlLines();
+			current = (lines.getBoolean("cts") ? 1 : 0) | (lines.getBoolean("dsr") ? 2 : 0)
+					| (lines.getBoolean("cd") ? 4 : 0) | (lines.getBoolean("ri") ? 8 : 0);
+		}
+		catch (Exception e) {
+			// the port went away, the reader reports it
+			return;
+		}
+		synchronized (this) {
+			previous = lastLines;
+			lastLines = current;
+		}
+		ConnectionListener listener = mConnectionListener;
+		if (previous >= 0 && previous != current && listener != null) {
+			listener.onControlLinesChanged(this, lines);
+		}
+	}
+
+	/**
+	 * Read the control lines of the port, the lines a driver cannot read are reported low
+	 * @return a {@link JSONObject} with the cts, dsr, cd and ri inputs and the dtr and rts outputs
+	 * @throws IOException if the port is closed or the lines cannot be read
+	 * @throws JSONException never, org.json declares it
+	 */
+	JSONObject getControlLines() throws IOException, JSONException {
+		UsbSerialPort target = port;
+		if (target == null) {
+			throw new IOException("Port closed.");
+		}
+		JSONObject lines = new JSONObject();
+		lines.put("cts", target.getCTS());
+		lines.put("dsr", target.getDSR());
+		lines.put("cd", target.getCD());
+		lines.put("ri", target.getRI());
+		lines.put("dtr", target.getDTR());
+		lines.put("rts", target.getRTS());
+		return lines;
+	}
+
+	/**
+	 * Set the DTR output, kept across reconnections
+	 * @param value the new state of the line
+	 * @throws IOException if the port is closed or the line cannot be set
+	 */
+	void setDTR(boolean value) throws IOException {
+		UsbSerialPort target = port;
+		if (target == null) {
+			throw new IOException("Port closed.");
+		}
+		target.setDTR(value);
+		setDTR = value;
+	}
+
+	/**
+	 * Set the RTS output, kept across reconnections
+	 * @param value the new state of the line
+	 * @throws IOException if the port is closed or the line cannot be set
+	 */
+	void setRTS(boolean value) throws IOException {
+		UsbSerialPort target = port;
+		if (target == null) {
+			throw new IOException("Port closed.");
+		}
+		target.setRTS(value);
+		setRTS = value;
+	}
+
+	/**
+	 * Close the port, pending read data is sent first and the queued writes get a chance to complete
+	 * @throws IOException if the port fails to close
+	 */
+	void close() throws IOException {
+		try {
+			if (!mWriter.flush(SerialWriter.WRITE_WAIT_MILLIS)) {
+				Log.d(TAG, "Closing with writes still queued, handle=" + handle);
+			}
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		lost = false;
+		if (mReconnect != null) {
+			mReconnect.reset();
+		}
+		stopLineTimer();
+		stopIoManager();
+		mWriter.stop();
+		mTransactions.failAll("Port closed.");
+		mPollReader.stop();
+		mDispatcher.flush();
+		try {
+			// Make sure we don't die if we try to close an non-existing port!
+			if (port != null) {
+				port.close();
+			}
+		}
+		finally {
+			port = null;
+		}
+	}
+
+	/**
+	 * Close the port and release the I/O manager thread
+	 */
+	void destroy() {
+		mPeriodic.cancelAll();
+		ReceiveBuffer receive = mReceive;
+		if (receive != null) {
+			receive.close();
+		}
+		try {
+			close();
+		}
+		catch (IOException e) {
+			Log.d(TAG, e.getMessage());
+		}
+		setStatsTimer(null);
+		setCapture(null);
+		StreamServer stream = mStream;
+		if (stream != null) {
+			stream.stop();
+			mStream = null;
+		}
+		mWriter.destroy();
+		mExecutor.shutdown();
+	}
+
+	/**
+	 * Queue a write on the port, writes are performed in submission order
+	 * @param data the bytes to write
+	 * @param callback notified once the bytes are written
+	 */
+	void write(byte[] data, SerialWriter.Callback callback) {
+		mWriter.write(data, callback);
+	}
+
+	/**
+	 * Queue a write on the port, ahead of the writes of lower priority
+	 * @param data the bytes to write
+	 * @param callback notified once the bytes are written
+	 * @param priority from 0, the priority of the usual writes, to {@link SerialWriter#PRIORITIES} - 1
+	 */
+	void write(byte[] data, SerialWriter.Callback callback, int priority) {
+		mWriter.write(data, callback, priority, true);
+	}
+
+	/**
+	 * Start writing a payload periodically, see {@link PeriodicWriter#add(byte[], JSONObject, PeriodicWriter.Listener)}
+	 * @throws JSONException if an option is missing or has the wrong type
+	 * @throws IOException if a response is expected in poll mode
+	 */
+	int schedulePeriodicWrite(byte[] data, JSONObject opts, PeriodicWriter.Listener listener) throws JSONException, IOException {
+		if (pollMode && opts.has("expect")) {
+			throw new IOException("Transactions need the stream read mode.");
+		}
+		return mPeriodic.add(data, opts, listener);
+	}
+
+	/**
+	 * Stop a periodic write
+	 * @param id the id given by {@link #schedulePeriodicWrite(byte[], JSONObject, PeriodicWriter.Listener)}
+	 * @return false if there is no such periodic write
+	 */
+	boolean cancelPeriodicWrite(int id) {
+		return mPeriodic.cancel(id);
+	}
+
+	/**
+	 * Write a command and wait for its response
+	 * @param command the bytes to write
+	 * @param tx the transaction, telling how to recognize the response
+	 */
+	void transact(byte[] command, final TransactionManager.Transaction tx) {
+		transact(command, tx, SerialWriter.DEFAULT_PRIORITY);
+	}
+
+	/**
+	 * Write a command and wait for its response, the command goes ahead of the writes of lower priority
+	 * @param command the bytes to write
+	 * @param tx the transaction, notified of the response
+	 * @param priority from 0, the priority of the usual writes, to {@link SerialWriter#PRIORITIES} - 1
+	 */
+	void transact(byte[] command, final TransactionManager.Transaction tx, int priority) {
+		if (pollMode) {
+			tx.callback.onError("Transactions need the stream read mode.");
+			return;
+		}
+		// wait before writing, the response may come before the write completes
+		mTransactions.add(tx);
+		mWriter.write(command, new SerialWriter.Callback() {
+			@Override
+			public void onWritten(int count) {
+			}
+			@Override
+			public void onError(String message) {
+				mTransactions.fail(tx, message);
+			}
+		}, priority, true);
+	}
+
+	/**
+	 * Run a file transfer on the calling thread, with the port for itself: the queued writes go
+	 * out first, then the new writes are held and the data read goes to the transfer until it is over.
+	 * The I/O manager keeps reading the port, as the reads of some drivers do not end on their timeout;
+	 * in poll mode the transfer reads the port itself.
+	 * @param transfer the transfer
+	 * @return the summary of the transfer
+	 * @throws IOException if the port is closed, or the transfer fails
+	 */
+	JSONObject transfer(ModemTransfer transfer) throws IOException {
+		UsbSerialPort target = port;
+		if (target == null) {
+			throw new IOException("Port closed.");
+		}
+		try {
+			mWriter.flush(SerialWriter.WRITE_WAIT_MILLIS);
+			mWriter.suspend();
+			mTransfer = transfer;
+			ReceiveBuffer receive = mReceive;
+			if (receive != null && receive.isHeld()) {
+				// the transfer does not go through the receive buffer
+				setInputHeld(false);
+			}
+			return transfer.run(target, !pollMode && mSerialIoManager != null);
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Transfer interrupted.");
+		}
+		finally {
+			mTransfer = null;
+			ReceiveBuffer receive = mReceive;
+			if (receive != null && receive.isHeld()) {
+				setInputHeld(true);
+			}
+			if (port == target) {
+				mWriter.start(target);
+			}
+		}
+	}
+
+	/**
+	 * Read on the port, see {@link PollReader#read(int, int, int)}
+	 */
+	byte[] read(int maxBytes, int timeout, int minBytes) throws IOException {
+		return mPollReader.read(maxBytes, timeout, minBytes);
+	}
+
+	/**
+	 * Keep data no read callback was registered for, so that readSerial can return it
+	 * @param data the bytes read from the port
+	 */
+	void keepUnclaimed(byte[] data) {
+		mPollReader.offer(data);
+		// no read callback will acknowledge it
+		acknowledge(data.length);
+	}
+
+	/**
+	 * Stop observing serial connection
+	 */
+	void stopIoManager() {
+		if (mSerialIoManager != null) {
+			Log.i(TAG, "Stopping io manager, handle=" + handle);
+			mSerialIoManager.stop();
+			mSerialIoManager = null;
+		}
+	}
+
+	/**
+	 * Observe serial connection
+	 */
+	void startIoManager() {
+		if (port != null && !pollMode) {
+			Log.i(TAG, "Starting io manager, handle=" + handle);
+			mStats.ioManagerStarts.incrementAndGet();
+			mSerialIoManager = new SerialReader(port, mReaderConfig, mListener);
+			ReceiveBuffer receive = mReceive;
+			if (receive != null && receive.isHeld()) {
+				// the flow control was set up again with the port
+				holdInput(true);
+			}
+			mExecutor.submit(mSerialIoManager);
+		}
+	}
+
+	/**
+	 * Restart the observation of the serial connection
+	 */
+	void onDeviceStateChange() {
+		stopIoManager();
+		startIoManager();
+	}
+}
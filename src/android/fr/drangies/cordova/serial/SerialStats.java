@@ -0,0 +1,214 @@
+package fr.drangies.cordova.serial;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Throughput and latency counters of a serial port.
+ * Everything is updated without locking from the I/O, writer and dispatch threads,
+ * a snapshot is only eventually consistent.
+ * @author Xavier Seignard <xavier.seignard@gmail.com>
+ */
+class SerialStats {
+	// when the counters were last reset
+	private volatile long since = System.currentTimeMillis();
+	// incoming data
+	final AtomicLong bytesIn = new AtomicLong();
+	final AtomicLong chunksIn = new AtomicLong();
+	final Histogram chunkSize = new Histogram();
+	// outgoing data
+	final AtomicLong bytesOut = new AtomicLong();
+	final AtomicLong writes = new AtomicLong();
+	final AtomicLong writeErrors = new AtomicLong();
+	final Histogram writeLatency = new Histogram();
+	final AtomicLong maxQueuedBytes = new AtomicLong();
+	// dispatch to javascript
+	final AtomicLong dispatches = new AtomicLong();
+	final Histogram dispatchTime = new Histogram();
+	// from the read of the data to its dispatch to javascript or the stream clients
+	final Histogram deliveryLatency = new Histogram();
+	// I/O manager life cycle
+	final AtomicLong ioManagerStarts = new AtomicLong();
+	final AtomicLong ioManagerErrors = new AtomicLong();
+	// bytes dropped while paused in retain mode
+	final AtomicLong retainDropped = new AtomicLong();
+	// writes made by the periodic schedules, the ticks they missed, and how late the timer woke up
+	final AtomicLong periodicWrites = new AtomicLong();
+	final AtomicLong periodicMissed = new AtomicLong();
+	final Histogram periodicLateness = new Histogram();
+	// connection losses and successful reconnections
+	final AtomicLong disconnects = new AtomicLong();
+	final AtomicLong reconnects = new AtomicLong();
+
+	/**
+	 * Record a chunk read from the port
+	 * @param length the number of bytes read
+	 */
+	void onRead(int length) {
+		bytesIn.addAndGet(length);
+		chunksIn.incrementAndGet();
+		chunkSize.record(length);
+	}
+
+	/**
+	 * Record a transfer written to the port
+	 * @param length the number of bytes written
+	 * @param nanos how long the write took
+	 * @param success false if the write failed
+	 */
+	void onWrite(int length, long nanos, boolean success) {
+		if (success) {
+			bytesOut.addAndGet(length);
+			writes.incrementAndGet();
+		}
+		else {
+			writeErrors.incrementAndGet();
+		}
+		writeLatency.record(nanos / 1000);
+	}
+
+	/**
+	 * Record the depth of the write queue
+	 * @param queuedBytes the number of bytes waiting to be written
+	 */
+	void onQueued(int queuedBytes) {
+		updateMax(maxQueuedBytes, queuedBytes);
+	}
+
+	/**
+	 * Record a result sent to javascript
+	 * @param nanos how long sending the result took
+	 */
+	void onDispatch(long nanos) {
+		dispatches.incrementAndGet();
+		dispatchTime.record(nanos / 1000);
+	}
+
+	/**
+	 * Record data handed to javascript or the stream clients
+	 * @param nanos how long after it was read
+	 */
+	void onDelivered(long nanos) {
+		deliveryLatency.record(nanos / 1000);
+	}
+
+	/**
+	 * Reset all the counters
+	 */
+	void reset() {
+		since = System.currentTimeMillis();
+		bytesIn.set(0);
+		chunksIn.set(0);
+		chunkSize.reset();
+		bytesOut.set(0);
+		writes.set(0);
+		writeErrors.set(0);
+		writeLatency.reset();
+		maxQueuedBytes.set(0);
+		dispatches.set(0);
+		dispatchTime.reset();
+		deliveryLatency.reset();
+		ioManagerStarts.set(0);
+		ioManagerErrors.set(0);
+		retainDropped.set(0);
+		periodicWrites.set(0);
+		periodicMissed.set(0);
+		periodicLateness.reset();
+		disconnects.set(0);
+		reconnects.set(0);
+	}
+
+	/**
+	 * Take a snapshot of the counters
+	 * @param queuedBytes the current number of bytes waiting to be written
+	 * @return a {@link JSONObject} describing the counters, sizes in bytes and times in microseconds
+	 * @throws JSONException never, org.json declares it
+	 */
+	JSONObject toJSON(int queuedBytes) throws JSONException {
+		JSONObject obj = new JSONObject();
+		obj.put("since", since);
+		obj.put("bytesIn", bytesIn.get());
+		obj.put("chunksIn", chunksIn.get());
+		obj.put("chunkSize", chunkSize.toJSON());
+		obj.put("bytesOut", bytesOut.get());
+		obj.put("writes", writes.get());
+		obj.put("writeErrors", writeErrors.get());
+		obj.put("writeLatency", writeLatency.toJSON());
+		obj.put("queuedBytes", queuedBytes);
+		obj.put("maxQueuedBytes", maxQueuedBytes.get());
+		obj.put("dispatches", dispatches.get());
+		obj.put("dispatchTime", dispatchTime.toJSON());
+		obj.put("deliveryLatency", deliveryLatency.toJSON());
+		obj.put("ioManagerStarts", ioManagerStarts.get());
+		obj.put("ioManagerErrors", ioManagerErrors.get());
+		obj.put("retainDropped", retainDropped.get());
+		obj.put("periodicWrites", periodicWrites.get());
+		obj.put("periodicMissed", periodicMissed.get());
+		obj.put("periodicLateness", periodicLateness.toJSON());
+		obj.put("disconnects", disconnects.get());
+		obj.put("reconnects", reconnects.get());
+		return obj;
+	}
+
+	private static void updateMax(AtomicLong max, long value) {
+		long current = max.get();
+		while (value > current && !max.compareAndSet(current, value)) {
+			current = max.get();
+		}
+	}
+
+	/**
+	 * Histogram with power of two buckets: bucket i counts the values up to 2^i
+	 */
+	static class Histogram {
+		private static final int BUCKETS = 24;
+		private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+		private final AtomicLong count = new AtomicLong();
+		private final AtomicLong sum = new AtomicLong();
+		private final AtomicLong max = new AtomicLong();
+
+		void record(long value) {
+			value = Math.max(0, value);
+			int bucket = value <= 1 ? 0 : 64 - Long.numberOfLeadingZeros(value - 1);
+			counts.incrementAndGet(Math.min(bucket, BUCKETS - 1));
+			count.incrementAndGet();
+			sum.addAndGet(value);
+			updateMax(max, value);
+		}
+
+		void reset() {
+			for (int i = 0; i < BUCKETS; i++) {
+				counts.set(i, 0);
+			}
+			count.set(0);
+			sum.set(0);
+			max.set(0);
+		}
+
+		/**
+		 * @return the non empty buckets, as upper bound and count pairs, with the count, sum and max
+		 */
+		JSONObject toJSON() throws JSONException {
+			JSONObject obj = new JSONObject();
+			JSONArray buckets = new JSONArray();
+			for (int i = 0; i < BUCKETS; i++) {
+				long n = counts.get(i);
+				if (n > 0) {
+					JSONArray bucket = new JSONArray();
+					bucket.put(i == BUCKETS - 1 ? -1 : 1L << i);
+					bucket.put(n);
+					buckets.put(bucket);
+				}
+			}
+			obj.put("buckets", buckets);
+			obj.put("count", count.get());
+			obj.put("sum", sum.get());
+			obj.put("max", max.get());
+			return obj;
+		}
+	}
+}
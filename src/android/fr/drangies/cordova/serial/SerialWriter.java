@@ -0,0 +1,345 @@
+package fr.drangies.cordova.serial;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import com.hoho.android.usbserial.driver.UsbSerialPort;
+
+import android.util.Log;
+
+/**
+ * Ordered write queue of a serial port.
+ * Writes are queued in submission order and drained by a single thread, which merges
+ * small consecutive writes into one transfer. The queue is bounded: a write that would
+ * go above the high-water mark is rejected.
+ * Writes have a priority: there is one queue per priority, and the drain thread always
+ * takes its next batch from the highest priority queue that is not empty.
+ * @author Xavier Seignard <xavier.seignard@gmail.com>
+ */
+class SerialWriter {
+	// logging tag
+	private final String TAG = SerialWriter.class.getSimpleName();
+	// write params
+	static final int WRITE_WAIT_MILLIS = 1000;
+	static final int DEFAULT_BATCH_SIZE = 4096;
+	static final int DEFAULT_QUEUE_SIZE = 64 * 1024;
+	// priorities, from 0 the lowest to PRIORITIES - 1
+	static final int PRIORITIES = 8;
+	static final int DEFAULT_PRIORITY = 0;
+
+	/**
+	 * Notified once a queued write has completed
+	 */
+	interface Callback {
+		void onWritten(int count);
+		void onError(String message);
+	}
+
+	/**
+	 * A queued write
+	 */
+	private static class Entry {
+		final byte[] data;
+		final Callback callback;
+		Entry(byte[] data, Callback callback) {
+			this.data = data;
+			this.callback = callback;
+		}
+	}
+
+	// one queue per priority
+	private final List<ArrayDeque<Entry>> queues = new ArrayList<ArrayDeque<Entry>>();
+	// number of writes and of bytes waiting in the queues
+	private int queuedCount;
+	private int queuedBytes;
+	// write params
+	private int batchSize = DEFAULT_BATCH_SIZE;
+	private int queueSize = DEFAULT_QUEUE_SIZE;
+	// the port to write to, null when stopped or suspended
+	private UsbSerialPort port;
+	// true while the port is reconnecting, the writes are then held
+	private boolean suspended;
+	// the thread draining the queue
+	private final ExecutorService mExecutor = Executors.newSingleThreadExecutor();
+	// write counters of the port
+	private final SerialStats stats;
+	// optional capture of the written data
+	private volatile CaptureLog capture;
+	// flow control of the port, the writes are paced unless the chip does it
+	private volatile FlowControl flow;
+
+	private final Runnable drainTask = new Runnable() {
+		public void run() {
+			drain();
+		}
+	};
+
+	/**
+	 * Create a writer
+	 * @param stats the counters to update
+	 */
+	SerialWriter(SerialStats stats) {
+		this.stats = stats;
+		for (int i = 0; i < PRIORITIES; i++) {
+			queues.add(new ArrayDeque<Entry>());
+		}
+	}
+
+	/**
+	 * Configure the queue from the openSerial options
+	 * @param opts a {@link JSONObject} that may contain writeBatchSize and writeQueueSize
+	 * @throws JSONException if an option has the wrong type
+	 */
+	synchronized void configure(JSONObject opts) throws JSONException {
+		batchSize = Math.max(1, opts.has("writeBatchSize") ? opts.getInt("writeBatchSize") : DEFAULT_BATCH_SIZE);
+		queueSize = Math.max(1, opts.has("writeQueueSize") ? opts.getInt("writeQueueSize") : DEFAULT_QUEUE_SIZE);
+	}
+
+	/**
+	 * Start draining the queue to the given port
+	 * @param port the opened port
+	 */
+	synchronized void start(UsbSerialPort port) {
+		this.port = port;
+		this.suspended = false;
+		if (queuedCount > 0) {
+			mExecutor.execute(drainTask);
+		}
+	}
+
+	/**
+	 * Stop writing but keep the queue, while the port reconnects.
+	 * The writes are still accepted up to the queue size, they go out on {@link #start(UsbSerialPort)}.
+	 */
+	synchronized void suspend() {
+		port = null;
+		suspended = true;
+		notifyAll();
+		releaseFlow();
+	}
+
+	/**
+	 * Stop writing, the pending writes fail
+	 */
+	void stop() {
+		List<Entry> pending = new ArrayList<Entry>();
+		synchronized (this) {
+			port = null;
+			suspended = false;
+			for (int i = PRIORITIES - 1; i >= 0; i--) {
+				pending.addAll(queues.get(i));
+				queues.get(i).clear();
+			}
+			queuedCount = 0;
+			queuedBytes = 0;
+			notifyAll();
+		}
+		releaseFlow();
+		for (Entry entry : pending) {
+			entry.callback.onError("Writing a closed port.");
+		}
+	}
+
+	/**
+	 * Wait for the queued writes to complete, e.g. before closing the port
+	 * @param timeout the maximum time to wait, in milliseconds
+	 * @return true if the queue is empty
+	 * @throws InterruptedException if the thread is interrupted while waiting
+	 */
+	synchronized boolean flush(long timeout) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + timeout;
+		long wait;
+		while (queuedCount > 0 && port != null && (wait = deadline - System.currentTimeMillis()) > 0) {
+			wait(wait);
+		}
+		return queuedCount == 0;
+	}
+
+	/**
+	 * Stop writing and release the writer thread
+	 */
+	void destroy() {
+		stop();
+		mExecutor.shutdown();
+	}
+
+	/**
+	 * Capture the written data, or stop capturing it
+	 * @param capture the capture log, null to stop
+	 */
+	void setCapture(CaptureLog capture) {
+		this.capture = capture;
+	}
+
+	/**
+	 * Pace the writes with a flow control, or stop pacing them
+	 * @param flow the flow control of the port, null for none
+	 */
+	void setFlowControl(FlowControl flow) {
+		this.flow = flow;
+	}
+
+	private void releaseFlow() {
+		FlowControl control = flow;
+		if (control != null) {
+			control.release();
+		}
+	}
+
+	/**
+	 * @return the number of bytes waiting to be written
+	 */
+	synchronized int getQueuedBytes() {
+		return queuedBytes;
+	}
+
+	/**
+	 * Queue a write, with the default priority
+	 * @param data the bytes to write
+	 * @param callback notified once the bytes are written
+	 */
+	void write(byte[] data, Callback callback) {
+		write(data, callback, DEFAULT_PRIORITY, true);
+	}
+
+	/**
+	 * Queue a write
+	 * @param data the bytes to write
+	 * @param callback notified once the bytes are written
+	 * @param priority the priority of the write, from 0 to {@link #PRIORITIES} - 1
+	 * @param bounded false if the caller bounds its writes itself, the queue size is then not checked
+	 */
+	void write(byte[] data, Callback callback, int priority, boolean bounded) {
+		String error = null;
+		synchronized (this) {
+			if (port == null && !suspended) {
+				error = "Writing a closed port.";
+			}
+			else if (bounded && queuedBytes > 0 && queuedBytes + data.length > queueSize) {
+				error = "Write queue full.";
+			}
+			else {
+				queues.get(Math.max(0, Math.min(PRIORITIES - 1, priority))).add(new Entry(data, callback));
+				queuedCount++;
+				queuedBytes += data.length;
+				stats.onQueued(queuedBytes);
+				// the drain task is only scheduled by the write that fills empty queues, while not suspended
+				if (queuedCount == 1 && port != null) {
+					mExecutor.execute(drainTask);
+				}
+			}
+		}
+		if (error != null) {
+			callback.onError(error);
+		}
+	}
+
+	/**
+	 * Write a buffer, in chunks sent once the device accepts data if the writes are paced
+	 */
+	private void write(UsbSerialPort target, byte[] buffer) throws IOException {
+		FlowControl control = flow;
+		if (control == null || !control.isPaced()) {
+			target.write(buffer, WRITE_WAIT_MILLIS);
+			return;
+		}
+		int chunkSize = control.getChunkSize();
+		for (int offset = 0; offset < buffer.length; offset += chunkSize) {
+			int length = Math.min(chunkSize, buffer.length - offset);
+			control.await(target);
+			target.write(length == buffer.length ? buffer : Arrays.copyOfRange(buffer, offset, offset + length), WRITE_WAIT_MILLIS);
+		}
+	}
+
+	/**
+	 * Write the queued data until the queue is empty
+	 */
+	private void drain() {
+		List<Entry> batch = new ArrayList<Entry>();
+		while (true) {
+			UsbSerialPort target;
+			ArrayDeque<Entry> queue = null;
+			byte[] buffer;
+			batch.clear();
+			synchronized (this) {
+				target = port;
+				for (int i = PRIORITIES - 1; i >= 0 && queue == null; i--) {
+					if (!queues.get(i).isEmpty()) {
+						queue = queues.get(i);
+					}
+				}
+				if (target == null || queue == null) {
+					return;
+				}
+				// merge the small consecutive writes, large writes go as is
+				int length = 0;
+				for (Entry entry : queue) {
+					if (!batch.isEmpty() && length + entry.data.length > batchSize) {
+						break;
+					}
+					length += entry.data.length;
+					batch.add(entry);
+				}
+				if (batch.size() == 1) {
+					buffer = batch.get(0).data;
+				}
+				else {
+					buffer = new byte[length];
+					int offset = 0;
+					for (Entry entry : batch) {
+						System.arraycopy(entry.data, 0, buffer, offset, entry.data.length);
+						offset += entry.data.length;
+					}
+				}
+			}
+			String error = null;
+			long start = System.nanoTime();
+			try {
+				write(target, buffer);
+			}
+			catch (IOException e) {
+				Log.d(TAG, e.getMessage());
+				error = e.getMessage();
+			}
+			stats.onWrite(buffer.length, System.nanoTime() - start, error == null);
+			CaptureLog log = capture;
+			if (log != null && error == null) {
+				log.append(CaptureLog.OUT, buffer, 0, buffer.length);
+			}
+			synchronized (this) {
+				// the writes failed by a concurrent stop are not in the queue anymore
+				for (Iterator<Entry> it = batch.iterator(); it.hasNext(); ) {
+					Entry entry = it.next();
+					if (queue.peek() == entry) {
+						queue.poll();
+						queuedCount--;
+						queuedBytes -= entry.data.length;
+					}
+					else {
+						it.remove();
+					}
+				}
+				if (queuedCount == 0) {
+					notifyAll();
+				}
+			}
+			for (Entry entry : batch) {
+				if (error == null) {
+					entry.callback.onWritten(entry.data.length);
+				}
+				else {
+					entry.callback.onError(error);
+				}
+			}
+		}
+	}
+}
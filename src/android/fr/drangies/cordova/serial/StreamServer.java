@@ -0,0 +1,386 @@
+package fr.drangies.cordova.serial;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import android.util.Base64;
+import android.util.Log;
+
+/**
+ * WebSocket endpoint serving the data of a port on the loopback interface, so that high
+ * rate streams skip the cordova bridge and its base64 encoding.
+ * Clients connect to ws://127.0.0.1:port/token and receive every batch as a binary message,
+ * the binary messages they send are written to the port. A client too slow to keep up loses
+ * the batches beyond its send queue.
+ * @author Xavier Seignard <xavier.seignard@gmail.com>
+ */
+class StreamServer {
+	// logging tag
+	private static final String TAG = StreamServer.class.getSimpleName();
+	// default values
+	static final int DEFAULT_QUEUE_SIZE = 1024 * 1024;
+	// largest message accepted from a client
+	private static final int MAX_MESSAGE_SIZE = 1024 * 1024;
+	private static final String WEBSOCKET_GUID = "258EAFA5-E914-47DA-95CA-C5AB0DC85B11";
+	// opcodes
+	private static final int OP_CONTINUATION = 0x0;
+	private static final int OP_TEXT = 0x1;
+	private static final int OP_BINARY = 0x2;
+	private static final int OP_CLOSE = 0x8;
+	private static final int OP_PING = 0x9;
+	private static final int OP_PONG = 0xA;
+
+	/**
+	 * Receive the messages of the clients
+	 */
+	interface Listener {
+		void onMessage(byte[] data);
+	}
+
+	private final Listener listener;
+	private final int queueSize;
+	private final String token;
+	private ServerSocket server;
+	private final List<Client> clients = new CopyOnWriteArrayList<Client>();
+	// bytes dropped because a client was too slow
+	final AtomicLong dropped = new AtomicLong();
+
+	/**
+	 * Create a server, call {@link #start()} to listen
+	 * @param opts a {@link JSONObject} that may contain streamQueueSize
+	 * @param listener receive the messages of the clients
+	 * @throws JSONException if an option has the wrong type
+	 */
+	StreamServer(JSONObject opts, Listener listener) throws JSONException {
+		this.listener = listener;
+		this.queueSize = opts.has("streamQueueSize") ? opts.getInt("streamQueueSize") : DEFAULT_QUEUE_SIZE;
+		byte[] random = new byte[16];
+		new SecureRandom().nextBytes(random);
+		StringBuilder sb = new StringBuilder();
+		for (byte b : random) {
+			sb.append(String.format("%02x", b & 0xff));
+		}
+		this.token = sb.toString();
+	}
+
+	/**
+	 * Listen on an ephemeral port of the loopback interface
+	 * @throws IOException if the server socket cannot be created
+	 */
+	synchronized void start() throws IOException {
+		server = new ServerSocket(0, 4, InetAddress.getByName("127.0.0.1"));
+		final ServerSocket socket = server;
+		Thread acceptor = new Thread(new Runnable() {
+			public void run() {
+				accept(socket);
+			}
+		}, "serial-stream-" + socket.getLocalPort());
+		acceptor.setDaemon(true);
+		acceptor.start();
+		Log.d(TAG, "Listening on " + getUrl());
+	}
+
+	/**
+	 * Close the server and disconnect the clients
+	 */
+	synchronized void stop() {
+		if (server != null) {
+			try {
+				server.close();
+			}
+			catch (IOException e) {
+				Log.d(TAG, e.getMessage());
+			}
+			server = null;
+		}
+		for (Client client : clients) {
+			client.close();
+		}
+	}
+
+	/**
+	 * @return the url of the endpoint, token included
+	 */
+	synchronized String getUrl() {
+		return "ws://127.0.0.1:" + (server != null ? server.getLocalPort() : 0) + "/" + token;
+	}
+
+	int getClientCount() {
+		return clients.size();
+	}
+
+	/**
+	 * Describe the endpoint
+	 * @return a {@link JSONObject} with the url, the token and the port
+	 * @throws JSONException never, org.json declares it
+	 */
+	synchronized JSONObject toJSON() throws JSONException {
+		JSONObject obj = new JSONObject();
+		obj.put("url", getUrl());
+		obj.put("token", token);
+		obj.put("port", server != null ? server.getLocalPort() : 0);
+		return obj;
+	}
+
+	/**
+	 * Send data to all the clients
+	 * @param data the bytes to send, as one binary message
+	 * @return false if no client is connected, the data then has to go through the bridge
+	 */
+	boolean send(byte[] data) {
+		if (clients.isEmpty()) {
+			return false;
+		}
+		for (Client client : clients) {
+			client.send(data);
+		}
+		return true;
+	}
+
+	private void accept(ServerSocket socket) {
+		while (!socket.isClosed()) {
+			try {
+				final Socket connection = socket.accept();
+				connection.setTcpNoDelay(true);
+				Thread reader = new Thread(new Runnable() {
+					public void run() {
+						serve(connection);
+					}
+				}, "serial-stream-client");
+				reader.setDaemon(true);
+				reader.start();
+			}
+			catch (IOException e) {
+				if (!socket.isClosed()) {
+					Log.d(TAG, e.getMessage());
+				}
+			}
+		}
+	}
+
+	/**
+	 * Handshake with a client, then read its messages until it leaves
+	 */
+	private void serve(Socket connection) {
+		Client client = null;
+		try {
+			DataInputStream in = new DataInputStream(connection.getInputStream());
+			OutputStream out = new BufferedOutputStream(connection.getOutputStream(), 64 * 1024);
+			if (!handshake(in, out)) {
+				connection.close();
+				return;
+			}
+			client = new Client(connection, out);
+			clients.add(client);
+			Log.d(TAG, "Client connected, clients=" + clients.size());
+			ByteArrayOutputStream message = new ByteArrayOutputStream();
+			while (true) {
+				int b0 = in.readUnsignedByte();
+				int b1 = in.readUnsignedByte();
+				int opcode = b0 & 0x0f;
+				long length = b1 & 0x7f;
+				if (length == 126) {
+					length = in.readUnsignedShort();
+				}
+				else if (length == 127) {
+					length = in.readLong();
+				}
+				if (length < 0 || message.size() + length > MAX_MESSAGE_SIZE) {
+					throw new IOException("Message too large");
+				}
+				byte[] mask = new byte[4];
+				if ((b1 & 0x80) != 0) {
+					in.readFully(mask);
+				}
+				byte[] payload = new byte[(int) length];
+				in.readFully(payload);
+				for (int i = 0; i < payload.length; i++) {
+					payload[i] ^= mask[i & 3];
+				}
+				if (opcode == OP_CLOSE) {
+					client.sendFrame(OP_CLOSE, new byte[0]);
+					break;
+				}
+				else if (opcode == OP_PING) {
+					client.sendFrame(OP_PONG, payload);
+				}
+				else if (opcode == OP_BINARY || opcode == OP_TEXT || opcode == OP_CONTINUATION) {
+					message.write(payload);
+					if ((b0 & 0x80) != 0) {
+						listener.onMessage(message.toByteArray());
+						message.reset();
+					}
+				}
+			}
+		}
+		catch (IOException e) {
+			Log.d(TAG, "Client lost: " + e.getMessage());
+		}
+		finally {
+			if (client != null) {
+				clients.remove(client);
+				client.close();
+			}
+			else {
+				try {
+					connection.close();
+				}
+				catch (IOException e) {
+					// already closed
+				}
+			}
+		}
+	}
+
+	/**
+	 * Check the token and answer the WebSocket upgrade request
+	 * @return true if the client is accepted
+	 */
+	private boolean handshake(InputStream in, OutputStream out) throws IOException {
+		String requestLine = readLine(in);
+		String key = null;
+		String line;
+		while ((line = readLine(in)) != null && line.length() > 0) {
+			int colon = line.indexOf(':');
+			if (colon > 0 && line.substring(0, colon).trim().equalsIgnoreCase("Sec-WebSocket-Key")) {
+				key = line.substring(colon + 1).trim();
+			}
+		}
+		String[] parts = requestLine != null ? requestLine.split(" ") : new String[0];
+		String path = parts.length > 1 ? parts[1] : "";
+		String given = path.startsWith("/") ? path.substring(1) : path;
+		int query = given.indexOf("token=");
+		if (query >= 0) {
+			given = given.substring(query + 6);
+		}
+		if (!MessageDigest.isEqual(token.getBytes("US-ASCII"), given.getBytes("US-ASCII"))) {
+			out.write("HTTP/1.1 403 Forbidden\r\nContent-Length: 0\r\n\r\n".getBytes("US-ASCII"));
+			out.flush();
+			return false;
+		}
+		if (key == null) {
+			out.write("HTTP/1.1 400 Bad Request\r\nContent-Length: 0\r\n\r\n".getBytes("US-ASCII"));
+			out.flush();
+			return false;
+		}
+		String accept;
+		try {
+			byte[] digest = MessageDigest.getInstance("SHA-1").digest((key + WEBSOCKET_GUID).getBytes("US-ASCII"));
+			accept = Base64.encodeToString(digest, Base64.NO_WRAP);
+		}
+		catch (NoSuchAlgorithmException e) {
+			throw new IOException(e.getMessage());
+		}
+		out.write(("HTTP/1.1 101 Switching Protocols\r\n"
+				+ "Upgrade: websocket\r\n"
+				+ "Connection: Upgrade\r\n"
+				+ "Sec-WebSocket-Accept: " + accept + "\r\n\r\n").getBytes("US-ASCII"));
+		out.flush();
+		return true;
+	}
+
+	private static String readLine(InputStream in) throws IOException {
+		StringBuilder sb = new StringBuilder();
+		int c;
+		while ((c = in.read()) >= 0) {
+			if (c == '\n') {
+				int end = sb.length();
+				return end > 0 && sb.charAt(end - 1) == '\r' ? sb.substring(0, end - 1) : sb.toString();
+			}
+			if (sb.length() > 8192) {
+				throw new IOException("Header too long");
+			}
+			sb.append((char) c);
+		}
+		return sb.length() > 0 ? sb.toString() : null;
+	}
+
+	/**
+	 * A connected client, with its own send thread and bounded send queue
+	 */
+	private class Client {
+		private final Socket socket;
+		private final OutputStream out;
+		private final ExecutorService sender = Executors.newSingleThreadExecutor();
+		private final AtomicInteger queuedBytes = new AtomicInteger();
+
+		Client(Socket socket, OutputStream out) {
+			this.socket = socket;
+			this.out = out;
+		}
+
+		void send(final byte[] data) {
+			if (queuedBytes.addAndGet(data.length) > queueSize) {
+				queuedBytes.addAndGet(-data.length);
+				dropped.addAndGet(data.length);
+				return;
+			}
+			try {
+				sender.execute(new Runnable() {
+					public void run() {
+						queuedBytes.addAndGet(-data.length);
+						try {
+							sendFrame(OP_BINARY, data);
+						}
+						catch (IOException e) {
+							close();
+						}
+					}
+				});
+			}
+			catch (RejectedExecutionException e) {
+				// closed
+			}
+		}
+
+		synchronized void sendFrame(int opcode, byte[] payload) throws IOException {
+			out.write(0x80 | opcode);
+			if (payload.length < 126) {
+				out.write(payload.length);
+			}
+			else if (payload.length <= 0xffff) {
+				out.write(126);
+				out.write(payload.length >> 8);
+				out.write(payload.length);
+			}
+			else {
+				out.write(127);
+				for (int shift = 56; shift >= 0; shift -= 8) {
+					out.write((int) ((long) payload.length >> shift));
+				}
+			}
+			out.write(payload);
+			out.flush();
+		}
+
+		void close() {
+			sender.shutdownNow();
+			try {
+				socket.close();
+			}
+			catch (IOException e) {
+				// already closed
+			}
+		}
+	}
+}
@@ -0,0 +1,308 @@
+package fr.drangies.cordova.serial;
+
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Match the responses of the outstanding transactions of a port.
+ * Without framing, the incoming bytes are held while a transaction is outstanding and cut into
+ * responses by the delimiter, length or pattern of the oldest transaction. With framing, every
+ * frame is a response. A response goes to the oldest transaction whose sequence id it carries,
+ * or to the oldest one if they do not use ids. The data no transaction claims goes on to the
+ * read callback.
+ * @author Xavier Seignard <xavier.seignard@gmail.com>
+ */
+class TransactionManager {
+	// default values
+	static final int DEFAULT_TIMEOUT = 1000;
+	static final int NONE = -1;
+	// capacity of the buffer holding the bytes of the responses not complete yet
+	private static final int CAPACITY = 64 * 1024;
+
+	/**
+	 * Notified once the transaction is over
+	 */
+	interface Callback {
+		void onResponse(byte[] response);
+		void onError(String message);
+	}
+
+	/**
+	 * An outstanding transaction and the way to recognize its response
+	 */
+	static class Transaction {
+		int delimiter = NONE;
+		int length = NONE;
+		Pattern pattern;
+		int idOffset = NONE;
+		int id;
+		int timeout = DEFAULT_TIMEOUT;
+		final Callback callback;
+		ScheduledFuture<?> timer;
+
+		/**
+		 * Read the matching of the response from the transact options
+		 * @param opts a {@link JSONObject} that may contain timeoutMs, delimiter, length, pattern, idOffset and id
+		 * @param callback notified once the transaction is over
+		 * @throws JSONException if an option has the wrong type, or idOffset comes without id
+		 */
+		Transaction(JSONObject opts, Callback callback) throws JSONException {
+			this.callback = callback;
+			if (opts.has("timeoutMs")) timeout = opts.getInt("timeoutMs");
+			if (opts.has("delimiter")) delimiter = opts.getInt("delimiter") & 0xff;
+			if (opts.has("length")) length = opts.getInt("length");
+			if (opts.has("pattern")) pattern = Pattern.compile(opts.getString("pattern"), Pattern.DOTALL);
+			if (opts.has("idOffset")) {
+				idOffset = opts.getInt("idOffset");
+				id = opts.getInt("id") & 0xff;
+			}
+		}
+
+		/**
+		 * @return true if the given response is for this transaction
+		 */
+		boolean accepts(byte[] buffer, int off, int len) {
+			if (idOffset != NONE) {
+				return idOffset < len && (buffer[off + idOffset] & 0xff) == id;
+			}
+			if (pattern != null) {
+				return pattern.matcher(latin1(buffer, off, len)).find();
+			}
+			return true;
+		}
+	}
+
+	private final ScheduledExecutorService scheduler;
+	// receive the bytes no transaction claims
+	private final ReadDispatcher.Listener passThrough;
+	// outstanding transactions, the oldest first
+	private final LinkedList<Transaction> pending = new LinkedList<Transaction>();
+	// bytes received since the oldest transaction started, without framing
+	private final ByteRingBuffer buffer = new ByteRingBuffer(CAPACITY);
+	// when the oldest held byte was read
+	private long heldCaptured;
+
+	/**
+	 * Create a manager
+	 * @param scheduler the executor used for the timeouts
+	 * @param passThrough receive the raw bytes no transaction claims
+	 */
+	TransactionManager(ScheduledExecutorService scheduler, ReadDispatcher.Listener passThrough) {
+		this.scheduler = scheduler;
+		this.passThrough = passThrough;
+	}
+
+	/**
+	 * Start waiting for the response of a transaction, before its command is written
+	 * @param tx the transaction
+	 */
+	synchronized void add(final Transaction tx) {
+		pending.add(tx);
+		tx.timer = scheduler.schedule(new Runnable() {
+			public void run() {
+				fail(tx, "Transaction timed out.");
+			}
+		}, tx.timeout, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * End a transaction on error, e.g. when its command cannot be written
+	 * @param tx the transaction
+	 * @param message the error message
+	 */
+	void fail(Transaction tx, String message) {
+		byte[] leftover = null;
+		long captured;
+		synchronized (this) {
+			captured = heldCaptured;
+			if (!pending.remove(tx)) {
+				return;
+			}
+			if (pending.isEmpty() && !buffer.isEmpty()) {
+				leftover = buffer.drain();
+			}
+		}
+		tx.timer.cancel(false);
+		tx.callback.onError(message);
+		if (leftover != null) {
+			passThrough.onFlush(leftover, captured);
+		}
+	}
+
+	/**
+	 * End all the transactions, when the port closes
+	 * @param message the error message
+	 */
+	void failAll(String message) {
+		List<Transaction> failed;
+		synchronized (this) {
+			failed = new ArrayList<Transaction>(pending);
+			pending.clear();
+			buffer.clear();
+		}
+		for (Transaction tx : failed) {
+			tx.timer.cancel(false);
+			tx.callback.onError(message);
+		}
+	}
+
+	/**
+	 * Look for responses in raw incoming data
+	 * @param data the bytes read from the port
+	 * @param captured when they were read, in {@link android.os.SystemClock#elapsedRealtimeNanos()}
+	 * @return false if no transaction is outstanding and the data has to be dispatched as usual
+	 */
+	boolean offer(byte[] data, long captured) {
+		List<Transaction> done = new ArrayList<Transaction>();
+		List<byte[]> responses = new ArrayList<byte[]>();
+		List<byte[]> unclaimed = new ArrayList<byte[]>();
+		// the unclaimed bytes go out together, as old as the oldest of them
+		long oldest;
+		synchronized (this) {
+			if (pending.isEmpty()) {
+				return false;
+			}
+			oldest = buffer.isEmpty() ? captured : heldCaptured;
+			int off = 0;
+			while (off < data.length) {
+				if (buffer.remaining() == 0) {
+					// no response that large, give up on what is held
+					unclaimed.add(buffer.drain());
+				}
+				if (buffer.isEmpty()) {
+					heldCaptured = captured;
+				}
+				off += buffer.put(data, off, data.length - off);
+				split(done, responses, unclaimed);
+			}
+			if (pending.isEmpty() && !buffer.isEmpty()) {
+				unclaimed.add(buffer.drain());
+			}
+		}
+		complete(done, responses);
+		for (byte[] chunk : unclaimed) {
+			passThrough.onFlush(chunk, oldest);
+		}
+		return true;
+	}
+
+	/**
+	 * Look for a response in a decoded frame
+	 * @param frame the buffer holding the frame
+	 * @param off offset of the frame in the buffer
+	 * @param len length of the frame
+	 * @return true if a transaction claimed the frame
+	 */
+	boolean offerFrame(byte[] frame, int off, int len) {
+		Transaction tx;
+		synchronized (this) {
+			tx = claim(frame, off, len);
+		}
+		if (tx == null) {
+			return false;
+		}
+		byte[] response = new byte[len];
+		System.arraycopy(frame, off, response, 0, len);
+		tx.timer.cancel(false);
+		tx.callback.onResponse(response);
+		return true;
+	}
+
+	/**
+	 * Cut the held bytes into responses, following the oldest transaction
+	 */
+	private void split(List<Transaction> done, List<byte[]> responses, List<byte[]> unclaimed) {
+		while (!pending.isEmpty() && !buffer.isEmpty()) {
+			Transaction oldest = pending.getFirst();
+			int start = 0;
+			int end;
+			if (oldest.delimiter != NONE) {
+				end = buffer.indexOf(oldest.delimiter) + 1;
+			}
+			else if (oldest.length > 0) {
+				end = buffer.size() >= oldest.length ? oldest.length : 0;
+			}
+			else if (oldest.pattern != null) {
+				byte[] held = new byte[buffer.size()];
+				buffer.peek(held, 0, held.length);
+				Matcher matcher = oldest.pattern.matcher(latin1(held, 0, held.length));
+				if (matcher.find()) {
+					start = matcher.start();
+					end = matcher.end();
+				}
+				else {
+					end = 0;
+				}
+			}
+			else {
+				// nothing to cut the stream with, everything that came is the response
+				end = buffer.size();
+			}
+			if (end <= 0) {
+				return;
+			}
+			if (start > 0) {
+				byte[] garbage = new byte[start];
+				buffer.get(garbage, 0, start);
+				unclaimed.add(garbage);
+				end -= start;
+			}
+			byte[] response = new byte[end];
+			buffer.get(response, 0, end);
+			Transaction tx = claim(response, 0, response.length);
+			if (tx != null) {
+				done.add(tx);
+				responses.add(response);
+			}
+			else {
+				unclaimed.add(response);
+			}
+		}
+	}
+
+	/**
+	 * Remove and return the oldest transaction accepting a response, null if none
+	 */
+	private Transaction claim(byte[] buffer, int off, int len) {
+		for (Iterator<Transaction> it = pending.iterator(); it.hasNext(); ) {
+			Transaction tx = it.next();
+			if (tx.accepts(buffer, off, len)) {
+				it.remove();
+				return tx;
+			}
+		}
+		return null;
+	}
+
+	private static void complete(List<Transaction> done, List<byte[]> responses) {
+		for (int i = 0; i < done.size(); i++) {
+			Transaction tx = done.get(i);
+			tx.timer.cancel(false);
+			tx.callback.onResponse(responses.get(i));
+		}
+	}
+
+	/**
+	 * Map every byte to the char of the same value, so that a pattern can match binary data
+	 */
+	private static String latin1(byte[] buffer, int off, int len) {
+		try {
+			return new String(buffer, off, len, "ISO-8859-1");
+		}
+		catch (UnsupportedEncodingException e) {
+			// every java platform supports it
+			throw new IllegalStateException(e);
+		}
+	}
+}
@@ -0,0 +1,83 @@
+package fr.drangies.cordova.serial;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import com.hoho.android.usbserial.driver.UsbSerialDriver;
+
+import android.hardware.usb.UsbDeviceConnection;
+
+/**
+ * The {@link PortProvider} of the virtual devices, see {@link VirtualSerialDriver}.
+ * A virtual device is created by requestPermission with the Loopback or Scripted driver. It needs
+ * no permission and lives as long as the plugin.
+ * @author Xavier Seignard <xavier.seignard@gmail.com>
+ */
+class VirtualDevices implements PortProvider {
+	// above the ids android gives to the USB devices, bus * 1000 + address
+	static final int FIRST_DEVICE_ID = 1000000;
+
+	private final Map<Integer, VirtualSerialDriver> devices = new LinkedHashMap<Integer, VirtualSerialDriver>();
+	private int nextId = FIRST_DEVICE_ID;
+
+	/**
+	 * @param driver the driver option of requestPermission
+	 * @return true if it asks for a virtual device
+	 */
+	static boolean isVirtual(String driver) {
+		return VirtualSerialDriver.LOOPBACK.equals(driver) || VirtualSerialDriver.SCRIPTED.equals(driver);
+	}
+
+	/**
+	 * Get the virtual device with the requested deviceId, or create one
+	 * @param opts the requestPermission options, see {@link VirtualSerialDriver#VirtualSerialDriver(int, JSONObject)}
+	 * @return the driver of the device
+	 * @throws JSONException if an option has the wrong type or the script is invalid
+	 */
+	synchronized VirtualSerialDriver create(JSONObject opts) throws JSONException {
+		if (opts.has("deviceId")) {
+			VirtualSerialDriver existing = devices.get(opts.getInt("deviceId"));
+			if (existing != null) {
+				return existing;
+			}
+		}
+		VirtualSerialDriver driver = new VirtualSerialDriver(nextId, opts);
+		devices.put(nextId++, driver);
+		return driver;
+	}
+
+	/**
+	 * Add the virtual devices to the listDevices result
+	 * @param list the described USB devices
+	 * @throws JSONException never, org.json declares it
+	 */
+	synchronized void describe(JSONArray list) throws JSONException {
+		for (VirtualSerialDriver driver : devices.values()) {
+			list.put(driver.toJSON());
+		}
+	}
+
+	@Override
+	public int getDeviceId(UsbSerialDriver driver) {
+		return ((VirtualSerialDriver) driver).getDeviceId();
+	}
+
+	@Override
+	public String getSerialNumber(UsbSerialDriver driver) {
+		return ((VirtualSerialDriver) driver).getSerialNumber();
+	}
+
+	@Override
+	public boolean hasPermission(UsbSerialDriver driver) {
+		return true;
+	}
+
+	@Override
+	public UsbDeviceConnection openDevice(UsbSerialDriver driver) {
+		return null;
+	}
+}
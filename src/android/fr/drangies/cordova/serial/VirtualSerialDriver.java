@@ -0,0 +1,193 @@
+package fr.drangies.cordova.serial;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import com.hoho.android.usbserial.driver.UsbSerialDriver;
+import com.hoho.android.usbserial.driver.UsbSerialPort;
+
+import android.hardware.usb.UsbDevice;
+
+/**
+ * {@link UsbSerialDriver} of a virtual device, to run an app or its load tests without the hardware,
+ * in CI or on an emulator. The device is a loopback plug, which sends back what it receives, or a
+ * scripted responder, which answers the requests of its script. Its link takes the time the baud
+ * rate and the latency give it, splits the data read into fragments, and injects errors: failed
+ * transfers, corrupted and dropped bytes, disconnections.
+ * @author Xavier Seignard <xavier.seignard@gmail.com>
+ */
+class VirtualSerialDriver implements UsbSerialDriver {
+	// kinds of device, given as the driver option
+	static final String LOOPBACK = "Loopback";
+	static final String SCRIPTED = "Scripted";
+	// the script is matched on the bytes read as latin-1 text
+	static final Charset LATIN1 = Charset.forName("ISO-8859-1");
+
+	private final int deviceId;
+	final String kind;
+	// simulated link
+	final boolean timing;
+	final long latencyNanos;
+	// largest read, 0 to return all the data available
+	final int maxFragment;
+	// probability of a failed transfer, and of a corrupted or dropped byte
+	final double errorRate;
+	final double corruptRate;
+	final double dropRate;
+	// bytes transferred before the device goes away, 0 for never
+	final long disconnectAfter;
+	// requests of the scripted responder and their replies
+	final String[] expects;
+	final byte[][] replies;
+	final int longestExpect;
+	// seeded from the options for reproducible runs
+	private final Random random;
+	// injected errors
+	final AtomicLong failedTransfers = new AtomicLong();
+	final AtomicLong corruptedBytes = new AtomicLong();
+	final AtomicLong droppedBytes = new AtomicLong();
+	private final List<UsbSerialPort> ports;
+
+	/**
+	 * Create a virtual device
+	 * @param deviceId the id of the device
+	 * @param opts a {@link JSONObject} containing the driver, Loopback or Scripted, and that may contain ports, script,
+	 *             simulateTiming, latencyMs, maxFragment, errorRate, corruptRate, dropRate, disconnectAfter and seed
+	 * @throws JSONException if an option has the wrong type or the script is invalid
+	 */
+	VirtualSerialDriver(int deviceId, JSONObject opts) throws JSONException {
+		this.deviceId = deviceId;
+		kind = opts.getString("driver");
+		timing = opts.has("simulateTiming") ? opts.getBoolean("simulateTiming") : true;
+		latencyNanos = Math.max(0, (long) ((opts.has("latencyMs") ? opts.getDouble("latencyMs") : 0) * 1000000));
+		maxFragment = Math.max(0, opts.has("maxFragment") ? opts.getInt("maxFragment") : 0);
+		errorRate = rate(opts, "errorRate");
+		corruptRate = rate(opts, "corruptRate");
+		dropRate = rate(opts, "dropRate");
+		disconnectAfter = Math.max(0, opts.has("disconnectAfter") ? opts.getLong("disconnectAfter") : 0);
+		random = opts.has("seed") ? new Random(opts.getLong("seed")) : new Random();
+		if (SCRIPTED.equals(kind)) {
+			JSONArray script = opts.getJSONArray("script");
+			expects = new String[script.length()];
+			replies = new byte[script.length()][];
+			int longest = 0;
+			for (int i = 0; i < script.length(); i++) {
+				JSONObject step = script.getJSONObject(i);
+				expects[i] = step.getString("expect");
+				if (expects[i].isEmpty()) {
+					throw new JSONException("Empty expect in the script");
+				}
+				replies[i] = step.getString("reply").getBytes(LATIN1);
+				longest = Math.max(longest, expects[i].length());
+			}
+			longestExpect = longest;
+		}
+		else {
+			expects = new String[0];
+			replies = new byte[0][];
+			longestExpect = 0;
+		}
+		int count = Math.max(1, opts.has("ports") ? opts.getInt("ports") : 1);
+		List<UsbSerialPort> list = new ArrayList<UsbSerialPort>();
+		for (int i = 0; i < count; i++) {
+			list.add(new VirtualSerialPort(this, i));
+		}
+		ports = Collections.unmodifiableList(list);
+	}
+
+	private static double rate(JSONObject opts, String name) throws JSONException {
+		return opts.has(name) ? Math.max(0, Math.min(1, opts.getDouble(name))) : 0;
+	}
+
+	int getDeviceId() {
+		return deviceId;
+	}
+
+	String getSerialNumber() {
+		return "VIRTUAL" + deviceId;
+	}
+
+	/**
+	 * Fail a transfer, as often as errorRate says
+	 * @param what the transfer, read or write
+	 * @throws IOException if the transfer fails
+	 */
+	void maybeFail(String what) throws IOException {
+		if (errorRate > 0 && nextDouble() < errorRate) {
+			failedTransfers.incrementAndGet();
+			throw new IOException("Injected " + what + " error.");
+		}
+	}
+
+	/**
+	 * Corrupt and drop bytes of data going to the app, as often as corruptRate and dropRate say
+	 * @param data the data, left untouched
+	 * @return the data the app gets
+	 */
+	byte[] damage(byte[] data) {
+		byte[] out = data.clone();
+		if (corruptRate == 0 && dropRate == 0) {
+			return out;
+		}
+		int length = 0;
+		for (byte b : data) {
+			if (dropRate > 0 && nextDouble() < dropRate) {
+				droppedBytes.incrementAndGet();
+				continue;
+			}
+			if (corruptRate > 0 && nextDouble() < corruptRate) {
+				corruptedBytes.incrementAndGet();
+				b ^= 1 << nextInt(8);
+			}
+			out[length++] = b;
+		}
+		return length == out.length ? out : Arrays.copyOf(out, length);
+	}
+
+	synchronized double nextDouble() {
+		return random.nextDouble();
+	}
+
+	synchronized int nextInt(int bound) {
+		return random.nextInt(bound);
+	}
+
+	/**
+	 * Describe the device for listDevices
+	 * @throws JSONException never, org.json declares it
+	 */
+	JSONObject toJSON() throws JSONException {
+		JSONObject obj = new JSONObject();
+		obj.put("deviceId", deviceId);
+		obj.put("serialNumber", getSerialNumber());
+		obj.put("driver", kind);
+		obj.put("ports", ports.size());
+		obj.put("hasPermission", true);
+		obj.put("virtual", true);
+		obj.put("failedTransfers", failedTransfers.get());
+		obj.put("corruptedBytes", corruptedBytes.get());
+		obj.put("droppedBytes", droppedBytes.get());
+		return obj;
+	}
+
+	@Override
+	public UsbDevice getDevice() {
+		// there is no USB device behind it
+		return null;
+	}
+
+	@Override
+	public List<UsbSerialPort> getPorts() {
+		return ports;
+	}
+}
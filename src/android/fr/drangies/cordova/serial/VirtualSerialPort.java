@@ -0,0 +1,298 @@
+package fr.drangies.cordova.serial;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.concurrent.locks.LockSupport;
+
+import com.hoho.android.usbserial.driver.UsbSerialDriver;
+import com.hoho.android.usbserial.driver.UsbSerialPort;
+
+import android.hardware.usb.UsbDeviceConnection;
+
+/**
+ * Port of a {@link VirtualSerialDriver}.
+ * A write takes the time its characters take on the line at the baud rate, then reaches the
+ * device: the loopback plug sends it back, the scripted responder looks for the requests of its
+ * script in what it received so far and sends their replies, one after the other at the baud rate.
+ * The data sent by the device is readable once it has arrived, latencyMs later. The loopback plug
+ * also wires RTS to CTS, and DTR to DSR and CD, the scripted responder holds them high.
+ * @author Xavier Seignard <xavier.seignard@gmail.com>
+ */
+class VirtualSerialPort implements UsbSerialPort {
+	/**
+	 * Data sent by the device
+	 */
+	private static class Chunk {
+		// when it has arrived, in System.nanoTime
+		final long due;
+		final byte[] data;
+		int offset;
+
+		Chunk(long due, byte[] data) {
+			this.due = due;
+			this.data = data;
+		}
+	}
+
+	private final VirtualSerialDriver driver;
+	private final int portNumber;
+	// data sent by the device, in arrival order
+	private final ArrayDeque<Chunk> incoming = new ArrayDeque<Chunk>();
+	// when the line from the device is free again
+	private long lineFree;
+	// time of a character on the line at the current parameters, 0 without timing
+	private volatile long charNanos;
+	// received text not answered yet by the script
+	private final StringBuilder received = new StringBuilder();
+	// bytes read and written since opened, for disconnectAfter
+	private long transferred;
+	private boolean open;
+	private boolean disconnected;
+	private volatile boolean dtr;
+	private volatile boolean rts;
+
+	VirtualSerialPort(VirtualSerialDriver driver, int portNumber) {
+		this.driver = driver;
+		this.portNumber = portNumber;
+	}
+
+	@Override
+	public UsbSerialDriver getDriver() {
+		return driver;
+	}
+
+	@Override
+	public int getPortNumber() {
+		return portNumber;
+	}
+
+	@Override
+	public String getSerial() {
+		return driver.getSerialNumber();
+	}
+
+	@Override
+	public synchronized void open(UsbDeviceConnection connection) throws IOException {
+		// a virtual device needs no connection, and comes back when opened again
+		open = true;
+		disconnected = false;
+		transferred = 0;
+		lineFree = 0;
+		incoming.clear();
+		received.setLength(0);
+	}
+
+	@Override
+	public synchronized void close() throws IOException {
+		open = false;
+		incoming.clear();
+		notifyAll();
+	}
+
+	private void check() throws IOException {
+		if (!open) {
+			throw new IOException("Port closed.");
+		}
+		if (disconnected) {
+			throw new IOException("Device disconnected.");
+		}
+	}
+
+	/**
+	 * Count transferred bytes, the device goes away after disconnectAfter of them
+	 */
+	private void count(int length) {
+		transferred += length;
+		if (driver.disconnectAfter > 0 && transferred >= driver.disconnectAfter) {
+			disconnected = true;
+			notifyAll();
+		}
+	}
+
+	@Override
+	public int read(byte[] dest, int timeoutMillis) throws IOException {
+		long deadline = System.nanoTime() + timeoutMillis * 1000000L;
+		synchronized (this) {
+			Chunk head;
+			while (true) {
+				check();
+				head = incoming.peek();
+				long now = System.nanoTime();
+				if (head != null && head.due <= now) {
+					break;
+				}
+				// a zero timeout waits forever, like a bulk transfer
+				long wait = head != null ? head.due - now : Long.MAX_VALUE;
+				if (timeoutMillis > 0) {
+					if (deadline <= now) {
+						return 0;
+					}
+					wait = Math.min(wait, deadline - now);
+				}
+				try {
+					if (wait == Long.MAX_VALUE) {
+						wait();
+					}
+					else {
+						wait(wait / 1000000, (int) (wait % 1000000));
+					}
+				}
+				catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					return 0;
+				}
+			}
+			driver.maybeFail("read");
+			int length = Math.min(dest.length, head.data.length - head.offset);
+			if (driver.maxFragment > 0) {
+				length = Math.min(length, 1 + driver.nextInt(driver.maxFragment));
+			}
+			System.arraycopy(head.data, head.offset, dest, 0, length);
+			head.offset += length;
+			if (head.offset == head.data.length) {
+				incoming.poll();
+			}
+			count(length);
+			return length;
+		}
+	}
+
+	@Override
+	public int write(byte[] src, int timeoutMillis) throws IOException {
+		synchronized (this) {
+			check();
+		}
+		driver.maybeFail("write");
+		// the characters go out one after the other
+		long deadline = System.nanoTime() + src.length * charNanos;
+		for (long left = deadline - System.nanoTime(); left > 0; left = deadline - System.nanoTime()) {
+			LockSupport.parkNanos(left);
+			if (Thread.interrupted()) {
+				Thread.currentThread().interrupt();
+				throw new IOException("Write interrupted.");
+			}
+		}
+		synchronized (this) {
+			check();
+			long arrived = System.nanoTime() + driver.latencyNanos;
+			if (VirtualSerialDriver.SCRIPTED.equals(driver.kind)) {
+				respond(src, arrived);
+			}
+			else {
+				// the echo goes out while the data comes in
+				send(src, arrived);
+			}
+			count(src.length);
+			notifyAll();
+		}
+		return src.length;
+	}
+
+	/**
+	 * Answer the requests of the script found in the received data, in order
+	 * @param data the data just received
+	 * @param now when the device got it
+	 */
+	private void respond(byte[] data, long now) {
+		received.append(new String(data, VirtualSerialDriver.LATIN1));
+		while (true) {
+			int step = -1;
+			int at = Integer.MAX_VALUE;
+			for (int i = 0; i < driver.expects.length; i++) {
+				int index = received.indexOf(driver.expects[i]);
+				if (index >= 0 && index < at) {
+					step = i;
+					at = index;
+				}
+			}
+			if (step < 0) {
+				break;
+			}
+			received.delete(0, at + driver.expects[step].length());
+			byte[] reply = driver.replies[step];
+			send(reply, Math.max(now, lineFree) + reply.length * charNanos);
+		}
+		// only the end of the data can still start a request
+		int keep = Math.max(0, driver.longestExpect - 1);
+		if (received.length() > keep) {
+			received.delete(0, received.length() - keep);
+		}
+	}
+
+	/**
+	 * Send data to the app
+	 * @param data the data, damaged on the way as the options say
+	 * @param due when the last byte arrives
+	 */
+	private void send(byte[] data, long due) {
+		due = Math.max(due, lineFree);
+		lineFree = due;
+		byte[] damaged = driver.damage(data);
+		if (damaged.length > 0) {
+			incoming.add(new Chunk(due, damaged));
+		}
+	}
+
+	@Override
+	public void setParameters(int baudRate, int dataBits, int stopBits, int parity) throws IOException {
+		if (!driver.timing || baudRate <= 0) {
+			charNanos = 0;
+			return;
+		}
+		// start bit, data bits, parity bit and stop bits
+		int bits = 1 + dataBits + (parity != PARITY_NONE ? 1 : 0) + (stopBits == STOPBITS_1 ? 1 : 2);
+		charNanos = bits * 1000000000L / baudRate;
+	}
+
+	private boolean isLoopback() {
+		return VirtualSerialDriver.LOOPBACK.equals(driver.kind);
+	}
+
+	@Override
+	public boolean getCD() throws IOException {
+		return isLoopback() ? dtr : true;
+	}
+
+	@Override
+	public boolean getCTS() throws IOException {
+		return isLoopback() ? rts : true;
+	}
+
+	@Override
+	public boolean getDSR() throws IOException {
+		return isLoopback() ? dtr : true;
+	}
+
+	@Override
+	public boolean getDTR() throws IOException {
+		return dtr;
+	}
+
+	@Override
+	public void setDTR(boolean value) throws IOException {
+		dtr = value;
+	}
+
+	@Override
+	public boolean getRI() throws IOException {
+		return false;
+	}
+
+	@Override
+	public boolean getRTS() throws IOException {
+		return rts;
+	}
+
+	@Override
+	public void setRTS(boolean value) throws IOException {
+		rts = value;
+	}
+
+	@Override
+	public synchronized boolean purgeHwBuffers(boolean flushReadBuffers, boolean flushWriteBuffers) throws IOException {
+		if (flushReadBuffers) {
+			incoming.clear();
+		}
+		return true;
+	}
+}
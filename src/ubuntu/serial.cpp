@@ -22,35 +22,147 @@
  * Author: Ian Martin <ian@locicontrols.com>
  */
 
-#include <cstdio>
 #include <QtCore>
 
 #include "serial.h"
 
 #define error_desc(desc) "'" desc "'"
 
-static QString byteArrayToJavaScript(QByteArray data) {
-    int n;
-    char buf[5];
-    QString qs = "\"";
+// defaults, the same as on android
+#define DEFAULT_WRITE_QUEUE_SIZE (64 * 1024)
+#define WRITE_WAIT_MILLIS 1000
 
-    for (n = 0; n < data.size(); n++) {
-        sprintf(buf, "\\x%02x", data[n] & 0xff);
-        qs += buf;
+// javascript turning a base64 string into an ArrayBuffer
+#define BASE64_TO_ARRAY_BUFFER \
+    "(function(s){var b=atob(s),a=new Uint8Array(b.length);" \
+    "for(var i=0;i<b.length;i++)a[i]=b.charCodeAt(i);return a.buffer;})"
+
+/**
+ * Build a javascript string literal holding the given bytes, only the bytes that are not
+ * printable ASCII are escaped
+ */
+static QString byteArrayToJavaScript(const QByteArray& data) {
+    static const char hex[] = "0123456789abcdef";
+    QByteArray js;
+    js.reserve(data.size() * 4 + 2);
+
+    js.append('"');
+    for (int n = 0; n < data.size(); n++) {
+        unsigned char c = data[n];
+        if (c >= 0x20 && c < 0x7f && c != '"' && c != '\\') {
+            js.append((char)c);
+        } else {
+            js.append("\\x");
+            js.append(hex[c >> 4]);
+            js.append(hex[c & 0x0f]);
+        }
     }
+    js.append('"');
 
-    return qs + "\"";
+    return QString::fromLatin1(js);
+}
+
+QString Serial::encode(const QByteArray& data) const {
+    if (encoding == "string") {
+        return byteArrayToJavaScript(data);
+    }
+    QString base64 = "\"" + QString::fromLatin1(data.toBase64()) + "\"";
+    if (encoding == "base64") {
+        return base64;
+    }
+    // an ArrayBuffer, as on android
+    return BASE64_TO_ARRAY_BUFFER "(" + base64 + ")";
+}
+
+void Serial::deliver(const QByteArray& data) {
+    if (_scId != 0 && !data.isEmpty()) callbackWithoutRemove(_scId, encode(data));
 }
 
 void Serial::onDataAvailable(void) {
-    if (port == NULL) return;
+    // without a read callback, the data waits for readSerial
+    if (port == NULL || _scId == 0) return;
     QByteArray data = port->readAll();
-    if (_scId != 0) callbackWithoutRemove(_scId, byteArrayToJavaScript(data));
+
+    if (readBatchSize <= 0 && readBatchWindow <= 0 && readDelimiter < 0) {
+        deliver(data);
+        return;
+    }
+
+    // a delimiter ends the batch
+    int boundary = readDelimiter >= 0 ? data.lastIndexOf((char)readDelimiter) : -1;
+    if (boundary >= 0) {
+        batch.append(data.left(boundary + 1));
+        flushBatch();
+        data.remove(0, boundary + 1);
+    }
+    batch.append(data);
+
+    // and so does the size threshold
+    while (readBatchSize > 0 && batch.size() >= readBatchSize) {
+        batchTimer.stop();
+        QByteArray full = batch.left(readBatchSize);
+        batch.remove(0, readBatchSize);
+        deliver(full);
+    }
+
+    // the time window starts with the first byte of the batch
+    if (!batch.isEmpty() && readBatchWindow > 0 && !batchTimer.isActive()) {
+        batchTimer.start(readBatchWindow);
+    }
+}
+
+void Serial::flushBatch(void) {
+    batchTimer.stop();
+    if (batch.isEmpty()) return;
+    QByteArray data = batch;
+    batch.clear();
+    deliver(data);
+}
+
+void Serial::onBytesWritten(qint64 bytes) {
+    queuedBytes = qMax((qint64)0, queuedBytes - bytes);
+    while (bytes > 0 && !writes.isEmpty()) {
+        PendingWrite& write = writes.first();
+        qint64 n = qMin(bytes, write.remaining);
+        write.remaining -= n;
+        bytes -= n;
+        if (write.remaining == 0) {
+            int scId = write.scId;
+            writes.removeFirst();
+            callback(scId, "{}");
+        }
+    }
+}
+
+void Serial::onError(QSerialPort::SerialPortError error) {
+    // the device went away, or stopped accepting data
+    if (error == QSerialPort::ResourceError || error == QSerialPort::WriteError) {
+        failWrites("'" + port->errorString().replace("'", "\\'") + "'");
+    }
+}
+
+void Serial::failWrites(const QString& message) {
+    QList<PendingWrite> failed = writes;
+    writes.clear();
+    queuedBytes = 0;
+    for (int n = 0; n < failed.size(); n++) {
+        callback(failed[n].ecId, message);
+    }
 }
 
 Serial::Serial(Cordova *cordova) : CPlugin(cordova) {
+    port = NULL;
+    readWaitMillis = 200;
+    readBatchSize = 0;
+    readBatchWindow = 0;
+    readDelimiter = -1;
+    queuedBytes = 0;
+    writeQueueSize = DEFAULT_WRITE_QUEUE_SIZE;
     _scId = 0;
     _ecId = 0;
+
+    batchTimer.setSingleShot(true);
+    connect(&batchTimer, SIGNAL(timeout()), this, SLOT(flushBatch()));
 }
 
 void Serial::requestPermission(int scId, int ecId, const QVariantMap& arg) {
@@ -58,56 +170,86 @@ void Serial::requestPermission(int scId, int ecId, const QVariantMap& arg) {
 }
 
 void Serial::openSerial(int scId, int ecId, const QVariantMap& arg) {
-    bool result;
-
     QVariantMap opts = arg["opts"].toMap();
 
-    port = new QSerialPort(opts.value("device", "/dev/ttyUSB0").toString());
+    // a plain device path works too, e.g. one end of a socat pty pair
+    closePort();
+    port = new QSerialPort(opts.value("device", "/dev/ttyUSB0").toString(), this);
     if (port == NULL) {
         callback(ecId, error_desc("QSerialPort constructor failed"));
         return;
     }
 
+    QString flowControl = opts.value("flowControl", "none").toString();
+    if (flowControl != "none" && flowControl != "rtscts" && flowControl != "xonxoff") {
+        closePort();
+        callback(ecId, error_desc("Unsupported flowControl"));
+        return;
+    }
+
     port->setBaudRate((QSerialPort::BaudRate)opts.value("baudRate", 9600).toInt());
     port->setParity(opts.contains("parity")? (QSerialPort::Parity)opts["parity"].toInt() : QSerialPort::NoParity);
-    port->setFlowControl(QSerialPort::NoFlowControl);
+    port->setFlowControl(flowControl == "rtscts"? QSerialPort::HardwareControl :
+                         flowControl == "xonxoff"? QSerialPort::SoftwareControl : QSerialPort::NoFlowControl);
     port->setDataBits((QSerialPort::DataBits)opts.value("dataBits", 8).toInt());
     port->setStopBits(opts.contains("stopBits")? (QSerialPort::StopBits)opts["stopBits"].toInt() : QSerialPort::OneStop);
+    // 0, the default, lets the read buffer grow as needed
+    port->setReadBufferSize(opts.value("readBufferSize", 0).toLongLong());
 
     readWaitMillis = opts.value("readWaitMillis", 200).toInt();
+    readBatchSize = opts.value("readBatchSize", 0).toInt();
+    readBatchWindow = opts.value("readBatchWindow", 0).toInt();
+    readDelimiter = opts.contains("readDelimiter")? opts["readDelimiter"].toInt() & 0xff : -1;
+    encoding = opts.value("encoding", "binary").toString();
+    writeQueueSize = qMax(1, opts.value("writeQueueSize", DEFAULT_WRITE_QUEUE_SIZE).toInt());
 
-    if (!connect(port, SIGNAL(readyRead()), this, SLOT(onDataAvailable()))) {
+    if (!connect(port, SIGNAL(readyRead()), this, SLOT(onDataAvailable())) ||
+        !connect(port, SIGNAL(bytesWritten(qint64)), this, SLOT(onBytesWritten(qint64))) ||
+        !connect(port, SIGNAL(error(QSerialPort::SerialPortError)), this, SLOT(onError(QSerialPort::SerialPortError)))) {
+        closePort();
         callback(ecId, error_desc("connect() failed"));
         return;
     }
 
     if (!port->open(QIODevice::ReadWrite)) {
+        closePort();
         callback(ecId, error_desc("QSerialPort::open() failed"));
         return;
     }
 
+    // the control lines of a pty cannot be set, that is not an error
+    if (opts.value("dtr", false).toBool()) port->setDataTerminalReady(true);
+    if (opts.value("rts", false).toBool()) port->setRequestToSend(true);
+
     callback(scId, "{}");
 }
 
-void Serial::writeSerial(int scId, int ecId, const QVariantMap& arg) {
-    if (port->isOpen()) {
-        QByteArray data = arg["data"].toString().toLatin1();
-
-        qint64 written = 0;
-        while (written < data.size()) {
-            qint64 result = port->write(data.mid(written));
-            if (result < 0) {
-                callback(ecId, error_desc("Error writing data"));
-                return;
-            } else {
-                written += result;
-            }
-        }
-
-        callback(scId, "{}");
-    } else {
+void Serial::queueWrite(int scId, int ecId, const QByteArray& data) {
+    if (port == NULL || !port->isOpen()) {
         callback(ecId, error_desc("Port not open"));
+        return;
+    }
+    if (data.isEmpty()) {
+        callback(scId, "{}");
+        return;
+    }
+    if (queuedBytes > 0 && queuedBytes + data.size() > writeQueueSize) {
+        callback(ecId, error_desc("Write queue full."));
+        return;
     }
+
+    // QSerialPort buffers the data and writes it from the event loop
+    if (port->write(data) != data.size()) {
+        callback(ecId, error_desc("Error writing data"));
+        return;
+    }
+    PendingWrite write = { data.size(), scId, ecId };
+    writes.append(write);
+    queuedBytes += data.size();
+}
+
+void Serial::writeSerial(int scId, int ecId, const QVariantMap& arg) {
+    queueWrite(scId, ecId, arg["data"].toString().toLatin1());
 }
 
 static QByteArray hex2bin(QString hexString) {
@@ -122,15 +264,20 @@ static QByteArray hex2bin(QString hexString) {
 }
 
 void Serial::writeSerialHex(int scId, int ecId, const QVariantMap& arg) {
-    QVariantMap obj = arg;
-    obj["data"] = hex2bin(arg["data"].toString());
-    writeSerial(scId, ecId, obj);
+    queueWrite(scId, ecId, hex2bin(arg["data"].toString()));
 }
 
 void Serial::readSerial(int scId, int ecId) {
-    if (port->isOpen()) {
-        if ( (port->bytesAvailable() > 0) || port->waitForReadyRead(readWaitMillis) ) {
-            callback(scId, byteArrayToJavaScript(port->readAll()));
+    if (port != NULL && port->isOpen()) {
+        // the pending batch comes first
+        QByteArray data = batch;
+        batch.clear();
+        batchTimer.stop();
+        if ( (port->bytesAvailable() > 0) || (data.isEmpty() && port->waitForReadyRead(readWaitMillis)) ) {
+            data.append(port->readAll());
+        }
+        if (!data.isEmpty()) {
+            callback(scId, encode(data));
         } else {
             callback(ecId, error_desc("No data available"));
         }
@@ -139,8 +286,22 @@ void Serial::readSerial(int scId, int ecId) {
     }
 }
 
-void Serial::closeSerial(int scId, int ecId) {
+void Serial::closePort(void) {
+    if (port == NULL) return;
     if (port->isOpen()) {
+        flushBatch();
+        // give the queued writes a chance to complete
+        if (queuedBytes > 0) port->waitForBytesWritten(WRITE_WAIT_MILLIS);
+        port->close();
+    }
+    failWrites(error_desc("Port closed."));
+    port->deleteLater();
+    port = NULL;
+}
+
+void Serial::closeSerial(int scId, int ecId) {
+    if (port != NULL && port->isOpen()) {
+        closePort();
         callback(scId, "{}");
     } else {
         callback(ecId, error_desc("Port not open"));
@@ -150,4 +311,10 @@ void Serial::closeSerial(int scId, int ecId) {
 void Serial::registerReadCallback(int scId, int ecId) {
     _scId = scId;
     _ecId = ecId;
+    // what was received before goes first
+    if (port != NULL && port->bytesAvailable() > 0) onDataAvailable();
+}
+
+void Serial::acknowledgeRead(int, int, const QVariantMap&) {
+    // serial.js acknowledges every read, there is no receive buffer to send more here
 }
@@ -25,7 +25,10 @@
 #ifndef SERIAL_H
 #define SERIAL_H
 
+#include <QByteArray>
+#include <QList>
 #include <QSerialPort>
+#include <QTimer>
 #include <cplugin.h>
 
 class Serial: public CPlugin {
@@ -53,15 +56,47 @@ public slots:
     void readSerial(int scId, int ecId);
     void closeSerial(int scId, int ecId);
     void registerReadCallback(int scId, int ecId);
+    void acknowledgeRead(int scId, int ecId, const QVariantMap& arg);
 
 private slots:
     void onDataAvailable(void);
+    void onBytesWritten(qint64 bytes);
+    void onError(QSerialPort::SerialPortError error);
+    void flushBatch(void);
 
 private:
+    // a queued write, its success callback is called once all its bytes are written
+    struct PendingWrite {
+        qint64 remaining;
+        int scId;
+        int ecId;
+    };
+
+    QString encode(const QByteArray& data) const;
+    void deliver(const QByteArray& data);
+    void queueWrite(int scId, int ecId, const QByteArray& data);
+    void failWrites(const QString& message);
+    void closePort(void);
+
     QSerialPort* port;
 
     int readWaitMillis;
 
+    // read batching, with the same options as on android
+    int readBatchSize;
+    int readBatchWindow;
+    int readDelimiter;
+    QByteArray batch;
+    QTimer batchTimer;
+
+    // how the data is sent to javascript: binary, base64 or string
+    QString encoding;
+
+    // write queue, bounded by writeQueueSize
+    QList<PendingWrite> writes;
+    qint64 queuedBytes;
+    qint64 writeQueueSize;
+
     int _scId;
     int _ecId;
 };
@@ -1,72 +1,456 @@
-var serial = {
-    requestPermission: function(opts, successCallback, errorCallback) {
-        if (typeof opts === 'function') {  //user did not pass opts
-          errorCallback = successCallback;
-          successCallback = opts;
-          opts = {};
-        }
-        cordova.exec(
-            successCallback,
-            errorCallback,
-            'Serial',
-            'requestPermission',
-            [{'opts': opts}]
-        );
-    },
-    open: function(opts, successCallback, errorCallback) {
-        cordova.exec(
-            successCallback,
-            errorCallback,
-            'Serial',
-            'openSerial',
-            [{'opts': opts}]
-        );
-    },
-    write: function(data, successCallback, errorCallback) {
-        cordova.exec(
-            successCallback,
-            errorCallback,
-            'Serial',
-            'writeSerial',
-            [{'data': data}]
-        );
-    },
-    writeHex: function(hexString, successCallback, errorCallback) {
-        cordova.exec(
-            successCallback,
-            errorCallback,
-            'Serial',
-            'writeSerialHex',
-            [{'data': hexString}]
-        );
-    },
-    read: function(successCallback, errorCallback) {
-        cordova.exec(
-            successCallback,
-            errorCallback,
-            'Serial',
-            'readSerial',
-            []
-        );
-    },
-    close: function(successCallback, errorCallback) {
-        cordova.exec(
-            successCallback,
-            errorCallback,
-            'Serial',
-            'closeSerial',
-            []
-        );
-    },
-    registerReadCallback: function(successCallback, errorCallback) {
-        cordova.exec(
-            successCallback,
-            errorCallback,
-            'Serial',
-            'registerReadCallback',
-            []
-        );
+/**
+ * Get the ArrayBuffer holding exactly the bytes of an ArrayBuffer or a typed array view,
+ * cordova only sends ArrayBuffers as binary arguments
+ */
+var toArrayBuffer = function(data) {
+    if (data instanceof ArrayBuffer) {
+        return data;
+    }
+    if (data.byteOffset === 0 && data.byteLength === data.buffer.byteLength) {
+        return data.buffer;
     }
+    return data.buffer.slice(data.byteOffset, data.byteOffset + data.byteLength);
+};
 
+/**
+ * Split a batch of frames, as sent to the read callback when both framing and read
+ * batching are enabled, into an array of Uint8Array, one per frame
+ */
+var splitFrames = function(data) {
+    var view = new Uint8Array(data);
+    var frames = [];
+    var offset = 0;
+    while (offset + 2 <= view.length) {
+        var length = (view[offset] << 8) | view[offset + 1];
+        frames.push(view.subarray(offset + 2, offset + 2 + length));
+        offset += 2 + length;
+    }
+    return frames;
 };
+
+/**
+ * Split the data sent to the read callback with the timestamps option into an array of
+ * {timestamp, data} records: the time the chunk or frame was read, in nanoseconds of
+ * SystemClock.elapsedRealtimeNanos, and its bytes as a Uint8Array
+ */
+var splitRecords = function(data) {
+    var view = new Uint8Array(data);
+    var records = [];
+    var offset = 0;
+    while (offset + 10 <= view.length) {
+        var high = ((view[offset] << 24) | (view[offset + 1] << 16) | (view[offset + 2] << 8) | view[offset + 3]) >>> 0;
+        var low = ((view[offset + 4] << 24) | (view[offset + 5] << 16) | (view[offset + 6] << 8) | view[offset + 7]) >>> 0;
+        var length = (view[offset + 8] << 8) | view[offset + 9];
+        records.push({
+            timestamp: high * 4294967296 + low,
+            data: view.subarray(offset + 10, offset + 10 + length)
+        });
+        offset += 10 + length;
+    }
+    return records;
+};
+
+/**
+ * Connect to the endpoint returned by open with the websocket transport, onData receives
+ * every batch as an ArrayBuffer. Returns the WebSocket, whose send writes to the port.
+ */
+var connectStream = function(endpoint, onData, onClose) {
+    var socket = new WebSocket(endpoint.url);
+    socket.binaryType = 'arraybuffer';
+    socket.onmessage = function(event) {
+        onData(event.data);
+    };
+    if (onClose) {
+        socket.onclose = onClose;
+    }
+    return socket;
+};
+
+/**
+ * Read one control line of a port, cordova reads them all at once
+ */
+var getControlLine = function(handle, name, successCallback, errorCallback) {
+    cordova.exec(
+        function(lines) {
+            successCallback(lines[name]);
+        },
+        errorCallback,
+        'Serial',
+        'getControlLines',
+        [{'handle': handle}]
+    );
+};
+
+// the bytes received by the read callbacks during the current javascript turn, by port
+var pendingAcks = null;
+
+/**
+ * Tell the plugin that a read callback is done with some data, so that the receive buffer
+ * of the port sends more. The acknowledgements of a javascript turn go in one call per port,
+ * the handle being the one of the port with its own callback, null for the shared one.
+ */
+var acknowledgeRead = function(handle, bytes) {
+    if (pendingAcks === null) {
+        pendingAcks = {};
+        setTimeout(function() {
+            var acks = pendingAcks;
+            pendingAcks = null;
+            Object.keys(acks).forEach(function(key) {
+                cordova.exec(null, null, 'Serial', 'acknowledgeRead',
+                    [{'opts': {'bytes': acks[key].bytes}, 'handle': acks[key].handle}]);
+            });
+        }, 0);
+    }
+    var key = String(handle);
+    if (!pendingAcks[key]) {
+        pendingAcks[key] = {'handle': handle, 'bytes': 0};
+    }
+    pendingAcks[key].bytes += bytes;
+};
+
+/**
+ * Build the serial API, bound to a given port handle.
+ * Without a handle, the calls target the last opened port.
+ */
+var createSerial = function(handle) {
+    return {
+        requestPermission: function(opts, successCallback, errorCallback) {
+            if (typeof opts === 'function') {  //user did not pass opts
+              errorCallback = successCallback;
+              successCallback = opts;
+              opts = {};
+            }
+            cordova.exec(
+                successCallback,
+                errorCallback,
+                'Serial',
+                'requestPermission',
+                [{'opts': opts}]
+            );
+        },
+        listDevices: function(opts, successCallback, errorCallback) {
+            if (typeof opts === 'function') {  //user did not pass opts
+              errorCallback = successCallback;
+              successCallback = opts;
+              opts = {};
+            }
+            cordova.exec(
+                successCallback,
+                errorCallback,
+                'Serial',
+                'listDevices',
+                [{'opts': opts}]
+            );
+        },
+        open: function(opts, successCallback, errorCallback) {
+            cordova.exec(
+                successCallback,
+                errorCallback,
+                'Serial',
+                'openSerial',
+                [{'opts': opts}]
+            );
+        },
+        write: function(data, successCallback, errorCallback) {
+            cordova.exec(
+                successCallback,
+                errorCallback,
+                'Serial',
+                'writeSerial',
+                [{'data': data, 'handle': handle}]
+            );
+        },
+        writeHex: function(hexString, successCallback, errorCallback) {
+            cordova.exec(
+                successCallback,
+                errorCallback,
+                'Serial',
+                'writeSerialHex',
+                [{'data': hexString, 'handle': handle}]
+            );
+        },
+        writeBinary: function(data, successCallback, errorCallback) {
+            // a single buffer or an array of buffers, written as one write
+            var buffers = Array.isArray(data) ? data : [data];
+            var args = [{'handle': handle}];
+            for (var i = 0; i < buffers.length; i++) {
+                args.push(toArrayBuffer(buffers[i]));
+            }
+            cordova.exec(
+                successCallback,
+                errorCallback,
+                'Serial',
+                'writeSerialBinary',
+                args
+            );
+        },
+        transact: function(data, opts, successCallback, errorCallback) {
+            // a string command, or binary data sent as an ArrayBuffer
+            var args = typeof data === 'string' ?
+                [{'data': data, 'opts': opts, 'handle': handle}] :
+                [{'opts': opts, 'handle': handle}, toArrayBuffer(data)];
+            cordova.exec(
+                successCallback,
+                errorCallback,
+                'Serial',
+                'transact',
+                args
+            );
+        },
+        schedulePeriodicWrite: function(data, opts, successCallback, errorCallback) {
+            // a string payload, or binary data sent as an ArrayBuffer
+            var args = typeof data === 'string' ?
+                [{'data': data, 'opts': opts, 'handle': handle}] :
+                [{'opts': opts, 'handle': handle}, toArrayBuffer(data)];
+            cordova.exec(
+                successCallback,
+                errorCallback,
+                'Serial',
+                'schedulePeriodicWrite',
+                args
+            );
+        },
+        cancelPeriodicWrite: function(id, successCallback, errorCallback) {
+            cordova.exec(
+                successCallback,
+                errorCallback,
+                'Serial',
+                'cancelPeriodicWrite',
+                [{'opts': {'id': id}, 'handle': handle}]
+            );
+        },
+        sendFile: function(opts, successCallback, errorCallback) {
+            cordova.exec(
+                successCallback,
+                errorCallback,
+                'Serial',
+                'sendFile',
+                [{'opts': opts, 'handle': handle}]
+            );
+        },
+        receiveFile: function(opts, successCallback, errorCallback) {
+            cordova.exec(
+                successCallback,
+                errorCallback,
+                'Serial',
+                'receiveFile',
+                [{'opts': opts, 'handle': handle}]
+            );
+        },
+        cancelTransfer: function(successCallback, errorCallback) {
+            cordova.exec(
+                successCallback,
+                errorCallback,
+                'Serial',
+                'cancelTransfer',
+                [{'handle': handle}]
+            );
+        },
+        read: function(opts, successCallback, errorCallback) {
+            if (typeof opts === 'function') {  //user did not pass opts
+              errorCallback = successCallback;
+              successCallback = opts;
+              opts = {};
+            }
+            cordova.exec(
+                successCallback,
+                errorCallback,
+                'Serial',
+                'readSerial',
+                [{'opts': opts, 'handle': handle}]
+            );
+        },
+        close: function(successCallback, errorCallback) {
+            cordova.exec(
+                successCallback,
+                errorCallback,
+                'Serial',
+                'closeSerial',
+                [{'handle': handle}]
+            );
+        },
+        registerReadCallback: function(opts, successCallback, errorCallback) {
+            if (typeof opts === 'function') {  //user did not pass opts
+              errorCallback = successCallback;
+              successCallback = opts;
+              opts = {};
+            }
+            // the port the callback belongs to, given by the plugin with the registration result
+            var target = null;
+            cordova.exec(
+                function(data) {
+                    if (!(data instanceof ArrayBuffer)) {
+                        if (data && data.registerReadCallback) {
+                            target = data.handle || null;
+                        }
+                        successCallback(data);
+                        return;
+                    }
+                    try {
+                        successCallback(data);
+                    }
+                    finally {
+                        // always, the plugin counts all the data of the shared callback
+                        acknowledgeRead(target, data.byteLength);
+                    }
+                },
+                errorCallback,
+                'Serial',
+                'registerReadCallback',
+                [{'opts': opts, 'handle': handle}]
+            );
+        },
+        registerChannelCallback: function(channel, successCallback, errorCallback) {
+            cordova.exec(
+                successCallback,
+                errorCallback,
+                'Serial',
+                'registerChannelCallback',
+                [{'opts': {'channel': channel}, 'handle': handle}]
+            );
+        },
+        writeChannel: function(channel, data, successCallback, errorCallback) {
+            // a string, or binary data sent as an ArrayBuffer
+            var args = typeof data === 'string' ?
+                [{'data': data, 'opts': {'channel': channel}, 'handle': handle}] :
+                [{'opts': {'channel': channel}, 'handle': handle}, toArrayBuffer(data)];
+            cordova.exec(
+                successCallback,
+                errorCallback,
+                'Serial',
+                'writeChannel',
+                args
+            );
+        },
+        registerStateCallback: function(successCallback, errorCallback) {
+            cordova.exec(
+                successCallback,
+                errorCallback,
+                'Serial',
+                'registerStateCallback',
+                [{'handle': handle}]
+            );
+        },
+        getControlLines: function(successCallback, errorCallback) {
+            cordova.exec(
+                successCallback,
+                errorCallback,
+                'Serial',
+                'getControlLines',
+                [{'handle': handle}]
+            );
+        },
+        getCTS: function(successCallback, errorCallback) {
+            getControlLine(handle, 'cts', successCallback, errorCallback);
+        },
+        getDSR: function(successCallback, errorCallback) {
+            getControlLine(handle, 'dsr', successCallback, errorCallback);
+        },
+        getCD: function(successCallback, errorCallback) {
+            getControlLine(handle, 'cd', successCallback, errorCallback);
+        },
+        getRI: function(successCallback, errorCallback) {
+            getControlLine(handle, 'ri', successCallback, errorCallback);
+        },
+        setDTR: function(value, successCallback, errorCallback) {
+            cordova.exec(
+                successCallback,
+                errorCallback,
+                'Serial',
+                'setControlLines',
+                [{'opts': {'dtr': value}, 'handle': handle}]
+            );
+        },
+        setRTS: function(value, successCallback, errorCallback) {
+            cordova.exec(
+                successCallback,
+                errorCallback,
+                'Serial',
+                'setControlLines',
+                [{'opts': {'rts': value}, 'handle': handle}]
+            );
+        },
+        getStats: function(opts, successCallback, errorCallback) {
+            if (typeof opts === 'function') {  //user did not pass opts
+              errorCallback = successCallback;
+              successCallback = opts;
+              opts = {};
+            }
+            cordova.exec(
+                successCallback,
+                errorCallback,
+                'Serial',
+                'getStats',
+                [{'opts': opts, 'handle': handle}]
+            );
+        },
+        resetStats: function(successCallback, errorCallback) {
+            cordova.exec(
+                successCallback,
+                errorCallback,
+                'Serial',
+                'resetStats',
+                [{'handle': handle}]
+            );
+        },
+        startCapture: function(opts, successCallback, errorCallback) {
+            if (typeof opts === 'function') {  //user did not pass opts
+              errorCallback = successCallback;
+              successCallback = opts;
+              opts = {};
+            }
+            cordova.exec(
+                successCallback,
+                errorCallback,
+                'Serial',
+                'startCapture',
+                [{'opts': opts, 'handle': handle}]
+            );
+        },
+        stopCapture: function(successCallback, errorCallback) {
+            cordova.exec(
+                successCallback,
+                errorCallback,
+                'Serial',
+                'stopCapture',
+                [{'handle': handle}]
+            );
+        },
+        rotateCapture: function(successCallback, errorCallback) {
+            cordova.exec(
+                successCallback,
+                errorCallback,
+                'Serial',
+                'rotateCapture',
+                [{'handle': handle}]
+            );
+        },
+        replayCapture: function(opts, successCallback, errorCallback) {
+            cordova.exec(
+                successCallback,
+                errorCallback,
+                'Serial',
+                'replayCapture',
+                [{'opts': opts, 'handle': handle}]
+            );
+        },
+        stopReplay: function(successCallback, errorCallback) {
+            cordova.exec(
+                successCallback,
+                errorCallback,
+                'Serial',
+                'stopReplay',
+                [{'handle': handle}]
+            );
+        },
+        splitFrames: splitFrames,
+        splitRecords: splitRecords,
+        connectStream: connectStream,
+        port: function(portHandle) {
+            return createSerial(portHandle);
+        }
+    };
+};
+
+var serial = createSerial(null);
 module.exports = serial;